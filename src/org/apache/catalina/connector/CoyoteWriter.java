@@ -2,11 +2,15 @@ package org.apache.catalina.connector;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * servlet写入器的实现.
+ * <p>
+ * 也实现<code>WritableByteChannel</code>, 已经按照响应的字符编码编码的字节可以直接写入输出缓冲区, 不需要再经过转换器.
  */
-public class CoyoteWriter extends PrintWriter {
+public class CoyoteWriter extends PrintWriter implements WritableByteChannel {
 
     // -------------------------------------------------------------- Constants
 
@@ -130,6 +134,39 @@ public class CoyoteWriter extends PrintWriter {
     }
 
 
+    // -------------------------------------------- WritableByteChannel Methods
+
+
+    /**
+     * 写入已经按照响应的字符编码编码的字节. 缓冲的字符先被转换, 所以输出的顺序不变.
+     */
+    public int write(ByteBuffer src) {
+        int len = src.remaining();
+        if (error || (len == 0))
+            return 0;
+
+        try {
+            if (src.hasArray()) {
+                ob.write(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.limit());
+            } else {
+                byte[] b = new byte[len];
+                src.get(b);
+                ob.write(b, 0, len);
+            }
+        } catch (IOException e) {
+            error = true;
+            return 0;
+        }
+        return len;
+    }
+
+
+    public boolean isOpen() {
+        return !error;
+    }
+
+
     // ---------------------------------------------------- PrintWriter Methods
 
 
@@ -140,6 +140,7 @@ final class ApplicationFilterChain implements FilterChain {
         if (pos < n) {
             ApplicationFilterConfig filterConfig = filters[pos++];
             Filter filter = null;
+            long t1 = System.nanoTime();
             try {
                 filter = filterConfig.getFilter();
                 support.fireInstanceEvent(InstanceEvent.BEFORE_FILTER_EVENT,
@@ -183,6 +184,8 @@ final class ApplicationFilterChain implements FilterChain {
                                               filter, request, response, e);
                 throw new ServletException
                   (sm.getString("filterChain.filter"), e);
+            } finally {
+                filterConfig.getLatency().record(System.nanoTime() - t1);
             }
             return;
         }
@@ -14,6 +14,7 @@ import org.apache.catalina.Context;
 import org.apache.catalina.deploy.FilterDef;
 import org.apache.catalina.security.SecurityUtil;
 import org.apache.catalina.util.Enumerator;
+import org.apache.catalina.util.LatencyHistogram;
 import org.apache.tomcat.util.log.SystemLogHandler;
 
 /**
@@ -60,6 +61,12 @@ final class ApplicationFilterConfig implements FilterConfig, Serializable {
     private FilterDef filterDef = null;
 
 
+    /**
+     * 过滤器调用的延迟分布, 包括链中后面的过滤器和servlet.
+     */
+    private transient LatencyHistogram latency = new LatencyHistogram();
+
+
     // --------------------------------------------------- FilterConfig Methods
 
 
@@ -119,6 +126,14 @@ final class ApplicationFilterConfig implements FilterConfig, Serializable {
     // -------------------------------------------------------- Package Methods
 
 
+    /**
+     * 返回过滤器调用的延迟分布.
+     */
+    LatencyHistogram getLatency() {
+        return (this.latency);
+    }
+
+
     /**
      * 返回配置的Filter
      *
@@ -0,0 +1,414 @@
+package org.apache.catalina.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.catalina.deploy.FilterMap;
+
+/**
+ * 一个上下文的过滤器映射的编译形式.
+ * <p>
+ * 每种调度器类型有自己的一组查找表: 精确路径, 路径前缀 ("/.../*"), 扩展名 ("*.xxx"),
+ * 以及匹配所有路径的"/*". 按servlet名称匹配的过滤器按(servlet名称, 调度器类型)
+ * 预先解析为<code>ApplicationFilterConfig[]</code>.
+ * <p>
+ * 实例创建后不可变. <code>StandardContext</code>在过滤器映射或过滤器配置改变时丢弃它.
+ */
+final class ApplicationFilterIndex {
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    private static final int[] EMPTY_INDEXES = new int[0];
+
+
+    private static final ApplicationFilterConfig[] EMPTY_CONFIGS =
+        new ApplicationFilterConfig[0];
+
+
+    /**
+     * 调度器类型, 按查找表的下标排序.
+     */
+    private static final int[] DISPATCHERS = {
+        ApplicationFilterFactory.ERROR, ApplicationFilterFactory.FORWARD,
+        ApplicationFilterFactory.INCLUDE, ApplicationFilterFactory.REQUEST };
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * 编译指定上下文的过滤器映射.
+     *
+     * @param context 所属的上下文
+     * @param filterMaps 过滤器映射, 按照部署描述符中的顺序
+     */
+    ApplicationFilterIndex(StandardContext context, FilterMap[] filterMaps) {
+
+        configs = new ApplicationFilterConfig[filterMaps.length];
+        for (int i = 0; i < filterMaps.length; i++) {
+            configs[i] = (ApplicationFilterConfig)
+                context.findFilterConfig(filterMaps[i].getFilterName());
+        }
+
+        int count = DISPATCHERS.length;
+        all = new int[count][];
+        exact = new HashMap[count];
+        prefix = new HashMap[count];
+        extension = new HashMap[count];
+        servlet = new HashMap[count];
+        HashSet lengths = new HashSet();
+
+        for (int d = 0; d < count; d++) {
+            ArrayList allList = new ArrayList();
+            HashMap exactLists = new HashMap();
+            HashMap prefixLists = new HashMap();
+            HashMap extensionLists = new HashMap();
+            HashMap servletLists = new HashMap();
+            for (int i = 0; i < filterMaps.length; i++) {
+                // 与原来一样, 没有配置的过滤器被忽略
+                if (configs[i] == null)
+                    continue;
+                if (!matchDispatcher(filterMaps[i], DISPATCHERS[d]))
+                    continue;
+                Integer index = new Integer(i);
+                String servletName = filterMaps[i].getServletName();
+                if (servletName != null)
+                    add(servletLists, servletName, index);
+                String pattern = filterMaps[i].getURLPattern();
+                if (pattern == null)
+                    continue;
+                if (pattern.equals("/*")) {
+                    allList.add(index);
+                    continue;
+                }
+                add(exactLists, pattern, index);
+                if (pattern.endsWith("/*")) {
+                    String key = pattern.substring(0, pattern.length() - 2);
+                    add(prefixLists, key, index);
+                    lengths.add(new Integer(key.length()));
+                } else if (pattern.startsWith("*.")) {
+                    add(extensionLists, pattern.substring(2), index);
+                }
+            }
+            all[d] = toIndexes(allList);
+            exact[d] = toIndexes(exactLists);
+            prefix[d] = toIndexes(prefixLists);
+            extension[d] = toIndexes(extensionLists);
+            servlet[d] = toConfigs(servletLists);
+        }
+
+        int maxLength = 0;
+        Iterator it = lengths.iterator();
+        while (it.hasNext()) {
+            maxLength = Math.max(maxLength, ((Integer) it.next()).intValue());
+        }
+        prefixLengths = new boolean[lengths.isEmpty() ? 0 : maxLength + 1];
+        it = lengths.iterator();
+        while (it.hasNext()) {
+            prefixLengths[((Integer) it.next()).intValue()] = true;
+        }
+
+        empty = (filterMaps.length == 0);
+
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每个过滤器映射对应的过滤器配置, 可能为<code>null</code>.
+     */
+    private ApplicationFilterConfig[] configs;
+
+
+    /**
+     * 映射到"/*"的过滤器映射下标.
+     */
+    private int[][] all;
+
+
+    /**
+     * 模式 -> 过滤器映射下标 (int[]).
+     */
+    private HashMap[] exact;
+
+
+    /**
+     * 去掉"/*"的前缀 -> 过滤器映射下标 (int[]).
+     */
+    private HashMap[] prefix;
+
+
+    /**
+     * 扩展名 -> 过滤器映射下标 (int[]).
+     */
+    private HashMap[] extension;
+
+
+    /**
+     * servlet名称 -> 过滤器配置 (ApplicationFilterConfig[]).
+     */
+    private HashMap[] servlet;
+
+
+    /**
+     * 出现在前缀表中的前缀长度, 避免为不可能匹配的前缀创建子串.
+     */
+    private boolean[] prefixLengths;
+
+
+    /**
+     * 是否没有任何过滤器映射.
+     */
+    private boolean empty;
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 是否没有任何过滤器映射.
+     */
+    boolean isEmpty() {
+        return empty;
+    }
+
+
+    /**
+     * 返回匹配指定请求路径的过滤器, 按部署描述符中的顺序.
+     *
+     * @param dispatcher 调度器类型
+     * @param requestPath 上下文相对请求路径
+     */
+    ApplicationFilterConfig[] findFilters(int dispatcher, String requestPath) {
+
+        int d = slot(dispatcher);
+        if ((d < 0) || (requestPath == null))
+            return EMPTY_CONFIGS;
+
+        // Case 2 - "/*"
+        int[] found = all[d];
+
+        // Case 1 - Exact Match
+        found = merge(found, (int[]) exact[d].get(requestPath));
+
+        // Case 2 - Path Match ("/.../*")
+        if (!prefix[d].isEmpty()) {
+            int length = requestPath.length();
+            if ((length < prefixLengths.length) && prefixLengths[length])
+                found = merge(found, (int[]) prefix[d].get(requestPath));
+            int max = Math.min(length, prefixLengths.length);
+            for (int i = 0; i < max; i++) {
+                if ((requestPath.charAt(i) == '/') && prefixLengths[i]) {
+                    found = merge(found,
+                                  (int[]) prefix[d].get(requestPath.substring(0, i)));
+                }
+            }
+        }
+
+        // Case 3 - Extension Match
+        if (!extension[d].isEmpty()) {
+            int slash = requestPath.lastIndexOf('/');
+            int period = requestPath.lastIndexOf('.');
+            if ((slash >= 0) && (period > slash)
+                && (period != requestPath.length() - 1)) {
+                found = merge(found, (int[]) extension[d].get
+                              (requestPath.substring(period + 1)));
+            }
+        }
+
+        if (found.length == 0)
+            return EMPTY_CONFIGS;
+        ApplicationFilterConfig[] result =
+            new ApplicationFilterConfig[found.length];
+        for (int i = 0; i < found.length; i++) {
+            result[i] = configs[found[i]];
+        }
+        return result;
+
+    }
+
+
+    /**
+     * 返回与指定servlet名称匹配的过滤器, 按部署描述符中的顺序.
+     * 返回的数组是共享的, 调用者不能修改它.
+     *
+     * @param dispatcher 调度器类型
+     * @param servletName servlet名称
+     */
+    ApplicationFilterConfig[] findServletFilters(int dispatcher,
+                                                 String servletName) {
+        int d = slot(dispatcher);
+        if ((d < 0) || (servletName == null))
+            return EMPTY_CONFIGS;
+        ApplicationFilterConfig[] result =
+            (ApplicationFilterConfig[]) servlet[d].get(servletName);
+        return (result == null) ? EMPTY_CONFIGS : result;
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回调度器类型对应的查找表下标; 未知类型返回-1.
+     */
+    private static int slot(int dispatcher) {
+        switch (dispatcher) {
+            case ApplicationFilterFactory.ERROR : return 0;
+            case ApplicationFilterFactory.FORWARD : return 1;
+            case ApplicationFilterFactory.INCLUDE : return 2;
+            case ApplicationFilterFactory.REQUEST : return 3;
+        }
+        return -1;
+    }
+
+
+    /**
+     * 合并两个有序的下标数组, 去掉重复的下标.
+     */
+    private static int[] merge(int[] a, int[] b) {
+        if ((b == null) || (b.length == 0))
+            return a;
+        if (a.length == 0)
+            return b;
+        int[] result = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while ((i < a.length) || (j < b.length)) {
+            int next;
+            if (j == b.length || ((i < a.length) && (a[i] <= b[j])))
+                next = a[i++];
+            else
+                next = b[j++];
+            if ((n == 0) || (result[n - 1] != next))
+                result[n++] = next;
+        }
+        if (n < result.length) {
+            int[] trimmed = new int[n];
+            System.arraycopy(result, 0, trimmed, 0, n);
+            return trimmed;
+        }
+        return result;
+    }
+
+
+    private static void add(HashMap lists, String key, Integer index) {
+        ArrayList list = (ArrayList) lists.get(key);
+        if (list == null) {
+            list = new ArrayList();
+            lists.put(key, list);
+        }
+        list.add(index);
+    }
+
+
+    private static int[] toIndexes(ArrayList list) {
+        if (list.isEmpty())
+            return EMPTY_INDEXES;
+        int[] result = new int[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ((Integer) list.get(i)).intValue();
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+
+    private static HashMap toIndexes(HashMap lists) {
+        HashMap result = new HashMap();
+        Iterator entries = lists.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            result.put(entry.getKey(), toIndexes((ArrayList) entry.getValue()));
+        }
+        return result;
+    }
+
+
+    private HashMap toConfigs(HashMap lists) {
+        HashMap result = new HashMap();
+        Iterator entries = lists.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            int[] indexes = toIndexes((ArrayList) entry.getValue());
+            ApplicationFilterConfig[] filters =
+                new ApplicationFilterConfig[indexes.length];
+            for (int i = 0; i < indexes.length; i++) {
+                filters[i] = configs[indexes[i]];
+            }
+            result.put(entry.getKey(), filters);
+        }
+        return result;
+    }
+
+
+    /**
+     * 如果调度器类型匹配FilterMap中指定的调度器类型
+     */
+    private static boolean matchDispatcher(FilterMap filterMap, int dispatcher) {
+        switch (dispatcher) {
+            case ApplicationFilterFactory.FORWARD : {
+                if (filterMap.getDispatcherMapping() == FilterMap.FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.FORWARD_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_FORWARD_INCLUDE) {
+                        return true;
+                }
+                break;
+            }
+            case ApplicationFilterFactory.INCLUDE : {
+                if (filterMap.getDispatcherMapping() == FilterMap.INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_FORWARD_INCLUDE) {
+                        return true;
+                }
+                break;
+            }
+            case ApplicationFilterFactory.REQUEST : {
+                if (filterMap.getDispatcherMapping() == FilterMap.REQUEST ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_FORWARD_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD_INCLUDE) {
+                        return true;
+                }
+                break;
+            }
+            case ApplicationFilterFactory.ERROR : {
+                if (filterMap.getDispatcherMapping() == FilterMap.ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.FORWARD_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.INCLUDE_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_FORWARD_INCLUDE ||
+                    filterMap.getDispatcherMapping() == FilterMap.REQUEST_ERROR_INCLUDE) {
+                        return true;
+                }
+                break;
+            }
+        }
+        return false;
+    }
+
+
+}
@@ -1028,6 +1028,38 @@ public abstract class ContainerBase
     public ObjectName[] getValveObjectNames() {
         return ((StandardPipeline)pipeline).getValveObjectNames();
     }
+
+
+    /**
+     * 是否记录管道中每个Valve的时间.
+     */
+    public boolean isValveTiming() {
+        return ((StandardPipeline)pipeline).isValveTiming();
+    }
+
+
+    /**
+     * 启用或关闭管道中每个Valve的计时.
+     */
+    public void setValveTiming(boolean valveTiming) {
+        ((StandardPipeline)pipeline).setValveTiming(valveTiming);
+    }
+
+
+    /**
+     * 返回管道中每个Valve的计时统计.
+     */
+    public String[] getValveTimings() {
+        return ((StandardPipeline)pipeline).getValveTimings();
+    }
+
+
+    /**
+     * 清除管道中每个Valve的计时统计.
+     */
+    public void resetValveTimings() {
+        ((StandardPipeline)pipeline).resetValveTimings();
+    }
     
     /**
      * <p>返回Valve实例， 被这个Pipeline认为是基础Valve
@@ -315,6 +315,18 @@ public class StandardContext extends ContainerBase
     private FilterMap filterMaps[] = new FilterMap[0];
 
 
+    /**
+     * 编译后的过滤器映射, 在需要时创建. 过滤器映射或过滤器配置改变时丢弃.
+     */
+    private volatile ApplicationFilterIndex filterIndex = null;
+
+
+    /**
+     * 创建和丢弃<code>filterIndex</code>时使用的锁.
+     */
+    private final Object filterIndexLock = new Object();
+
+
     /**
      * InstanceListener的类名集合，将被添加到每个使用<code>createWrapper()</code>新创建的Wrapper.
      */
@@ -545,6 +557,12 @@ public class StandardContext extends ContainerBase
     protected int cacheTTL = 5000;
 
 
+    /**
+     * 缓存资源内容的存储方式: heap或direct.
+     */
+    protected String cacheStorage = "heap";
+
+
     private boolean lazy=true;
 
     /**
@@ -692,6 +710,22 @@ public class StandardContext extends ContainerBase
     }
 
 
+    /**
+     * 返回缓存资源内容的存储方式.
+     */
+    public String getCacheStorage() {
+        return cacheStorage;
+    }
+
+
+    /**
+     * 设置缓存资源内容的存储方式: heap (默认)或direct.
+     */
+    public void setCacheStorage(String cacheStorage) {
+        this.cacheStorage = cacheStorage;
+    }
+
+
     /**
      * 用于配置ClassLoader的"遵循标准委托模型"标志.
      */
@@ -1507,6 +1541,7 @@ public class StandardContext extends ContainerBase
             ((BaseDirContext) resources).setCached(isCachingAllowed());
             ((BaseDirContext) resources).setCacheTTL(getCacheTTL());
             ((BaseDirContext) resources).setCacheMaxSize(getCacheMaxSize());
+            ((BaseDirContext) resources).setCacheStorage(getCacheStorage());
         }
         if (resources instanceof FileDirContext) {
             filesystemBased = true;
@@ -1835,6 +1870,7 @@ public class StandardContext extends ContainerBase
             results[filterMaps.length] = filterMap;
             filterMaps = results;
         }
+        resetFilterIndex();
         fireContainerEvent("addFilterMap", filterMap);
 
     }
@@ -2808,6 +2844,7 @@ public class StandardContext extends ContainerBase
             filterMaps = results;
 
         }
+        resetFilterIndex();
 
         // Inform interested listeners
         fireContainerEvent("removeFilterMap", filterMap);
@@ -3173,6 +3210,7 @@ public class StandardContext extends ContainerBase
                 }
             }
         }
+        resetFilterIndex();
         return (ok);
     }
 
@@ -3199,10 +3237,39 @@ public class StandardContext extends ContainerBase
             }
             filterConfigs.clear();
         }
+        resetFilterIndex();
         return (true);
     }
 
 
+    /**
+     * 返回编译后的过滤器映射, 如果需要, 先创建它.
+     */
+    ApplicationFilterIndex getFilterIndex() {
+        ApplicationFilterIndex index = filterIndex;
+        if (index == null) {
+            synchronized (filterIndexLock) {
+                index = filterIndex;
+                if (index == null) {
+                    index = new ApplicationFilterIndex(this, findFilterMaps());
+                    filterIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+
+    /**
+     * 丢弃编译后的过滤器映射, 下次请求时重新创建.
+     */
+    private void resetFilterIndex() {
+        synchronized (filterIndexLock) {
+            filterIndex = null;
+        }
+    }
+
+
     /**
      * 查找并返回指定名称的初始化的<code>FilterConfig</code>; 或者返回<code>null</code>.
      *
@@ -3213,6 +3280,38 @@ public class StandardContext extends ContainerBase
     }
 
 
+    /**
+     * 返回每个已初始化的过滤器的延迟分布摘要. 时间包括链中后面的过滤器和servlet.
+     */
+    public String[] getFilterLatencies() {
+        synchronized (filterConfigs) {
+            String[] results = new String[filterConfigs.size()];
+            Iterator names = filterConfigs.keySet().iterator();
+            int i = 0;
+            while (names.hasNext()) {
+                String name = (String) names.next();
+                ApplicationFilterConfig filterConfig =
+                    (ApplicationFilterConfig) filterConfigs.get(name);
+                results[i++] = name + ": " + filterConfig.getLatency();
+            }
+            return results;
+        }
+    }
+
+
+    /**
+     * 清除每个过滤器的延迟分布.
+     */
+    public void resetFilterLatencies() {
+        synchronized (filterConfigs) {
+            Iterator configs = filterConfigs.values().iterator();
+            while (configs.hasNext()) {
+                ((ApplicationFilterConfig) configs.next()).getLatency().reset();
+            }
+        }
+    }
+
+
     /**
      * 配置一组应用事件监听器.
      * 返回<code>true</code>如果所有监听器初始化成功,否则返回<code>false</code>.
@@ -3370,6 +3469,8 @@ public class StandardContext extends ContainerBase
                 ((BaseDirContext) webappResources).setCacheTTL(getCacheTTL());
                 ((BaseDirContext) webappResources).setCacheMaxSize
                     (getCacheMaxSize());
+                ((BaseDirContext) webappResources).setCacheStorage
+                    (getCacheStorage());
                 ((BaseDirContext) webappResources).allocate();
             }
             // Register the cache in JMX
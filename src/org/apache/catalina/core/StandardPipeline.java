@@ -1,8 +1,11 @@
 package org.apache.catalina.core;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.ObjectName;
+import javax.servlet.ServletException;
 
 import org.apache.catalina.Contained;
 import org.apache.catalina.Container;
@@ -11,6 +14,9 @@ import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
 import org.apache.catalina.Pipeline;
 import org.apache.catalina.Valve;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LatencyHistogram;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.ValveBase;
@@ -24,6 +30,13 @@ import org.apache.commons.modeler.Registry;
  *
  * <b>实施预警</b> - 此实现假定没有调用<code>addValve()</code>或<code>removeValve</code>是允许的，
  * 当一个请求正在处理的时候. 否则，就需要一个维护每个线程状态的机制.
+ * <p>
+ * Valve保存在一个不可变的数组中, 只在<code>addValve()</code>, <code>removeValve()</code>
+ * 和<code>setBasic()</code>时重新构建, 同时重新设置每个Valve的<code>next</code>.
+ * 请求路径上的<code>getFirst()</code>只读取一个预先计算的字段.
+ * <p>
+ * 如果启用了<code>valveTiming</code>, 每个Valve前面插入一个计时的Valve,
+ * 记录调用次数, 总时间, 最大时间和延迟分布. 关闭后恢复原来的链, 没有额外的开销.
  */
 public class StandardPipeline implements Pipeline, Contained, Lifecycle {
 
@@ -88,6 +101,36 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
     protected Valve first = null;
 
 
+    /**
+     * 添加的Valve, 不包括基础Valve. 修改时整体替换.
+     */
+    protected Valve[] added = new Valve[0];
+
+
+    /**
+     * 所有Valve, 包括基础Valve, 按调用顺序.
+     */
+    protected volatile Valve[] valves = new Valve[0];
+
+
+    /**
+     * 请求进入pipeline时调用的Valve.
+     */
+    protected volatile Valve entry = null;
+
+
+    /**
+     * 是否记录每个Valve的时间.
+     */
+    protected boolean valveTiming = false;
+
+
+    /**
+     * 与<code>valves</code>对应的计时Valve, 没有启用计时时为null.
+     */
+    protected TimedValve[] timers = null;
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -168,15 +211,11 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         started = true;
 
         // Start the Valves in our pipeline (including the basic), if any
-        Valve current = first;
-        if (current == null) {
-        	current = basic;
-        }
-        while (current != null) {
-            if (current instanceof Lifecycle)
-                ((Lifecycle) current).start();
-            registerValve(current);
-        	current = current.getNext();
+        Valve[] valves = this.valves;
+        for (int i = 0; i < valves.length; i++) {
+            if (valves[i] instanceof Lifecycle)
+                ((Lifecycle) valves[i]).start();
+            registerValve(valves[i]);
         }
 
         // Notify our interested LifecycleListeners
@@ -207,15 +246,11 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         started = false;
 
         // Stop the Valves in our pipeline (including the basic), if any
-        Valve current = first;
-        if (current == null) {
-        	current = basic;
-        }
-        while (current != null) {
-            if (current instanceof Lifecycle)
-                ((Lifecycle) current).stop();
-            unregisterValve(current);
-        	current = current.getNext();
+        Valve[] valves = this.valves;
+        for (int i = 0; i < valves.length; i++) {
+            if (valves[i] instanceof Lifecycle)
+                ((Lifecycle) valves[i]).stop();
+            unregisterValve(valves[i]);
         }
 
         // Notify our interested LifecycleListeners
@@ -333,15 +368,8 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         }
 
         // Update the pipeline
-        Valve current = first;
-        while (current != null) {
-        	if (current.getNext() == oldBasic) {
-        		current.setNext(valve);
-        		break;
-        	}
-        	current = current.getNext();
-        }
         this.basic = valve;
+        rebuild();
     }
 
 
@@ -378,19 +406,12 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
         }
 
         // Add this Valve to the set associated with this Pipeline
-        if (first == null) {
-        	first = valve;
-        	valve.setNext(basic);
-        } else {
-            Valve current = first;
-            while (current != null) {
-				if (current.getNext() == basic) {
-					current.setNext(valve);
-					valve.setNext(basic);
-					break;
-				}
-				current = current.getNext();
-			}
+        synchronized (this) {
+            Valve[] results = new Valve[added.length + 1];
+            System.arraycopy(added, 0, results, 0, added.length);
+            results[added.length] = valve;
+            added = results;
+            rebuild();
         }
     }
 
@@ -400,31 +421,17 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
      * 如果没有, 返回一个零长度数组.
      */
     public Valve[] getValves() {
-
-    	ArrayList valveList = new ArrayList();
-        Valve current = first;
-        if (current == null) {
-        	current = basic;
-        }
-        while (current != null) {
-        	valveList.add(current);
-        	current = current.getNext();
-        }
-        return ((Valve[]) valveList.toArray(new Valve[0]));
+        return (valves.clone());
     }
 
     public ObjectName[] getValveObjectNames() {
 
     	ArrayList valveList = new ArrayList();
-        Valve current = first;
-        if (current == null) {
-        	current = basic;
-        }
-        while (current != null) {
-        	if (current instanceof ValveBase) {
-        		valveList.add(((ValveBase) current).getObjectName());
+        Valve[] valves = this.valves;
+        for (int i = 0; i < valves.length; i++) {
+        	if (valves[i] instanceof ValveBase) {
+        		valveList.add(((ValveBase) valves[i]).getObjectName());
         	}
-        	current = current.getNext();
         }
         return ((ObjectName[]) valveList.toArray(new ObjectName[0]));
     }
@@ -437,19 +444,21 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
      */
     public void removeValve(Valve valve) {
 
-        Valve current;
-        if(first == valve) {
-            first = first.getNext();
-            current = null;
-        } else {
-            current = first;
-        }
-        while (current != null) {
-            if (current.getNext() == valve) {
-                current.setNext(valve.getNext());
-                break;
+        synchronized (this) {
+            int n = -1;
+            for (int i = 0; i < added.length; i++) {
+                if (added[i] == valve) {
+                    n = i;
+                    break;
+                }
+            }
+            if (n >= 0) {
+                Valve[] results = new Valve[added.length - 1];
+                System.arraycopy(added, 0, results, 0, n);
+                System.arraycopy(added, n + 1, results, n, added.length - n - 1);
+                added = results;
+                rebuild();
             }
-            current = current.getNext();
         }
 
         if (valve instanceof Contained)
@@ -471,10 +480,185 @@ public class StandardPipeline implements Pipeline, Contained, Lifecycle {
 
 
     public Valve getFirst() {
-        if (first != null) {
-            return first;
-        } else {
-            return basic;
+        return entry;
+    }
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 是否记录每个Valve的时间.
+     */
+    public boolean isValveTiming() {
+        return valveTiming;
+    }
+
+
+    /**
+     * 启用或关闭每个Valve的计时. 重新启用时清除以前的统计.
+     *
+     * @param valveTiming 新的值
+     */
+    public synchronized void setValveTiming(boolean valveTiming) {
+        if (this.valveTiming == valveTiming)
+            return;
+        this.valveTiming = valveTiming;
+        this.timers = null;
+        rebuild();
+    }
+
+
+    /**
+     * 返回每个Valve的计时统计, 按调用顺序. 时间包括后面的Valve,
+     * <code>self</code>是扣除pipeline中下一个Valve之后的时间. 基础Valve的时间包括子容器.
+     */
+    public String[] getValveTimings() {
+        TimedValve[] timers = this.timers;
+        if (timers == null)
+            return new String[0];
+        String[] results = new String[timers.length];
+        for (int i = 0; i < timers.length; i++) {
+            long count = timers[i].count.get();
+            long total = timers[i].totalTime.get();
+            long self = total;
+            if (i + 1 < timers.length)
+                self -= timers[i + 1].totalTime.get();
+            StringBuffer sb = new StringBuffer();
+            sb.append(timers[i].target.getClass().getName());
+            sb.append(": count=").append(count);
+            sb.append(", total=").append(total / 1000000L).append("ms");
+            sb.append(", self=").append(Math.max(self, 0L) / 1000000L).append("ms");
+            sb.append(", max=").append(timers[i].maxTime / 1000L).append("us");
+            if (count > 0)
+                sb.append(", mean=").append(total / count / 1000L).append("us");
+            LatencyHistogram latency = timers[i].latency;
+            sb.append(", p50=").append(latency.getPercentile(50.0) / 1000L).append("us");
+            sb.append(", p99=").append(latency.getPercentile(99.0) / 1000L).append("us");
+            results[i] = sb.toString();
+        }
+        return results;
+    }
+
+
+    /**
+     * 清除每个Valve的计时统计.
+     */
+    public void resetValveTimings() {
+        TimedValve[] timers = this.timers;
+        if (timers == null)
+            return;
+        for (int i = 0; i < timers.length; i++) {
+            timers[i].reset();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 从<code>added</code>和<code>basic</code>重新构建Valve数组, 并重新设置每个Valve的
+     * <code>next</code>. 启用计时时, 已有的计时Valve被保留.
+     */
+    protected synchronized void rebuild() {
+
+        int n = added.length + ((basic != null) ? 1 : 0);
+        Valve[] results = new Valve[n];
+        System.arraycopy(added, 0, results, 0, added.length);
+        if (basic != null)
+            results[n - 1] = basic;
+
+        TimedValve[] newTimers = null;
+        if (valveTiming) {
+            newTimers = new TimedValve[n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; (timers != null) && (j < timers.length); j++) {
+                    if (timers[j].target == results[i]) {
+                        newTimers[i] = timers[j];
+                        break;
+                    }
+                }
+                if (newTimers[i] == null)
+                    newTimers[i] = new TimedValve(results[i]);
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            Valve next = null;
+            if (i + 1 < n)
+                next = (newTimers != null) ? newTimers[i + 1] : results[i + 1];
+            results[i].setNext(next);
+        }
+
+        this.timers = newTimers;
+        this.valves = results;
+        this.first = (added.length > 0) ? added[0] : null;
+        if (n == 0)
+            this.entry = null;
+        else
+            this.entry = (newTimers != null) ? newTimers[0] : results[0];
+    }
+
+
+    // ------------------------------------------------------ TimedValve Class
+
+
+    /**
+     * 记录被包装的Valve的调用次数和时间, 包括它后面的Valve.
+     */
+    protected static class TimedValve implements Valve {
+
+        protected Valve target;
+        protected AtomicLong count = new AtomicLong();
+        protected AtomicLong totalTime = new AtomicLong();
+        protected volatile long maxTime = 0L;
+        protected LatencyHistogram latency = new LatencyHistogram();
+
+        public TimedValve(Valve target) {
+            this.target = target;
+        }
+
+        public String getInfo() {
+            return target.getInfo();
+        }
+
+        public Valve getNext() {
+            return target.getNext();
+        }
+
+        public void setNext(Valve valve) {
+            target.setNext(valve);
+        }
+
+        public void backgroundProcess() {
+            target.backgroundProcess();
+        }
+
+        public void invoke(Request request, Response response)
+            throws IOException, ServletException {
+            long t1 = System.nanoTime();
+            try {
+                target.invoke(request, response);
+            } finally {
+                long time = System.nanoTime() - t1;
+                count.incrementAndGet();
+                totalTime.addAndGet(time);
+                if (time > maxTime)
+                    maxTime = time;
+                latency.record(time);
+            }
+        }
+
+        protected void reset() {
+            count.set(0L);
+            totalTime.set(0L);
+            maxTime = 0L;
+            latency.reset();
+        }
+
+        public String toString() {
+            return target.toString();
         }
     }
 }
@@ -1298,7 +1298,28 @@ public class StandardWrapper extends ContainerBase implements ServletConfig, Wra
      * 增加用于监视的错误计数.
      */
     public void incrementErrorCount(){
-        swValve.setErrorCount(swValve.getErrorCount() + 1);
+        swValve.incrementErrorCount();
+    }
+
+    /**
+     * 返回servlet调用的延迟分布摘要.
+     */
+    public String getLatencySummary() {
+        return swValve.getLatency().toString();
+    }
+
+    /**
+     * 返回servlet调用延迟的第99百分位数, 微秒.
+     */
+    public long getLatency99thPercentile() {
+        return swValve.getLatency().getPercentile(99.0) / 1000;
+    }
+
+    /**
+     * 清除servlet调用的延迟分布.
+     */
+    public void resetLatency() {
+        swValve.getLatency().reset();
     }
 
     public long getLoadTime() {
@@ -2,6 +2,8 @@ package org.apache.catalina.core;
 
 
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
@@ -15,6 +17,7 @@ import org.apache.catalina.Globals;
 import org.apache.catalina.connector.ClientAbortException;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.util.LatencyHistogram;
 import org.apache.catalina.util.StringManager;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.commons.logging.Log;
@@ -34,11 +37,18 @@ final class StandardWrapperValve extends ValveBase {
 
     //  一些JMX统计. 这个vavle 被关联到StandardWrapper.
     // We exponse the StandardWrapper as JMX ( j2eeType=Servlet ).这里的字段用于性能
-    private volatile long processingTime;
-    private volatile long maxTime;
-    private volatile long minTime = Long.MAX_VALUE;
-    private volatile int requestCount;
-    private volatile int errorCount;
+    // 纳秒, 累加之后再换算为毫秒, 不满1毫秒的请求也被计算在内
+    private AtomicLong processingTime = new AtomicLong();
+    private AtomicLong maxTime = new AtomicLong();
+    private AtomicLong minTime = new AtomicLong(Long.MAX_VALUE);
+    private AtomicInteger requestCount = new AtomicInteger();
+    private AtomicInteger errorCount = new AtomicInteger();
+
+
+    /**
+     * servlet调用的延迟分布.
+     */
+    private LatencyHistogram latency = new LatencyHistogram();
 
 
     /**
@@ -67,8 +77,8 @@ final class StandardWrapperValve extends ValveBase {
         boolean unavailable = false;
         Throwable throwable = null;
         // This should be a Request attribute...
-        long t1=System.currentTimeMillis();
-        requestCount++;
+        long t1=System.nanoTime();
+        requestCount.incrementAndGet();
         StandardWrapper wrapper = (StandardWrapper) getContainer();
         Servlet servlet = null;
         Context context = (Context) wrapper.getParent();
@@ -278,12 +288,17 @@ final class StandardWrapperValve extends ValveBase {
                 exception(request, response, e);
             }
         }
-        long t2=System.currentTimeMillis();
-
-        long time=t2-t1;
-        processingTime += time;
-        if( time > maxTime) maxTime=time;
-        if( time < minTime) minTime=time;
+        long t2=System.nanoTime();
+
+        latency.record(t2-t1);
+        processingTime.addAndGet(t2-t1);
+        long time=(t2-t1)/1000000L;
+        long current = maxTime.get();
+        while( time > current && !maxTime.compareAndSet(current, time))
+            current = maxTime.get();
+        current = minTime.get();
+        while( time < current && !minTime.compareAndSet(current, time))
+            current = minTime.get();
     }
 
 
@@ -303,43 +318,51 @@ final class StandardWrapperValve extends ValveBase {
     }
 
     public long getProcessingTime() {
-        return processingTime;
+        return processingTime.get() / 1000000L;
     }
 
     public void setProcessingTime(long processingTime) {
-        this.processingTime = processingTime;
+        this.processingTime.set(processingTime * 1000000L);
     }
 
     public long getMaxTime() {
-        return maxTime;
+        return maxTime.get();
     }
 
     public void setMaxTime(long maxTime) {
-        this.maxTime = maxTime;
+        this.maxTime.set(maxTime);
     }
 
     public long getMinTime() {
-        return minTime;
+        return minTime.get();
     }
 
     public void setMinTime(long minTime) {
-        this.minTime = minTime;
+        this.minTime.set(minTime);
     }
 
     public int getRequestCount() {
-        return requestCount;
+        return requestCount.get();
     }
 
     public void setRequestCount(int requestCount) {
-        this.requestCount = requestCount;
+        this.requestCount.set(requestCount);
     }
 
     public int getErrorCount() {
-        return errorCount;
+        return errorCount.get();
     }
 
     public void setErrorCount(int errorCount) {
-        this.errorCount = errorCount;
+        this.errorCount.set(errorCount);
+    }
+
+    public void incrementErrorCount() {
+        errorCount.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
     }
 
     // Don't register in JMX
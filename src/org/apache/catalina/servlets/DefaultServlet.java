@@ -2,6 +2,7 @@ package org.apache.catalina.servlets;
 
 
 import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -9,15 +10,26 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.WeakHashMap;
+import java.util.zip.GZIPOutputStream;
 
 import javax.naming.InitialContext;
 import javax.naming.NameClassPair;
@@ -31,6 +43,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.stream.StreamResult;
@@ -109,6 +122,33 @@ public class DefaultServlet extends HttpServlet {
     protected String readmeFile = null;
 
 
+    /**
+     * 已呈现的目录列表. 目录的CacheEntry -> RenderedListing.
+     * 弱引用的key使目录条目被资源缓存丢弃后, 列表也随之丢弃.
+     */
+    protected Map renderedListings =
+        Collections.synchronizedMap(new WeakHashMap());
+
+
+    /**
+     * 编译后的目录本地XSL模板. XSL文件的CacheEntry -> Templates.
+     */
+    protected Map localTemplates =
+        Collections.synchronizedMap(new WeakHashMap());
+
+
+    /**
+     * 编译后的全局XSL模板.
+     */
+    protected Templates globalTemplates = null;
+
+
+    /**
+     * <code>globalTemplates</code>编译时全局XSL文件的最后修改时间.
+     */
+    protected long globalXsltLastModified = -1L;
+
+
     /**
      * 代理目录上下文.
      */
@@ -127,6 +167,33 @@ public class DefaultServlet extends HttpServlet {
     protected int sendfileSize = 48 * 1024;
     
     
+    /**
+     * 是否向接受gzip的客户端发送压缩的变体.
+     */
+    protected boolean gzip = false;
+    
+    
+    /**
+     * 即时压缩的最小资源大小, in bytes.
+     */
+    protected int gzipMinSize = 1024;
+    
+    
+    /**
+     * 可以压缩的MIME类型.
+     */
+    protected HashSet gzipMimeTypes = new HashSet();
+    
+    
+    /**
+     * 默认可以压缩的MIME类型.
+     */
+    protected static final String DEFAULT_GZIP_MIME_TYPES =
+        "text/html,text/css,text/plain,text/xml,text/javascript,"
+        + "application/javascript,application/x-javascript,"
+        + "application/json,application/xml,image/svg+xml";
+    
+    
     // ----------------------------------------------------- Static Initializer
 
 
@@ -227,6 +294,26 @@ public class DefaultServlet extends HttpServlet {
         } catch (Throwable t) {
             ;
         }
+        try {
+            value = getServletConfig().getInitParameter("gzip");
+            if (value != null)
+                gzip = (new Boolean(value)).booleanValue();
+        } catch (Throwable t) {
+            ;
+        }
+        try {
+            value = getServletConfig().getInitParameter("gzipMinSize");
+            gzipMinSize = Integer.parseInt(value);
+        } catch (Throwable t) {
+            ;
+        }
+        value = getServletConfig().getInitParameter("gzipMimeTypes");
+        if (value == null)
+            value = DEFAULT_GZIP_MIME_TYPES;
+        StringTokenizer tokens = new StringTokenizer(value, ",");
+        while (tokens.hasMoreTokens()) {
+            gzipMimeTypes.add(tokens.nextToken().trim().toLowerCase());
+        }
 
         globalXsltFile = getServletConfig().getInitParameter("globalXsltFile");
         localXsltFile = getServletConfig().getInitParameter("localXsltFile");
@@ -581,6 +668,161 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 是否可以压缩指定的MIME类型.
+     *
+     * @param contentType 资源的内容类型, 可能包含参数
+     */
+    protected boolean isGzipMimeType(String contentType) {
+        if (contentType == null)
+            return false;
+        int semicolon = contentType.indexOf(';');
+        if (semicolon >= 0)
+            contentType = contentType.substring(0, semicolon);
+        return gzipMimeTypes.contains(contentType.trim().toLowerCase());
+    }
+
+
+    /**
+     * 客户端是否通过Accept-Encoding header接受gzip编码.
+     *
+     * @param request The servlet request we are processing
+     */
+    protected boolean acceptsGzip(HttpServletRequest request) {
+        Enumeration headers = request.getHeaders("Accept-Encoding");
+        while (headers.hasMoreElements()) {
+            StringTokenizer tokens =
+                new StringTokenizer((String) headers.nextElement(), ",");
+            while (tokens.hasMoreTokens()) {
+                String token = tokens.nextToken().trim();
+                String coding = token;
+                double quality = 1;
+                int semicolon = token.indexOf(';');
+                if (semicolon >= 0) {
+                    coding = token.substring(0, semicolon).trim();
+                    String param = token.substring(semicolon + 1).trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if ((coding.equalsIgnoreCase("gzip")
+                     || coding.equalsIgnoreCase("x-gzip")
+                     || coding.equals("*")) && (quality > 0)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * 返回指定资源的gzip变体, 如果没有返回<code>null</code>.
+     * <p>
+     * 首先查找不比原始资源旧的"&lt;path&gt;.gz"资源. 否则, 如果原始内容已经在缓存中,
+     * 压缩一次并把结果附加到原始缓存条目上, 同时增加条目在缓存中的大小.
+     * 原始条目被重新验证或者淘汰时, 变体随之丢弃.
+     *
+     * @param path 资源路径
+     * @param cacheEntry 原始资源的缓存条目
+     */
+    protected CacheEntry findGzipEntry(String path, CacheEntry cacheEntry) {
+
+        CacheEntry gzipEntry = resources.lookupCache(path + ".gz");
+        if (gzipEntry.exists && (gzipEntry.context == null)
+            && (gzipEntry.resource != null)
+            && (gzipEntry.attributes.getLastModified()
+                >= cacheEntry.attributes.getLastModified())) {
+            return gzipEntry;
+        }
+
+        if ((cacheEntry.resource == null)
+            || !cacheEntry.resource.isContentLoaded()
+            || (cacheEntry.attributes.getContentLength() < gzipMinSize)) {
+            return null;
+        }
+
+        synchronized (cacheEntry) {
+            gzipEntry = cacheEntry.gzipEntry;
+            if (gzipEntry == null) {
+                gzipEntry = compress(cacheEntry);
+                cacheEntry.gzipEntry = gzipEntry;
+                if ((gzipEntry.exists) && (resources.getCache() != null)) {
+                    resources.getCache().resize(cacheEntry, cacheEntry.size
+                        + (int) (gzipEntry.attributes.getContentLength() / 1024));
+                }
+            }
+        }
+        return gzipEntry.exists ? gzipEntry : null;
+
+    }
+
+
+    /**
+     * 压缩缓存条目的内容. 如果压缩失败或者没有减小大小,
+     * 返回的条目<code>exists</code>为<code>false</code>, 以免再次尝试.
+     *
+     * @param cacheEntry 原始资源的缓存条目
+     */
+    protected CacheEntry compress(CacheEntry cacheEntry) {
+
+        CacheEntry gzipEntry = new CacheEntry();
+        gzipEntry.name = cacheEntry.name + ".gz";
+        gzipEntry.exists = false;
+
+        long length = cacheEntry.attributes.getContentLength();
+        ByteArrayOutputStream buffer =
+            new ByteArrayOutputStream((int) (length / 4) + 64);
+        InputStream is = null;
+        try {
+            is = cacheEntry.resource.streamContent();
+            GZIPOutputStream gzos = new GZIPOutputStream(buffer, BUFFER_SIZE);
+            byte[] b = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = is.read(b)) >= 0) {
+                gzos.write(b, 0, n);
+            }
+            gzos.finish();
+        } catch (IOException e) {
+            return gzipEntry;
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                ;
+            }
+        }
+        if (buffer.size() >= length)
+            return gzipEntry;
+
+        ResourceAttributes attributes = new ResourceAttributes();
+        attributes.setName(gzipEntry.name);
+        attributes.setContentLength(buffer.size());
+        attributes.setLastModified(cacheEntry.attributes.getLastModified());
+        attributes.setMimeType(cacheEntry.attributes.getMimeType());
+        // 变体的ETag必须和原始内容的ETag不同
+        String eTag = getETag(cacheEntry.attributes);
+        if (eTag.endsWith("\""))
+            eTag = eTag.substring(0, eTag.length() - 1) + "-gzip\"";
+        else
+            eTag = eTag + "-gzip";
+        attributes.setETag(eTag);
+
+        gzipEntry.attributes = attributes;
+        gzipEntry.resource = new Resource(buffer.toByteArray());
+        gzipEntry.timestamp = cacheEntry.timestamp;
+        gzipEntry.size = 1 + (buffer.size() / 1024);
+        gzipEntry.exists = true;
+        return gzipEntry;
+
+    }
+
+
     /**
      * URL rewriter.
      *
@@ -669,12 +911,47 @@ public class DefaultServlet extends HttpServlet {
             }
         }
 
+        // Find content type.
+        String contentType = cacheEntry.attributes.getMimeType();
+        if (contentType == null) {
+            contentType = getServletContext().getMimeType(cacheEntry.name);
+            cacheEntry.attributes.setMimeType(contentType);
+        }
+
+        boolean included =
+            (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
+
+        ServletOutputStream ostream = null;
+        PrintWriter writer = null;
+
+        // 选择压缩的变体. 包含的资源不能设置header, 所以总是发送原始内容
+        if (gzip && !included && (cacheEntry.context == null)
+            && isGzipMimeType(contentType)) {
+            response.addHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(request)) {
+                boolean streamAvailable = true;
+                if (content) {
+                    // 压缩的内容不能通过Writer发送
+                    try {
+                        ostream = response.getOutputStream();
+                    } catch (IllegalStateException e) {
+                        streamAvailable = false;
+                    }
+                }
+                CacheEntry gzipEntry = null;
+                if (streamAvailable)
+                    gzipEntry = findGzipEntry(path, cacheEntry);
+                if (gzipEntry != null) {
+                    cacheEntry = gzipEntry;
+                    response.setHeader("Content-Encoding", "gzip");
+                }
+            }
+        }
+
         // 检查可选的IF标头中指定的条件是否满足.
         if (cacheEntry.context == null) {
 
             // Checking If headers
-            boolean included =
-                (request.getAttribute(Globals.INCLUDE_CONTEXT_PATH_ATTR) != null);
             if (!included
                 && !checkIfHeaders(request, response, cacheEntry.attributes)) {
                 return;
@@ -682,13 +959,6 @@ public class DefaultServlet extends HttpServlet {
 
         }
 
-        // Find content type.
-        String contentType = cacheEntry.attributes.getMimeType();
-        if (contentType == null) {
-            contentType = getServletContext().getMimeType(cacheEntry.name);
-            cacheEntry.attributes.setMimeType(contentType);
-        }
-
         Vector ranges = null;
         long contentLength = -1L;
 
@@ -723,10 +993,7 @@ public class DefaultServlet extends HttpServlet {
 
         }
 
-        ServletOutputStream ostream = null;
-        PrintWriter writer = null;
-
-        if (content) {
+        if (content && (ostream == null)) {
 
             // 试图检索servlet输出流
             try {
@@ -837,6 +1104,18 @@ public class DefaultServlet extends HttpServlet {
             } else {
                 response.setContentType("multipart/byteranges; boundary="
                                         + mimeSeparation);
+                byte[][] headers = null;
+                if (writer == null) {
+                    // 预先计算边界, 发送准确的长度, 避免分块编码
+                    headers = multipartHeaders(ranges, contentType);
+                    long length = multipartLength(ranges, headers);
+                    if (length < Integer.MAX_VALUE) {
+                        response.setContentLength((int) length);
+                    } else {
+                        // Set the content-length as String to be able to use a long
+                        response.setHeader("content-length", "" + length);
+                    }
+                }
                 if (content) {
                     try {
                         response.setBufferSize(output);
@@ -844,8 +1123,7 @@ public class DefaultServlet extends HttpServlet {
                         // Silent catch
                     }
                     if (ostream != null) {
-                        copy(cacheEntry, ostream, ranges.elements(),
-                             contentType);
+                        copy(cacheEntry, ostream, ranges, headers);
                     } else {
                         copy(cacheEntry, writer, ranges.elements(),
                              contentType);
@@ -1051,18 +1329,38 @@ public class DefaultServlet extends HttpServlet {
 
     /**
      * 返回InputStream 到该目录内容的HTML表示形式.
+     * <p>
+     * 呈现的结果附加在目录的缓存条目上, 直到资源缓存重新验证这个条目 (条目的时间戳改变)
+     * 或者淘汰它.
      */
     protected InputStream render
         (String contextPath, CacheEntry cacheEntry) {
-        InputStream xsltInputStream =
-            findXsltInputStream(cacheEntry.context);
 
-        if (xsltInputStream==null) {
-            return renderHtml(contextPath, cacheEntry);
-        } else {
-            return renderXml(contextPath, cacheEntry, xsltInputStream);
+        Templates templates = findXsltTemplates(cacheEntry);
+        RenderedListing listing =
+            (RenderedListing) renderedListings.get(cacheEntry);
+        if ((listing != null) && (listing.timestamp == cacheEntry.timestamp)
+            && (listing.templates == templates)
+            && (listing.contextPath.equals(contextPath))) {
+            return (new ByteArrayInputStream(listing.content));
         }
 
+        long timestamp = cacheEntry.timestamp;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if ((templates == null)
+            || !renderXml(contextPath, cacheEntry, templates, stream)) {
+            stream.reset();
+            renderHtml(contextPath, cacheEntry, stream);
+        }
+
+        listing = new RenderedListing();
+        listing.contextPath = contextPath;
+        listing.timestamp = timestamp;
+        listing.templates = templates;
+        listing.content = stream.toByteArray();
+        renderedListings.put(cacheEntry, listing);
+        return (new ByteArrayInputStream(listing.content));
+
     }
 
     /**
@@ -1074,20 +1372,77 @@ public class DefaultServlet extends HttpServlet {
                                     CacheEntry cacheEntry,
                                     InputStream xsltInputStream) {
 
-        StringBuffer sb = new StringBuffer();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            Templates templates = TransformerFactory.newInstance()
+                .newTemplates(new StreamSource(xsltInputStream));
+            if (renderXml(contextPath, cacheEntry, templates, stream))
+                return (new ByteArrayInputStream(stream.toByteArray()));
+        } catch (Exception e) {
+            log("directory transform failure: " + e.getMessage());
+        }
+        return renderHtml(contextPath, cacheEntry);
+    }
 
-        sb.append("<?xml version=\"1.0\"?>");
-        sb.append("<listing ");
-        sb.append(" contextPath='");
-        sb.append(contextPath);
-        sb.append("'");
-        sb.append(" directory='");
-        sb.append(cacheEntry.name);
-        sb.append("' ");
-        sb.append(" hasParent='").append(!cacheEntry.name.equals("/"));
-        sb.append("'>");
+    /**
+     * 使用编译后的XSL模板把这个目录的内容的XML表示转换到指定的输出流.
+     *
+     * @param contextPath 内部路径是相对的上下文路径
+     * @return <code>false</code>如果转换失败
+     */
+    protected boolean renderXml(String contextPath, CacheEntry cacheEntry,
+                                Templates templates, OutputStream stream) {
 
-        sb.append("<entries>");
+        // 目录的XML表示以UTF-8写入一个字节缓冲区, 不经过中间的字符串
+        ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(xml, "UTF8"));
+        } catch (Exception e) {
+            // Should never happen
+            writer = new BufferedWriter(new OutputStreamWriter(xml));
+        }
+
+        try {
+            writeXml(contextPath, cacheEntry, writer);
+            writer.flush();
+
+            Source xmlSource =
+                new StreamSource(new ByteArrayInputStream(xml.toByteArray()));
+            Transformer transformer = templates.newTransformer();
+            OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
+            StreamResult out = new StreamResult(osWriter);
+            transformer.transform(xmlSource, out);
+            osWriter.flush();
+            return true;
+        } catch (Exception e) {
+            log("directory transform failure: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 把这个目录的内容的XML表示写入指定的Writer.
+     *
+     * @param contextPath 内部路径是相对的上下文路径
+     */
+    protected void writeXml(String contextPath, CacheEntry cacheEntry,
+                            Writer writer)
+        throws IOException {
+
+        writer.append("<?xml version=\"1.0\"?>");
+        writer.append("<listing ");
+        writer.append(" contextPath='");
+        writer.append(contextPath);
+        writer.append("'");
+        writer.append(" directory='");
+        writer.append(cacheEntry.name);
+        writer.append("' ");
+        writer.append(" hasParent='")
+              .append(String.valueOf(!cacheEntry.name.equals("/")));
+        writer.append("'>");
+
+        writer.append("<entries>");
 
         try {
 
@@ -1110,29 +1465,29 @@ public class DefaultServlet extends HttpServlet {
                     continue;
                 }
 
-                sb.append("<entry");
-                sb.append(" type='")
+                writer.append("<entry");
+                writer.append(" type='")
                   .append((childCacheEntry.context != null)?"dir":"file")
                   .append("'");
-                sb.append(" urlPath='")
+                writer.append(" urlPath='")
                   .append(rewriteUrl(contextPath))
                   .append(rewriteUrl(cacheEntry.name + resourceName))
                   .append((childCacheEntry.context != null)?"/":"")
                   .append("'");
                 if (childCacheEntry.resource != null) {
-                    sb.append(" size='")
+                    writer.append(" size='")
                       .append(renderSize(childCacheEntry.attributes.getContentLength()))
                       .append("'");
                 }
-                sb.append(" date='")
+                writer.append(" date='")
                   .append(childCacheEntry.attributes.getLastModifiedHttp())
                   .append("'");
 
-                sb.append(">");
-                sb.append(trimmed);
+                writer.append(">");
+                writer.append(trimmed);
                 if (childCacheEntry.context != null)
-                    sb.append("/");
-                sb.append("</entry>");
+                    writer.append("/");
+                writer.append("</entry>");
 
             }
 
@@ -1141,36 +1496,18 @@ public class DefaultServlet extends HttpServlet {
             e.printStackTrace();
         }
 
-        sb.append("</entries>");
+        writer.append("</entries>");
 
         String readme = getReadme(cacheEntry.context);
 
         if (readme!=null) {
-            sb.append("<readme><![CDATA[");
-            sb.append(readme);
-            sb.append("]]></readme>");
+            writer.append("<readme><![CDATA[");
+            writer.append(readme);
+            writer.append("]]></readme>");
         }
 
 
-        sb.append("</listing>");
-
-
-        try {
-            TransformerFactory tFactory = TransformerFactory.newInstance();
-            Source xmlSource = new StreamSource(new StringReader(sb.toString()));
-            Source xslSource = new StreamSource(xsltInputStream);
-            Transformer transformer = tFactory.newTransformer(xslSource);
-
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            OutputStreamWriter osWriter = new OutputStreamWriter(stream, "UTF8");
-            StreamResult out = new StreamResult(osWriter);
-            transformer.transform(xmlSource, out);
-            osWriter.flush();
-            return (new ByteArrayInputStream(stream.toByteArray()));
-        } catch (Exception e) {
-            log("directory transform failure: " + e.getMessage());
-            return renderHtml(contextPath, cacheEntry);
-        }
+        writer.append("</listing>");
     }
 
     /**
@@ -1180,18 +1517,22 @@ public class DefaultServlet extends HttpServlet {
      */
     protected InputStream renderHtml
         (String contextPath, CacheEntry cacheEntry) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        renderHtml(contextPath, cacheEntry, stream);
+        return (new ByteArrayInputStream(stream.toByteArray()));
+    }
 
-        String name = cacheEntry.name;
+    /**
+     * 把这个目录的内容的HTML表示以UTF-8写入指定的输出流.
+     *
+     * @param contextPath 内部路径是相对的上下文路径
+     */
+    protected void renderHtml
+        (String contextPath, CacheEntry cacheEntry, OutputStream stream) {
 
-        // Number of characters to trim from the beginnings of filenames
-        int trim = name.length();
-        if (!name.endsWith("/"))
-            trim += 1;
-        if (name.equals("/"))
-            trim = 1;
+        String name = cacheEntry.name;
 
-        // Prepare a writer to a buffered area
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        // Prepare a writer to the stream
         OutputStreamWriter osWriter = null;
         try {
             osWriter = new OutputStreamWriter(stream, "UTF8");
@@ -1199,23 +1540,21 @@ public class DefaultServlet extends HttpServlet {
             // Should never happen
             osWriter = new OutputStreamWriter(stream);
         }
-        PrintWriter writer = new PrintWriter(osWriter);
-
-        StringBuffer sb = new StringBuffer();
+        PrintWriter writer = new PrintWriter(new BufferedWriter(osWriter));
 
         // Render the page header
-        sb.append("<html>\r\n");
-        sb.append("<head>\r\n");
-        sb.append("<title>");
-        sb.append(sm.getString("directory.title", name));
-        sb.append("</title>\r\n");
-        sb.append("<STYLE><!--");
-        sb.append(org.apache.catalina.util.TomcatCSS.TOMCAT_CSS);
-        sb.append("--></STYLE> ");
-        sb.append("</head>\r\n");
-        sb.append("<body>");
-        sb.append("<h1>");
-        sb.append(sm.getString("directory.title", name));
+        writer.append("<html>\r\n");
+        writer.append("<head>\r\n");
+        writer.append("<title>");
+        writer.append(sm.getString("directory.title", name));
+        writer.append("</title>\r\n");
+        writer.append("<STYLE><!--");
+        writer.append(org.apache.catalina.util.TomcatCSS.TOMCAT_CSS);
+        writer.append("--></STYLE> ");
+        writer.append("</head>\r\n");
+        writer.append("<body>");
+        writer.append("<h1>");
+        writer.append(sm.getString("directory.title", name));
 
         // Render the link to our parent (if required)
         String parentDirectory = name;
@@ -1226,38 +1565,38 @@ public class DefaultServlet extends HttpServlet {
         int slash = parentDirectory.lastIndexOf('/');
         if (slash >= 0) {
             String parent = name.substring(0, slash);
-            sb.append(" - <a href=\"");
-            sb.append(rewriteUrl(contextPath));
+            writer.append(" - <a href=\"");
+            writer.append(rewriteUrl(contextPath));
             if (parent.equals(""))
                 parent = "/";
-            sb.append(rewriteUrl(parent));
+            writer.append(rewriteUrl(parent));
             if (!parent.endsWith("/"))
-                sb.append("/");
-            sb.append("\">");
-            sb.append("<b>");
-            sb.append(sm.getString("directory.parent", parent));
-            sb.append("</b>");
-            sb.append("</a>");
+                writer.append("/");
+            writer.append("\">");
+            writer.append("<b>");
+            writer.append(sm.getString("directory.parent", parent));
+            writer.append("</b>");
+            writer.append("</a>");
         }
 
-        sb.append("</h1>");
-        sb.append("<HR size=\"1\" noshade=\"noshade\">");
+        writer.append("</h1>");
+        writer.append("<HR size=\"1\" noshade=\"noshade\">");
 
-        sb.append("<table width=\"100%\" cellspacing=\"0\"" +
+        writer.append("<table width=\"100%\" cellspacing=\"0\"" +
                      " cellpadding=\"5\" align=\"center\">\r\n");
 
         // Render the column headings
-        sb.append("<tr>\r\n");
-        sb.append("<td align=\"left\"><font size=\"+1\"><strong>");
-        sb.append(sm.getString("directory.filename"));
-        sb.append("</strong></font></td>\r\n");
-        sb.append("<td align=\"center\"><font size=\"+1\"><strong>");
-        sb.append(sm.getString("directory.size"));
-        sb.append("</strong></font></td>\r\n");
-        sb.append("<td align=\"right\"><font size=\"+1\"><strong>");
-        sb.append(sm.getString("directory.lastModified"));
-        sb.append("</strong></font></td>\r\n");
-        sb.append("</tr>");
+        writer.append("<tr>\r\n");
+        writer.append("<td align=\"left\"><font size=\"+1\"><strong>");
+        writer.append(sm.getString("directory.filename"));
+        writer.append("</strong></font></td>\r\n");
+        writer.append("<td align=\"center\"><font size=\"+1\"><strong>");
+        writer.append(sm.getString("directory.size"));
+        writer.append("</strong></font></td>\r\n");
+        writer.append("<td align=\"right\"><font size=\"+1\"><strong>");
+        writer.append(sm.getString("directory.lastModified"));
+        writer.append("</strong></font></td>\r\n");
+        writer.append("</tr>");
 
         try {
             // Render the directory entries within this directory
@@ -1279,37 +1618,37 @@ public class DefaultServlet extends HttpServlet {
                     continue;
                 }
 
-                sb.append("<tr");
+                writer.append("<tr");
                 if (shade)
-                    sb.append(" bgcolor=\"#eeeeee\"");
-                sb.append(">\r\n");
+                    writer.append(" bgcolor=\"#eeeeee\"");
+                writer.append(">\r\n");
                 shade = !shade;
 
-                sb.append("<td align=\"left\">&nbsp;&nbsp;\r\n");
-                sb.append("<a href=\"");
-                sb.append(rewriteUrl(contextPath));
+                writer.append("<td align=\"left\">&nbsp;&nbsp;\r\n");
+                writer.append("<a href=\"");
+                writer.append(rewriteUrl(contextPath));
                 resourceName = rewriteUrl(name + resourceName);
-                sb.append(resourceName);
+                writer.append(resourceName);
                 if (childCacheEntry.context != null)
-                    sb.append("/");
-                sb.append("\"><tt>");
-                sb.append(trimmed);
+                    writer.append("/");
+                writer.append("\"><tt>");
+                writer.append(trimmed);
                 if (childCacheEntry.context != null)
-                    sb.append("/");
-                sb.append("</tt></a></td>\r\n");
+                    writer.append("/");
+                writer.append("</tt></a></td>\r\n");
 
-                sb.append("<td align=\"right\"><tt>");
+                writer.append("<td align=\"right\"><tt>");
                 if (childCacheEntry.context != null)
-                    sb.append("&nbsp;");
+                    writer.append("&nbsp;");
                 else
-                    sb.append(renderSize(childCacheEntry.attributes.getContentLength()));
-                sb.append("</tt></td>\r\n");
+                    writer.append(renderSize(childCacheEntry.attributes.getContentLength()));
+                writer.append("</tt></td>\r\n");
 
-                sb.append("<td align=\"right\"><tt>");
-                sb.append(childCacheEntry.attributes.getLastModifiedHttp());
-                sb.append("</tt></td>\r\n");
+                writer.append("<td align=\"right\"><tt>");
+                writer.append(childCacheEntry.attributes.getLastModifiedHttp());
+                writer.append("</tt></td>\r\n");
 
-                sb.append("</tr>\r\n");
+                writer.append("</tr>\r\n");
             }
         } catch (NamingException e) {
             // Something went wrong
@@ -1317,24 +1656,21 @@ public class DefaultServlet extends HttpServlet {
         }
 
         // Render the page footer
-        sb.append("</table>\r\n");
+        writer.append("</table>\r\n");
 
-        sb.append("<HR size=\"1\" noshade=\"noshade\">");
+        writer.append("<HR size=\"1\" noshade=\"noshade\">");
 
         String readme = getReadme(cacheEntry.context);
         if (readme!=null) {
-            sb.append(readme);
-            sb.append("<HR size=\"1\" noshade=\"noshade\">");
+            writer.append(readme);
+            writer.append("<HR size=\"1\" noshade=\"noshade\">");
         }
 
-        sb.append("<h3>").append(ServerInfo.getServerInfo()).append("</h3>");
-        sb.append("</body>\r\n");
-        sb.append("</html>\r\n");
+        writer.append("<h3>").append(ServerInfo.getServerInfo()).append("</h3>");
+        writer.append("</body>\r\n");
+        writer.append("</html>\r\n");
 
-        // 将输入流返回到底层字节
-        writer.write(sb.toString());
         writer.flush();
-        return (new ByteArrayInputStream(stream.toByteArray()));
     }
 
 
@@ -1429,6 +1765,55 @@ public class DefaultServlet extends HttpServlet {
         return null;
     }
 
+    /**
+     * 返回目录列表使用的编译后的XSL模板, 如果没有配置, 返回<code>null</code>.
+     * 本地模板和目录中的XSL文件的缓存条目关联, 全局模板在文件修改后重新编译.
+     */
+    protected Templates findXsltTemplates(CacheEntry cacheEntry) {
+
+        if (localXsltFile != null) {
+            String name = cacheEntry.name;
+            if (!name.endsWith("/"))
+                name = name + "/";
+            CacheEntry xsltEntry = resources.lookupCache(name + localXsltFile);
+            if (xsltEntry.exists && (xsltEntry.resource != null)) {
+                Templates templates = (Templates) localTemplates.get(xsltEntry);
+                if (templates != null)
+                    return templates;
+                try {
+                    templates = TransformerFactory.newInstance().newTemplates
+                        (new StreamSource(xsltEntry.resource.streamContent()));
+                    localTemplates.put(xsltEntry, templates);
+                    return templates;
+                } catch (Exception e) {
+                    log("directory transform failure: " + e.getMessage());
+                }
+            }
+        }
+
+        if (globalXsltFile != null) {
+            File f = new File(globalXsltFile);
+            if (f.exists()) {
+                synchronized (this) {
+                    long lastModified = f.lastModified();
+                    if ((globalTemplates == null)
+                        || (lastModified != globalXsltLastModified)) {
+                        try {
+                            globalTemplates = TransformerFactory.newInstance()
+                                .newTemplates(new StreamSource(f));
+                            globalXsltLastModified = lastModified;
+                        } catch (Exception e) {
+                            log("directory transform failure: " + e.getMessage());
+                            globalTemplates = null;
+                        }
+                    }
+                    return globalTemplates;
+                }
+            }
+        }
+        return null;
+    }
+
     // -------------------------------------------------------- Private Methods
 
     /**
@@ -1440,7 +1825,7 @@ public class DefaultServlet extends HttpServlet {
                                   long length, Range range) {
         if ((sendfileSize > 0)
             && (entry.resource != null)
-            && ((length > sendfileSize) || (entry.resource.getContent() == null))
+            && ((length > sendfileSize) || (!entry.resource.isContentLoaded()))
             && (entry.attributes.getCanonicalPath() != null)
             && (Boolean.TRUE == request.getAttribute("org.apache.tomcat.sendfile.support"))
             && (request.getClass().getName().equals("org.apache.catalina.connector.RequestFacade"))
@@ -1649,6 +2034,11 @@ public class DefaultServlet extends HttpServlet {
                 ostream.write(buffer, 0, buffer.length);
                 return;
             }
+            ByteBuffer content = cacheEntry.resource.getBufferContent();
+            if (content != null) {
+                copyBuffer(content, ostream, 0, content.limit() - 1);
+                return;
+            }
             resourceInputStream = cacheEntry.resource.streamContent();
         } else {
             resourceInputStream = is;
@@ -1734,6 +2124,12 @@ public class DefaultServlet extends HttpServlet {
 
         IOException exception = null;
 
+        ByteBuffer content = cacheEntry.resource.getBufferContent();
+        if (content != null) {
+            copyBuffer(content, ostream, range.start, range.end);
+            return;
+        }
+
         InputStream resourceInputStream = cacheEntry.resource.streamContent();
         InputStream istream =
             new BufferedInputStream(resourceInputStream, input);
@@ -1793,53 +2189,155 @@ public class DefaultServlet extends HttpServlet {
 
 
     /**
-     * 将指定输入流的内容复制到指定的输出流, 并确保在返回之前关闭两个流
-     * (即使面对一个异常).
+     * 返回multipart/byteranges响应中每个部分的MIME header, 以及最后的结束边界.
+     * 结果的长度比范围的数量多一.
      *
-     * @param resourceInfo The ResourceInfo object
-     * @param ostream The output stream to write to
-     * @param ranges Enumeration of the ranges the client wanted to retrieve
-     * @param contentType Content type of the resource
-     * @exception IOException if an input/output error occurs
+     * @param ranges 客户端请求的范围
+     * @param contentType 资源的内容类型
      */
-    private void copy(CacheEntry cacheEntry, ServletOutputStream ostream,
-                      Enumeration ranges, String contentType)
-        throws IOException {
+    private byte[][] multipartHeaders(Vector ranges, String contentType) {
 
-        IOException exception = null;
+        byte[][] headers = new byte[ranges.size() + 1][];
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = (Range) ranges.elementAt(i);
+            StringBuffer header = new StringBuffer();
+            header.append("\r\n--").append(mimeSeparation).append("\r\n");
+            if (contentType != null)
+                header.append("Content-Type: ").append(contentType)
+                    .append("\r\n");
+            header.append("Content-Range: bytes ").append(range.start)
+                .append('-').append(range.end).append('/')
+                .append(range.length).append("\r\n\r\n");
+            headers[i] = toBytes(header.toString());
+        }
+        headers[ranges.size()] = toBytes("\r\n--" + mimeSeparation + "--");
+        return headers;
 
-        while ( (exception == null) && (ranges.hasMoreElements()) ) {
+    }
 
-            InputStream resourceInputStream = cacheEntry.resource.streamContent();
-            InputStream istream =
-                new BufferedInputStream(resourceInputStream, input);
 
-            Range currentRange = (Range) ranges.nextElement();
+    /**
+     * 按照<code>ServletOutputStream.print()</code>的方式把字符串转换为字节.
+     */
+    private static byte[] toBytes(String s) {
+        byte[] result = new byte[s.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) s.charAt(i);
+        }
+        return result;
+    }
 
-            // Writing MIME header.
-            ostream.println();
-            ostream.println("--" + mimeSeparation);
-            if (contentType != null)
-                ostream.println("Content-Type: " + contentType);
-            ostream.println("Content-Range: bytes " + currentRange.start
-                           + "-" + currentRange.end + "/"
-                           + currentRange.length);
-            ostream.println();
 
-            // Printing content
-            exception = copyRange(istream, ostream, currentRange.start,
-                                  currentRange.end);
+    /**
+     * 返回multipart/byteranges响应体的准确长度.
+     *
+     * @param ranges 客户端请求的范围
+     * @param headers <code>multipartHeaders()</code>的结果
+     */
+    private long multipartLength(Vector ranges, byte[][] headers) {
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = (Range) ranges.elementAt(i);
+            length += headers[i].length + (range.end - range.start + 1);
+        }
+        return length + headers[ranges.size()].length;
+    }
+
+
+    /**
+     * 将资源的多个范围作为multipart/byteranges响应体写入输出流.
+     * <p>
+     * 缓存在内存中的内容直接从数组或缓冲区写出. 有规范路径的文件只打开一次,
+     * 每个部分使用<code>FileChannel.transferTo()</code>; 其它资源每个部分重新打开一次流.
+     *
+     * @param cacheEntry 资源的缓存条目
+     * @param ostream The output stream to write to
+     * @param ranges 客户端请求的范围
+     * @param headers <code>multipartHeaders()</code>的结果
+     * @exception IOException if an input/output error occurs
+     */
+    private void copy(CacheEntry cacheEntry, ServletOutputStream ostream,
+                      Vector ranges, byte[][] headers)
+        throws IOException {
 
+        IOException exception = null;
+
+        byte[] binaryContent = cacheEntry.resource.getContent();
+        ByteBuffer content = cacheEntry.resource.getBufferContent();
+        // 只有完整加载的内容才能按偏移量直接访问
+        long contentLength = cacheEntry.attributes.getContentLength();
+        if ((binaryContent != null) && (binaryContent.length != contentLength))
+            binaryContent = null;
+        if ((content != null) && (content.limit() != contentLength))
+            content = null;
+        String canonicalPath = cacheEntry.attributes.getCanonicalPath();
+        RandomAccessFile file = null;
+        FileChannel channel = null;
+        WritableByteChannel target = null;
+        if ((binaryContent == null) && (content == null)
+            && (canonicalPath != null)) {
             try {
-                istream.close();
-            } catch (Throwable t) {
-                ;
+                file = new RandomAccessFile(canonicalPath, "r");
+                channel = file.getChannel();
+                target = Channels.newChannel(ostream);
+            } catch (IOException e) {
+                // 使用流
+                channel = null;
             }
+        }
 
+        try {
+            for (int i = 0; (exception == null) && (i < ranges.size()); i++) {
+
+                Range currentRange = (Range) ranges.elementAt(i);
+                long length = currentRange.end - currentRange.start + 1;
+
+                // Writing MIME header.
+                ostream.write(headers[i]);
+
+                // Printing content
+                if (binaryContent != null) {
+                    ostream.write(binaryContent, (int) currentRange.start,
+                                  (int) length);
+                } else if (content != null) {
+                    copyBuffer(content, ostream, currentRange.start,
+                               currentRange.end);
+                } else if (channel != null) {
+                    long position = currentRange.start;
+                    while (length > 0) {
+                        long n = channel.transferTo(position, length, target);
+                        if (n <= 0)
+                            throw new IOException("EOF");
+                        position += n;
+                        length -= n;
+                    }
+                } else {
+                    InputStream istream = new BufferedInputStream
+                        (cacheEntry.resource.streamContent(), input);
+                    exception = copyRange(istream, ostream, currentRange.start,
+                                          currentRange.end);
+                    try {
+                        istream.close();
+                    } catch (Throwable t) {
+                        ;
+                    }
+                }
+
+            }
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (Throwable t) {
+                    ;
+                }
+            }
         }
 
-        ostream.println();
-        ostream.print("--" + mimeSeparation + "--");
+        if (exception == null)
+            ostream.write(headers[ranges.size()]);
 
         // Rethrow any exception that has occurred
         if (exception != null)
@@ -1848,6 +2346,37 @@ public class DefaultServlet extends HttpServlet {
     }
 
 
+    /**
+     * 将堆外缓存内容的指定范围写入输出流. 内容经过一个<code>output</code>大小的缓冲区分块写出,
+     * 不会在堆中复制整个资源.
+     *
+     * @param content 资源内容, 调用者不再使用它的位置
+     * @param ostream 要写入的输出流
+     * @param start 起始偏移量
+     * @param end 结束偏移量 (包含)
+     * @exception IOException if an input/output error occurs
+     */
+    private void copyBuffer(ByteBuffer content, ServletOutputStream ostream,
+                            long start, long end)
+        throws IOException {
+
+        if (end >= content.limit())
+            end = content.limit() - 1;
+        if (start > end)
+            return;
+        ByteBuffer view = content.duplicate();
+        view.limit((int) end + 1);
+        view.position((int) start);
+        byte buffer[] = new byte[Math.min(output, view.remaining())];
+        while (view.hasRemaining()) {
+            int len = Math.min(buffer.length, view.remaining());
+            view.get(buffer, 0, len);
+            ostream.write(buffer, 0, len);
+        }
+
+    }
+
+
     /**
      * 将指定输入流的内容复制到指定的输出流, 并确保在返回之前关闭两个流
      * (即使面对一个异常).
@@ -2065,6 +2594,22 @@ public class DefaultServlet extends HttpServlet {
 
 
 
+    // -------------------------------------------- RenderedListing Inner Class
+
+
+    /**
+     * 一个已呈现的目录列表.
+     */
+    protected static class RenderedListing {
+
+        public String contextPath;
+        public long timestamp;
+        public Templates templates;
+        public byte[] content;
+
+    }
+
+
     // ------------------------------------------------------ Range Inner Class
 
 
@@ -0,0 +1,389 @@
+package org.apache.catalina.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * 紧凑的二进制<b>SessionCodec</b>实现类.
+ * <p>
+ * 会话的字段和属性名称直接写入<code>DataOutputStream</code>. 属性值如果是String, 基本类型的包装类,
+ * <code>byte[]</code>, 或只包含这些类型的<code>ArrayList</code>, <code>HashSet</code>, <code>HashMap</code>,
+ * 使用带类型标记的二进制格式; 其它可序列化的值使用Java序列化. 每个使用Java序列化的值是独立的,
+ * 因此不同属性之间对同一个可变对象的共享引用在恢复后不再共享.
+ * <p>
+ * 读取时, 如果数据不是以这个格式的标记开始, 按照Java序列化格式读取,
+ * 因此可以直接在已有数据的Store上启用这个编解码器.
+ */
+public class BinarySessionCodec implements SessionCodec {
+
+
+    // ----------------------------------------------------- Constants
+
+
+    /**
+     * 格式标记. Java序列化的数据总是以0xACED开始.
+     */
+    protected static final int MAGIC = 0x53455331;
+
+    protected static final byte TYPE_STRING = 1;
+    protected static final byte TYPE_LONG_STRING = 2;
+    protected static final byte TYPE_INTEGER = 3;
+    protected static final byte TYPE_LONG = 4;
+    protected static final byte TYPE_BOOLEAN = 5;
+    protected static final byte TYPE_DOUBLE = 6;
+    protected static final byte TYPE_FLOAT = 7;
+    protected static final byte TYPE_SHORT = 8;
+    protected static final byte TYPE_BYTE = 9;
+    protected static final byte TYPE_CHARACTER = 10;
+    protected static final byte TYPE_BYTES = 11;
+    protected static final byte TYPE_ARRAY_LIST = 12;
+    protected static final byte TYPE_HASH_SET = 13;
+    protected static final byte TYPE_HASH_MAP = 14;
+    protected static final byte TYPE_SERIALIZED = 15;
+    protected static final byte TYPE_NULL = 16;
+
+    /**
+     * 可以用<code>writeUTF()</code>写入的最大字符数.
+     */
+    private static final int MAX_UTF_CHARS = 65535 / 3;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 读取Java序列化格式的数据时使用的编解码器.
+     */
+    protected JavaSessionCodec javaCodec = new JavaSessionCodec();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 以二进制格式写入会话.
+     *
+     * @param session 要写入的会话
+     * @param stream 输出流
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeSession(StandardSession session, OutputStream stream)
+        throws IOException {
+
+        DataOutputStream dos =
+            new DataOutputStream(new BufferedOutputStream(stream));
+        dos.writeInt(MAGIC);
+        dos.writeLong(session.creationTime);
+        dos.writeLong(session.lastAccessedTime);
+        dos.writeInt(session.maxInactiveInterval);
+        dos.writeBoolean(session.isNew);
+        dos.writeBoolean(session.isValid);
+        dos.writeLong(session.thisAccessedTime);
+        dos.writeUTF(session.id);
+
+        // 先写入缓冲区, 跳过无法序列化的属性后再写入属性计数
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream attributes = new DataOutputStream(buffer);
+        int n = 0;
+        String keys[] = session.keys();
+        for (int i = 0; i < keys.length; i++) {
+            Object value = session.attributes.get(keys[i]);
+            if (value == null)
+                continue;
+            if (!(value instanceof Serializable) || session.exclude(keys[i])) {
+                session.removeAttributeInternal(keys[i], true);
+                continue;
+            }
+            byte encoded[] = null;
+            try {
+                encoded = encode(value);
+            } catch (NotSerializableException e) {
+                session.getManager().getContainer().getLogger().warn
+                    (StandardSession.sm.getString("standardSession.notSerializable",
+                     keys[i], session.id), e);
+                continue;
+            }
+            attributes.writeUTF(keys[i]);
+            attributes.write(encoded);
+            n++;
+        }
+        attributes.flush();
+        dos.writeInt(n);
+        buffer.writeTo(dos);
+        dos.flush();
+    }
+
+
+    /**
+     * 读取二进制格式的会话, 或者Java序列化格式的会话.
+     *
+     * @param session 要读入的空会话
+     * @param stream 输入流
+     * @param classLoader 用于加载属性类的类加载器, 或<code>null</code>
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void readSession(StandardSession session, InputStream stream,
+                            ClassLoader classLoader)
+        throws ClassNotFoundException, IOException {
+
+        BufferedInputStream bis = new BufferedInputStream(stream);
+        bis.mark(4);
+        DataInputStream dis = new DataInputStream(bis);
+        if (dis.readInt() != MAGIC) {
+            bis.reset();
+            javaCodec.readSession(session, bis, classLoader);
+            return;
+        }
+
+        session.authType = null;
+        session.creationTime = dis.readLong();
+        session.lastAccessedTime = dis.readLong();
+        session.maxInactiveInterval = dis.readInt();
+        session.isNew = dis.readBoolean();
+        session.isValid = dis.readBoolean();
+        session.thisAccessedTime = dis.readLong();
+        session.principal = null;
+        session.id = dis.readUTF();
+
+        int n = dis.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = dis.readUTF();
+            session.attributes.put(name, readValue(dis, classLoader));
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 编码一个属性值, 包括类型标记.
+     *
+     * @exception NotSerializableException 如果值或者它引用的对象不可序列化
+     */
+    protected byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        if (!writeSimple(dos, value) && !writeCollection(dos, value)) {
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(serialized);
+            oos.writeObject(value);
+            oos.close();
+            dos.writeByte(TYPE_SERIALIZED);
+            dos.writeInt(serialized.size());
+            serialized.writeTo(dos);
+        }
+        dos.flush();
+        return (bos.toByteArray());
+    }
+
+
+    /**
+     * 如果值的类型有二进制格式 (集合除外), 写入它并返回<code>true</code>.
+     */
+    protected boolean writeSimple(DataOutputStream dos, Object value)
+        throws IOException {
+
+        if (value == null) {
+            dos.writeByte(TYPE_NULL);
+            return (true);
+        }
+        Class clazz = value.getClass();
+        if (clazz == String.class) {
+            String s = (String) value;
+            if (s.length() <= MAX_UTF_CHARS) {
+                dos.writeByte(TYPE_STRING);
+                dos.writeUTF(s);
+            } else {
+                dos.writeByte(TYPE_LONG_STRING);
+                dos.writeInt(s.length());
+                dos.writeChars(s);
+            }
+        } else if (clazz == Integer.class) {
+            dos.writeByte(TYPE_INTEGER);
+            dos.writeInt(((Integer) value).intValue());
+        } else if (clazz == Long.class) {
+            dos.writeByte(TYPE_LONG);
+            dos.writeLong(((Long) value).longValue());
+        } else if (clazz == Boolean.class) {
+            dos.writeByte(TYPE_BOOLEAN);
+            dos.writeBoolean(((Boolean) value).booleanValue());
+        } else if (clazz == Double.class) {
+            dos.writeByte(TYPE_DOUBLE);
+            dos.writeDouble(((Double) value).doubleValue());
+        } else if (clazz == Float.class) {
+            dos.writeByte(TYPE_FLOAT);
+            dos.writeFloat(((Float) value).floatValue());
+        } else if (clazz == Short.class) {
+            dos.writeByte(TYPE_SHORT);
+            dos.writeShort(((Short) value).shortValue());
+        } else if (clazz == Byte.class) {
+            dos.writeByte(TYPE_BYTE);
+            dos.writeByte(((Byte) value).byteValue());
+        } else if (clazz == Character.class) {
+            dos.writeByte(TYPE_CHARACTER);
+            dos.writeChar(((Character) value).charValue());
+        } else if (clazz == byte[].class) {
+            byte bytes[] = (byte[]) value;
+            dos.writeByte(TYPE_BYTES);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        } else {
+            return (false);
+        }
+        return (true);
+    }
+
+
+    /**
+     * 如果值是只包含简单类型的<code>ArrayList</code>, <code>HashSet</code>或<code>HashMap</code>,
+     * 写入它并返回<code>true</code>. 其它集合 (包括子类和嵌套的集合) 使用Java序列化.
+     */
+    protected boolean writeCollection(DataOutputStream dos, Object value)
+        throws IOException {
+
+        Class clazz = value.getClass();
+        byte type = 0;
+        Collection elements = null;
+        if (clazz == ArrayList.class) {
+            type = TYPE_ARRAY_LIST;
+            elements = (Collection) value;
+        } else if (clazz == HashSet.class) {
+            type = TYPE_HASH_SET;
+            elements = (Collection) value;
+        } else if (clazz == HashMap.class) {
+            type = TYPE_HASH_MAP;
+        } else {
+            return (false);
+        }
+
+        // 先写入缓冲区, 遇到不支持的元素时放弃
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream body = new DataOutputStream(bos);
+        int size = 0;
+        if (elements != null) {
+            Iterator iter = elements.iterator();
+            while (iter.hasNext()) {
+                if (!writeSimple(body, iter.next()))
+                    return (false);
+                size++;
+            }
+        } else {
+            Iterator iter = ((Map) value).entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry entry = (Map.Entry) iter.next();
+                if (!writeSimple(body, entry.getKey())
+                        || !writeSimple(body, entry.getValue()))
+                    return (false);
+                size++;
+            }
+        }
+        body.flush();
+        dos.writeByte(type);
+        dos.writeInt(size);
+        bos.writeTo(dos);
+        return (true);
+    }
+
+
+    /**
+     * 读取一个带类型标记的值.
+     */
+    protected Object readValue(DataInputStream dis, ClassLoader classLoader)
+        throws ClassNotFoundException, IOException {
+
+        byte type = dis.readByte();
+        switch (type) {
+        case TYPE_NULL:
+            return (null);
+        case TYPE_STRING:
+            return (dis.readUTF());
+        case TYPE_LONG_STRING: {
+            char chars[] = new char[dis.readInt()];
+            for (int i = 0; i < chars.length; i++)
+                chars[i] = dis.readChar();
+            return (new String(chars));
+        }
+        case TYPE_INTEGER:
+            return (new Integer(dis.readInt()));
+        case TYPE_LONG:
+            return (new Long(dis.readLong()));
+        case TYPE_BOOLEAN:
+            return (dis.readBoolean() ? Boolean.TRUE : Boolean.FALSE);
+        case TYPE_DOUBLE:
+            return (new Double(dis.readDouble()));
+        case TYPE_FLOAT:
+            return (new Float(dis.readFloat()));
+        case TYPE_SHORT:
+            return (new Short(dis.readShort()));
+        case TYPE_BYTE:
+            return (new Byte(dis.readByte()));
+        case TYPE_CHARACTER:
+            return (new Character(dis.readChar()));
+        case TYPE_BYTES: {
+            byte bytes[] = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            return (bytes);
+        }
+        case TYPE_ARRAY_LIST: {
+            int size = dis.readInt();
+            ArrayList list = new ArrayList(size);
+            for (int i = 0; i < size; i++)
+                list.add(readValue(dis, classLoader));
+            return (list);
+        }
+        case TYPE_HASH_SET: {
+            int size = dis.readInt();
+            HashSet set = new HashSet();
+            for (int i = 0; i < size; i++)
+                set.add(readValue(dis, classLoader));
+            return (set);
+        }
+        case TYPE_HASH_MAP: {
+            int size = dis.readInt();
+            HashMap map = new HashMap();
+            for (int i = 0; i < size; i++) {
+                Object key = readValue(dis, classLoader);
+                map.put(key, readValue(dis, classLoader));
+            }
+            return (map);
+        }
+        case TYPE_SERIALIZED: {
+            byte bytes[] = new byte[dis.readInt()];
+            dis.readFully(bytes);
+            ObjectInputStream ois = JavaSessionCodec.objectStream
+                (new ByteArrayInputStream(bytes), classLoader);
+            try {
+                return (ois.readObject());
+            } finally {
+                ois.close();
+            }
+        }
+        default:
+            throw new IOException("Unknown value type " + type);
+        }
+    }
+
+
+}
@@ -8,8 +8,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 import javax.servlet.ServletContext;
@@ -17,10 +16,8 @@ import javax.servlet.ServletContext;
 import org.apache.catalina.Container;
 import org.apache.catalina.Context;
 import org.apache.catalina.Globals;
-import org.apache.catalina.Loader;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
 
 
 /**
@@ -216,51 +213,22 @@ public final class FileStore extends StoreBase implements Store {
         }
 
         FileInputStream fis = null;
-        ObjectInputStream ois = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
         try {
             fis = new FileInputStream(file.getAbsolutePath());
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            Container container = manager.getContainer();
-            if (container != null)
-                loader = container.getLoader();
-            if (loader != null)
-                classLoader = loader.getClassLoader();
-            if (classLoader != null)
-                ois = new CustomObjectInputStream(bis, classLoader);
-            else
-                ois = new ObjectInputStream(bis);
         } catch (FileNotFoundException e) {
             if (manager.getContainer().getLogger().isDebugEnabled())
                 manager.getContainer().getLogger().debug("No persisted data file found");
             return (null);
-        } catch (IOException e) {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
-                ois = null;
-            }
-            throw e;
         }
 
         try {
-            StandardSession session =
-                (StandardSession) manager.createEmptySession();
-            session.readObjectData(ois);
-            session.setManager(manager);
-            return (session);
+            return (readSession(new BufferedInputStream(fis)));
         } finally {
             // Close the input stream
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException f) {
-                    ;
-                }
+            try {
+                fis.close();
+            } catch (IOException f) {
+                ;
             }
         }
     }
@@ -305,26 +273,12 @@ public final class FileStore extends StoreBase implements Store {
             manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".saving",
                              session.getIdInternal(), file.getAbsolutePath()));
         }
-        FileOutputStream fos = null;
-        ObjectOutputStream oos = null;
-        try {
-            fos = new FileOutputStream(file.getAbsolutePath());
-            oos = new ObjectOutputStream(new BufferedOutputStream(fos));
-        } catch (IOException e) {
-            if (oos != null) {
-                try {
-                    oos.close();
-                } catch (IOException f) {
-                    ;
-                }
-            }
-            throw e;
-        }
-
+        OutputStream os = new BufferedOutputStream
+            (new FileOutputStream(file.getAbsolutePath()));
         try {
-            ((StandardSession)session).writeObjectData(oos);
+            writeSession(session, os);
         } finally {
-            oos.close();
+            os.close();
         }
     }
 
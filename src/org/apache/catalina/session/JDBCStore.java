@@ -2,18 +2,16 @@ package org.apache.catalina.session;
 
 import org.apache.catalina.Container;
 import org.apache.catalina.LifecycleException;
-import org.apache.catalina.Loader;
+import org.apache.catalina.ServerFactory;
 import org.apache.catalina.Session;
 import org.apache.catalina.Store;
-import org.apache.catalina.util.CustomObjectInputStream;
+import org.apache.catalina.core.StandardServer;
+import org.apache.naming.ContextBindings;
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
@@ -22,9 +20,17 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Properties;
 
+import javax.naming.Context;
+import javax.sql.DataSource;
+
 /**
  * <code>Store</code>接口实现类，在数据库中存储序列化的会话对象.
  * 保存的会话仍将过期.
+ * <p>
+ * 默认使用一个数据库连接, 所有操作在这个连接上串行执行.
+ * 如果设置了<code>dataSourceName</code>, 每个操作从JNDI DataSource借用一个连接, 多个操作可以并发执行.
+ * 这种模式下每个操作重新准备语句, prepared statement的缓存由DataSource负责
+ * (例如DBCP的<code>poolPreparedStatements</code>).
  */
 public class JDBCStore extends StoreBase implements Store {
 
@@ -79,6 +85,21 @@ public class JDBCStore extends StoreBase implements Store {
      */
     protected String driverName = null;
 
+    /**
+     * JNDI JDBC数据源名称. 如果设置, 使用连接池模式.
+     */
+    protected String dataSourceName = null;
+
+    /**
+     * 上下文本地数据源.
+     */
+    protected boolean localDataSource = false;
+
+    /**
+     * 从JNDI中查找到的数据源.
+     */
+    protected DataSource dataSource = null;
+
     // ------------------------------------------------------------- Table & cols
 
     /**
@@ -148,6 +169,11 @@ public class JDBCStore extends StoreBase implements Store {
      */
     protected PreparedStatement preparedLoadSql = null;
 
+    /**
+     * 变量来保存<code>expireCandidates()</code> prepared statement.
+     */
+    protected PreparedStatement preparedExpireSql = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -266,6 +292,46 @@ public class JDBCStore extends StoreBase implements Store {
         return (this.connectionURL);
     }
 
+    /**
+     * 返回JNDI JDBC数据源名称.
+     */
+    public String getDataSourceName() {
+        return (this.dataSourceName);
+    }
+
+    /**
+     * 设置JNDI JDBC数据源名称. 设置后, 从这个数据源借用连接, 而不是使用驱动打开一个连接.
+     *
+     * @param dataSourceName the name of the JNDI JDBC DataSource
+     */
+    public void setDataSourceName(String dataSourceName) {
+        String oldDataSourceName = this.dataSourceName;
+        this.dataSourceName = dataSourceName;
+        support.firePropertyChange("dataSourceName",
+                oldDataSourceName,
+                this.dataSourceName);
+    }
+
+    /**
+     * 返回是否在Context的本地JNDI上下文中查找数据源.
+     */
+    public boolean getLocalDataSource() {
+        return (this.localDataSource);
+    }
+
+    /**
+     * 设置是否在Context的本地JNDI上下文中查找数据源, 而不是全局JNDI上下文.
+     *
+     * @param localDataSource the new flag value
+     */
+    public void setLocalDataSource(boolean localDataSource) {
+        boolean oldLocalDataSource = this.localDataSource;
+        this.localDataSource = localDataSource;
+        support.firePropertyChange("localDataSource",
+                new Boolean(oldLocalDataSource),
+                new Boolean(this.localDataSource));
+    }
+
     /**
      * 设置表.
      *
@@ -415,6 +481,10 @@ public class JDBCStore extends StoreBase implements Store {
      * @exception IOException if an input/output error occurred
      */
     public String[] keys() throws IOException {
+        if (dataSourceName != null) {
+            return (pooledQueryIds(getKeysSql(), -1L));
+        }
+
         ResultSet rst = null;
         String keys[] = null;
         synchronized (this) {
@@ -427,10 +497,7 @@ public class JDBCStore extends StoreBase implements Store {
                 }
                 try {
                     if (preparedKeysSql == null) {
-                        String keysSql = "SELECT " + sessionIdCol + " FROM "
-                                + sessionTable + " WHERE " + sessionAppCol
-                                + " = ?";
-                        preparedKeysSql = _conn.prepareStatement(keysSql);
+                        preparedKeysSql = _conn.prepareStatement(getKeysSql());
 					}
 
                     preparedKeysSql.setString(1, getName());
@@ -473,6 +540,10 @@ public class JDBCStore extends StoreBase implements Store {
      * @exception IOException if an input/output error occurred
      */
     public int getSize() throws IOException {
+        if (dataSourceName != null) {
+            return (pooledGetSize());
+        }
+
         int size = 0;
         ResultSet rst = null;
 
@@ -487,10 +558,7 @@ public class JDBCStore extends StoreBase implements Store {
 
                 try {
                     if (preparedSizeSql == null) {
-                        String sizeSql = "SELECT COUNT(" + sessionIdCol
-                                + ") FROM " + sessionTable + " WHERE "
-                                + sessionAppCol + " = ?";
-                        preparedSizeSql = _conn.prepareStatement(sizeSql);
+                        preparedSizeSql = _conn.prepareStatement(getSizeSql());
 					}
 
                     preparedSizeSql.setString(1, getName());
@@ -531,14 +599,13 @@ public class JDBCStore extends StoreBase implements Store {
      */
     public Session load(String id)
             throws ClassNotFoundException, IOException {
+        if (dataSourceName != null) {
+            return (pooledLoad(id));
+        }
+
         ResultSet rst = null;
         StandardSession _session = null;
-        Loader loader = null;
-        ClassLoader classLoader = null;
-        ObjectInputStream ois = null;
-        BufferedInputStream bis = null;
-        Container container = manager.getContainer();
- 
+
         synchronized (this) {
             int numberOfTries = 2;
             while (numberOfTries > 0) {
@@ -549,40 +616,19 @@ public class JDBCStore extends StoreBase implements Store {
 
                 try {
                     if (preparedLoadSql == null) {
-                        String loadSql = "SELECT " + sessionIdCol + ", "
-                                + sessionDataCol + " FROM " + sessionTable
-                                + " WHERE " + sessionIdCol + " = ? AND "
-                                + sessionAppCol + " = ?";
-                        preparedLoadSql = _conn.prepareStatement(loadSql);
+                        preparedLoadSql = _conn.prepareStatement(getLoadSql());
                     }
 
                     preparedLoadSql.setString(1, id);
                     preparedLoadSql.setString(2, getName());
                     rst = preparedLoadSql.executeQuery();
                     if (rst.next()) {
-                        bis = new BufferedInputStream(rst.getBinaryStream(2));
-
-                        if (container != null) {
-                            loader = container.getLoader();
-                        }
-                        if (loader != null) {
-                            classLoader = loader.getClassLoader();
-                        }
-                        if (classLoader != null) {
-                            ois = new CustomObjectInputStream(bis,
-                                    classLoader);
-                        } else {
-                            ois = new ObjectInputStream(bis);
-                        }
-
                         if (manager.getContainer().getLogger().isDebugEnabled()) {
                             manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".loading",
                                     id, sessionTable));
                         }
 
-                        _session = (StandardSession) manager.createEmptySession();
-                        _session.readObjectData(ois);
-                        _session.setManager(manager);
+                        _session = readSession(new BufferedInputStream(rst.getBinaryStream(2)));
                       } else if (manager.getContainer().getLogger().isDebugEnabled()) {
                         manager.getContainer().getLogger().debug(getStoreName() + ": No persisted data object found");
                     }
@@ -600,13 +646,6 @@ public class JDBCStore extends StoreBase implements Store {
                     } catch (SQLException e) {
                         ;
                     }
-                    if (ois != null) {
-                        try {
-                            ois.close();
-                        } catch (IOException e) {
-                            ;
-                        }
-                    }
                     release(_conn);
                 }
                 numberOfTries--;
@@ -625,7 +664,9 @@ public class JDBCStore extends StoreBase implements Store {
      */
     public void remove(String id) throws IOException {
 
-        synchronized (this) {
+        if (dataSourceName != null) {
+            pooledExecute(getRemoveSql(), id);
+        } else synchronized (this) {
             int numberOfTries = 2;
             while (numberOfTries > 0) {
                 Connection _conn = getConnection();
@@ -636,10 +677,7 @@ public class JDBCStore extends StoreBase implements Store {
 
                 try {
                     if (preparedRemoveSql == null) {
-                        String removeSql = "DELETE FROM " + sessionTable
-                                + " WHERE " + sessionIdCol + " = ?  AND "
-                                + sessionAppCol + " = ?";
-                        preparedRemoveSql = _conn.prepareStatement(removeSql);
+                        preparedRemoveSql = _conn.prepareStatement(getRemoveSql());
                     }
 
                     preparedRemoveSql.setString(1, id);
@@ -670,6 +708,11 @@ public class JDBCStore extends StoreBase implements Store {
      */
     public void clear() throws IOException {
 
+        if (dataSourceName != null) {
+            pooledExecute(getClearSql(), null);
+            return;
+        }
+
         synchronized (this) {
             int numberOfTries = 2;
             while (numberOfTries > 0) {
@@ -680,9 +723,7 @@ public class JDBCStore extends StoreBase implements Store {
 
                 try {
                     if (preparedClearSql == null) {
-                        String clearSql = "DELETE FROM " + sessionTable
-                             + " WHERE " + sessionAppCol + " = ?";
-                        preparedClearSql = _conn.prepareStatement(clearSql);
+                        preparedClearSql = _conn.prepareStatement(getClearSql());
                     }
 
                     preparedClearSql.setString(1, getName());
@@ -708,8 +749,15 @@ public class JDBCStore extends StoreBase implements Store {
      * @exception IOException if an input/output error occurs
      */
     public void save(Session session) throws IOException {
-        ObjectOutputStream oos = null;
-        ByteArrayOutputStream bos = null;
+        if (dataSourceName != null) {
+            ArrayList saved = new ArrayList();
+            ArrayList data = new ArrayList();
+            saved.add(session);
+            data.add(serialize(session));
+            pooledSave(saved, data);
+            return;
+        }
+
         ByteArrayInputStream bis = null;
         InputStream in = null;
 
@@ -727,25 +775,13 @@ public class JDBCStore extends StoreBase implements Store {
                 remove(session.getIdInternal());
 
                 try {
-                    bos = new ByteArrayOutputStream();
-                    oos = new ObjectOutputStream(new BufferedOutputStream(bos));
-
-                    ((StandardSession) session).writeObjectData(oos);
-                    oos.close();
-                    oos = null;
-                    byte[] obs = bos.toByteArray();
+                    byte[] obs = serialize(session);
                     int size = obs.length;
                     bis = new ByteArrayInputStream(obs, 0, size);
                     in = new BufferedInputStream(bis, size);
 
                     if (preparedSaveSql == null) {
-                        String saveSql = "INSERT INTO " + sessionTable + " ("
-                           + sessionIdCol + ", " + sessionAppCol + ", "
-                           + sessionDataCol + ", " + sessionValidCol
-                           + ", " + sessionMaxInactiveCol + ", "
-                           + sessionLastAccessedCol
-                           + ") VALUES (?, ?, ?, ?, ?, ?)";
-                       preparedSaveSql = _conn.prepareStatement(saveSql);
+                       preparedSaveSql = _conn.prepareStatement(getSaveSql());
 					}
 
                     preparedSaveSql.setString(1, session.getIdInternal());
@@ -764,9 +800,6 @@ public class JDBCStore extends StoreBase implements Store {
                 } catch (IOException e) {
                     ;
                 } finally {
-                    if (oos != null) {
-                        oos.close();
-                    }
                     if (bis != null) {
                         bis.close();
                     }
@@ -786,8 +819,540 @@ public class JDBCStore extends StoreBase implements Store {
         }
     }
 
+    /**
+     * 保存一组session. 在一个事务中, 使用批量的DELETE和INSERT语句保存整个批次.
+     *
+     * @param sessions the sessions to be stored
+     * @exception IOException 如果没有可用的连接, 或者重试后仍然不能保存这个批次
+     */
+    public void saveAll(Session sessions[]) throws IOException {
+
+        // 在获取锁之前序列化所有会话
+        ArrayList saved = new ArrayList();
+        ArrayList data = new ArrayList();
+        for (int i = 0; i < sessions.length; i++) {
+            if (!sessions[i].isValid())
+                continue;
+            saved.add(sessions[i]);
+            data.add(serialize(sessions[i]));
+        }
+        if (saved.isEmpty())
+            return;
+
+        if (dataSourceName != null) {
+            pooledSave(saved, data);
+        } else synchronized (this) {
+            SQLException failure = null;
+            int numberOfTries = 2;
+            while (numberOfTries > 0) {
+                Connection _conn = getConnection();
+                if (_conn == null) {
+                    throw new IOException(sm.getString(getStoreName() + ".saveFailed",
+                            new Integer(saved.size()), sessionTable));
+                }
+
+                try {
+                    if (preparedRemoveSql == null) {
+                        preparedRemoveSql = _conn.prepareStatement(getRemoveSql());
+                    }
+                    if (preparedSaveSql == null) {
+                        preparedSaveSql = _conn.prepareStatement(getSaveSql());
+                    }
+
+                    _conn.setAutoCommit(false);
+                    try {
+                        for (int i = 0; i < saved.size(); i++) {
+                            Session session = (Session) saved.get(i);
+                            preparedRemoveSql.setString(1, session.getIdInternal());
+                            preparedRemoveSql.setString(2, getName());
+                            preparedRemoveSql.addBatch();
+                        }
+                        preparedRemoveSql.executeBatch();
+
+                        for (int i = 0; i < saved.size(); i++) {
+                            Session session = (Session) saved.get(i);
+                            byte[] obs = (byte[]) data.get(i);
+                            preparedSaveSql.setString(1, session.getIdInternal());
+                            preparedSaveSql.setString(2, getName());
+                            preparedSaveSql.setBinaryStream(3,
+                                    new ByteArrayInputStream(obs), obs.length);
+                            preparedSaveSql.setString(4, session.isValid() ? "1" : "0");
+                            preparedSaveSql.setInt(5, session.getMaxInactiveInterval());
+                            preparedSaveSql.setLong(6, session.getLastAccessedTime());
+                            preparedSaveSql.addBatch();
+                        }
+                        preparedSaveSql.executeBatch();
+                        _conn.commit();
+                    } catch (SQLException e) {
+                        try {
+                            _conn.rollback();
+                        } catch (SQLException f) {
+                            ;
+                        }
+                        throw e;
+                    } finally {
+                        _conn.setAutoCommit(true);
+                    }
+                    // Break out after the finally block
+                    numberOfTries = 0;
+                    failure = null;
+                } catch (SQLException e) {
+                    manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+                    failure = e;
+                    if (dbConnection != null)
+                        close(dbConnection);
+                } finally {
+                    release(_conn);
+                }
+                numberOfTries--;
+            }
+            if (failure != null) {
+                IOException ioe = new IOException(sm.getString(getStoreName() + ".saveFailed",
+                        new Integer(saved.size()), sessionTable));
+                ioe.initCause(failure);
+                throw ioe;
+            }
+        }
+
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".savingBatch",
+                    new Integer(saved.size()), sessionTable));
+        }
+    }
+
     // --------------------------------------------------------- Protected Methods
 
+    /**
+     * 使用一次查询返回可能已过期的会话ID, 根据保存的最后访问时间和最大非活动间隔, 或者保存时已经无效的会话.
+     * 只有这些会话需要被<code>processExpires()</code>加载并检查.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    protected String[] expireCandidates() throws IOException {
+        long timeNow = System.currentTimeMillis() / 1000L;
+        if (dataSourceName != null) {
+            return (pooledQueryIds(getExpireSql(), timeNow));
+        }
+
+        ResultSet rst = null;
+        String keys[] = new String[0];
+        synchronized (this) {
+            int numberOfTries = 2;
+            while (numberOfTries > 0) {
+                Connection _conn = getConnection();
+                if (_conn == null) {
+                    return (keys);
+                }
+                try {
+                    if (preparedExpireSql == null) {
+                        preparedExpireSql = _conn.prepareStatement(getExpireSql());
+                    }
+
+                    preparedExpireSql.setString(1, getName());
+                    preparedExpireSql.setLong(2, timeNow);
+                    rst = preparedExpireSql.executeQuery();
+                    ArrayList tmpkeys = new ArrayList();
+                    while (rst.next()) {
+                        tmpkeys.add(rst.getString(1));
+                    }
+                    keys = (String[]) tmpkeys.toArray(new String[tmpkeys.size()]);
+                    // Break out after the finally block
+                    numberOfTries = 0;
+                } catch (SQLException e) {
+                    manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+                    if (dbConnection != null)
+                        close(dbConnection);
+                } finally {
+                    try {
+                        if (rst != null) {
+                            rst.close();
+                        }
+                    } catch (SQLException e) {
+                        ;
+                    }
+                    release(_conn);
+                }
+                numberOfTries--;
+            }
+        }
+        return (keys);
+    }
+
+    /**
+     * 序列化一个会话.
+     *
+     * @param session the session to be serialized
+     * @exception IOException if an input/output error occurs
+     */
+    protected byte[] serialize(Session session) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        writeSession(session, bos);
+        return (bos.toByteArray());
+    }
+
+    // ------------------------------------------------------------- SQL
+
+    /**
+     * 返回<code>keys()</code>使用的SQL.
+     */
+    protected String getKeysSql() {
+        return "SELECT " + sessionIdCol + " FROM " + sessionTable
+            + " WHERE " + sessionAppCol + " = ?";
+    }
+
+    /**
+     * 返回<code>getSize()</code>使用的SQL.
+     */
+    protected String getSizeSql() {
+        return "SELECT COUNT(" + sessionIdCol + ") FROM " + sessionTable
+            + " WHERE " + sessionAppCol + " = ?";
+    }
+
+    /**
+     * 返回<code>load()</code>使用的SQL.
+     */
+    protected String getLoadSql() {
+        return "SELECT " + sessionIdCol + ", " + sessionDataCol + " FROM "
+            + sessionTable + " WHERE " + sessionIdCol + " = ? AND "
+            + sessionAppCol + " = ?";
+    }
+
+    /**
+     * 返回<code>remove()</code>使用的SQL.
+     */
+    protected String getRemoveSql() {
+        return "DELETE FROM " + sessionTable + " WHERE " + sessionIdCol
+            + " = ?  AND " + sessionAppCol + " = ?";
+    }
+
+    /**
+     * 返回<code>clear()</code>使用的SQL.
+     */
+    protected String getClearSql() {
+        return "DELETE FROM " + sessionTable + " WHERE " + sessionAppCol
+            + " = ?";
+    }
+
+    /**
+     * 返回<code>save()</code>使用的SQL.
+     */
+    protected String getSaveSql() {
+        return "INSERT INTO " + sessionTable + " (" + sessionIdCol + ", "
+            + sessionAppCol + ", " + sessionDataCol + ", " + sessionValidCol
+            + ", " + sessionMaxInactiveCol + ", " + sessionLastAccessedCol
+            + ") VALUES (?, ?, ?, ?, ?, ?)";
+    }
+
+    /**
+     * 返回<code>expireCandidates()</code>使用的SQL. 时间按秒比较, 以免<code>maxinactive * 1000</code>溢出;
+     * 结果可能包含尚未过期的会话, 它们在加载后会被检查.
+     */
+    protected String getExpireSql() {
+        return "SELECT " + sessionIdCol + " FROM " + sessionTable
+            + " WHERE " + sessionAppCol + " = ? AND (" + sessionValidCol
+            + " = '0' OR (" + sessionMaxInactiveCol + " >= 0 AND "
+            + sessionLastAccessedCol + " / 1000 + " + sessionMaxInactiveCol
+            + " <= ?))";
+    }
+
+    // ------------------------------------------------------------- Pooled Mode
+
+    /**
+     * 连接池模式下, 查询会话ID.
+     *
+     * @param sql 查询语句, 第一个参数是应用名称
+     * @param time 如果不小于0, 作为第二个参数
+     */
+    protected String[] pooledQueryIds(String sql, long time) {
+        for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+            Connection _conn = borrowConnection();
+            if (_conn == null) {
+                break;
+            }
+            PreparedStatement ps = null;
+            ResultSet rst = null;
+            try {
+                ps = _conn.prepareStatement(sql);
+                ps.setString(1, getName());
+                if (time >= 0) {
+                    ps.setLong(2, time);
+                }
+                rst = ps.executeQuery();
+                ArrayList tmpkeys = new ArrayList();
+                while (rst.next()) {
+                    tmpkeys.add(rst.getString(1));
+                }
+                return ((String[]) tmpkeys.toArray(new String[tmpkeys.size()]));
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            } finally {
+                try {
+                    if (rst != null) {
+                        rst.close();
+                    }
+                } catch (SQLException e) {
+                    ;
+                }
+                returnConnection(_conn, ps);
+            }
+        }
+        return (new String[0]);
+    }
+
+    /**
+     * 连接池模式下的<code>getSize()</code>.
+     */
+    protected int pooledGetSize() {
+        for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+            Connection _conn = borrowConnection();
+            if (_conn == null) {
+                break;
+            }
+            PreparedStatement ps = null;
+            ResultSet rst = null;
+            try {
+                ps = _conn.prepareStatement(getSizeSql());
+                ps.setString(1, getName());
+                rst = ps.executeQuery();
+                int size = 0;
+                if (rst.next()) {
+                    size = rst.getInt(1);
+                }
+                return (size);
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            } finally {
+                try {
+                    if (rst != null) {
+                        rst.close();
+                    }
+                } catch (SQLException e) {
+                    ;
+                }
+                returnConnection(_conn, ps);
+            }
+        }
+        return (0);
+    }
+
+    /**
+     * 连接池模式下的<code>load()</code>. 连接在反序列化之前归还.
+     *
+     * @param id Session identifier of the session to load
+     */
+    protected Session pooledLoad(String id)
+            throws ClassNotFoundException, IOException {
+        byte[] data = null;
+        for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+            Connection _conn = borrowConnection();
+            if (_conn == null) {
+                return (null);
+            }
+            PreparedStatement ps = null;
+            ResultSet rst = null;
+            try {
+                ps = _conn.prepareStatement(getLoadSql());
+                ps.setString(1, id);
+                ps.setString(2, getName());
+                rst = ps.executeQuery();
+                if (rst.next()) {
+                    InputStream in = rst.getBinaryStream(2);
+                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                    byte buffer[] = new byte[2048];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        bos.write(buffer, 0, n);
+                    }
+                    in.close();
+                    data = bos.toByteArray();
+                }
+                break;
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            } finally {
+                try {
+                    if (rst != null) {
+                        rst.close();
+                    }
+                } catch (SQLException e) {
+                    ;
+                }
+                returnConnection(_conn, ps);
+            }
+        }
+
+        if (data == null) {
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(getStoreName() + ": No persisted data object found");
+            }
+            return (null);
+        }
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName() + ".loading",
+                    id, sessionTable));
+        }
+
+        return (readSession(new ByteArrayInputStream(data)));
+    }
+
+    /**
+     * 连接池模式下, 执行一个删除语句.
+     *
+     * @param sql 删除语句
+     * @param id 会话ID, 或<code>null</code>表示删除这个应用的所有会话
+     */
+    protected void pooledExecute(String sql, String id) {
+        for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+            Connection _conn = borrowConnection();
+            if (_conn == null) {
+                return;
+            }
+            PreparedStatement ps = null;
+            try {
+                ps = _conn.prepareStatement(sql);
+                if (id != null) {
+                    ps.setString(1, id);
+                    ps.setString(2, getName());
+                } else {
+                    ps.setString(1, getName());
+                }
+                ps.execute();
+                return;
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+            } finally {
+                returnConnection(_conn, ps);
+            }
+        }
+    }
+
+    /**
+     * 连接池模式下, 在一个事务中保存一组已序列化的会话.
+     *
+     * @param saved the sessions to be stored
+     * @param data the serialized sessions
+     * @exception IOException 如果没有可用的连接, 或者重试后仍然不能保存这个批次
+     */
+    protected void pooledSave(ArrayList saved, ArrayList data)
+            throws IOException {
+        SQLException failure = null;
+        for (int numberOfTries = 2; numberOfTries > 0; numberOfTries--) {
+            Connection _conn = borrowConnection();
+            if (_conn == null) {
+                break;
+            }
+            PreparedStatement removeSql = null;
+            PreparedStatement saveSql = null;
+            try {
+                removeSql = _conn.prepareStatement(getRemoveSql());
+                saveSql = _conn.prepareStatement(getSaveSql());
+                _conn.setAutoCommit(false);
+                try {
+                    for (int i = 0; i < saved.size(); i++) {
+                        Session session = (Session) saved.get(i);
+                        removeSql.setString(1, session.getIdInternal());
+                        removeSql.setString(2, getName());
+                        removeSql.addBatch();
+                    }
+                    removeSql.executeBatch();
+
+                    for (int i = 0; i < saved.size(); i++) {
+                        Session session = (Session) saved.get(i);
+                        byte[] obs = (byte[]) data.get(i);
+                        saveSql.setString(1, session.getIdInternal());
+                        saveSql.setString(2, getName());
+                        saveSql.setBinaryStream(3,
+                                new ByteArrayInputStream(obs), obs.length);
+                        saveSql.setString(4, session.isValid() ? "1" : "0");
+                        saveSql.setInt(5, session.getMaxInactiveInterval());
+                        saveSql.setLong(6, session.getLastAccessedTime());
+                        saveSql.addBatch();
+                    }
+                    saveSql.executeBatch();
+                    _conn.commit();
+                } catch (SQLException e) {
+                    try {
+                        _conn.rollback();
+                    } catch (SQLException f) {
+                        ;
+                    }
+                    throw e;
+                } finally {
+                    _conn.setAutoCommit(true);
+                }
+                return;
+            } catch (SQLException e) {
+                manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".SQLException", e));
+                failure = e;
+            } finally {
+                if (removeSql != null) {
+                    try {
+                        removeSql.close();
+                    } catch (SQLException e) {
+                        ;
+                    }
+                }
+                returnConnection(_conn, saveSql);
+            }
+        }
+
+        IOException ioe = new IOException(sm.getString(getStoreName() + ".saveFailed",
+                new Integer(saved.size()), sessionTable));
+        if (failure != null) {
+            ioe.initCause(failure);
+        }
+        throw ioe;
+    }
+
+    /**
+     * 从数据源借用一个连接, 每次操作之后立即关闭, 连接的管理 (验证, 回收, 数量限制) 和语句的缓存都由数据源负责.
+     * 返回<code>null</code>，如果无法获取连接.
+     */
+    protected Connection borrowConnection() {
+        try {
+            DataSource ds = dataSource;
+            if (ds == null) {
+                Context context = null;
+                if (localDataSource) {
+                    context = ContextBindings.getClassLoader();
+                    context = (Context) context.lookup("comp/env");
+                } else {
+                    StandardServer server =
+                        (StandardServer) ServerFactory.getServer();
+                    context = server.getGlobalNamingContext();
+                }
+                ds = (DataSource) context.lookup(dataSourceName);
+                dataSource = ds;
+            }
+            return (ds.getConnection());
+        } catch (Exception e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".dataSourceException",
+                    dataSourceName), e);
+        }
+        return (null);
+    }
+
+    /**
+     * 关闭语句, 并把连接归还给数据源.
+     *
+     * @param conn The connection to be returned
+     * @param ps 使用这个连接的语句, 可以是<code>null</code>
+     */
+    protected void returnConnection(Connection conn, PreparedStatement ps) {
+        if (ps != null) {
+            try {
+                ps.close();
+            } catch (SQLException e) {
+                ;
+            }
+        }
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName() + ".close", e.toString()));
+        }
+    }
+
     /**
      * 检查连接, 如果是<code>null</code>或已经关闭，重新打开它.
      * 返回<code>null</code>，如果无法建立连接.
@@ -903,6 +1468,13 @@ public class JDBCStore extends StoreBase implements Store {
         }
         this.preparedLoadSql = null;
 
+        try {
+            preparedExpireSql.close();
+        } catch (Throwable f) {
+            ;
+        }
+        this.preparedExpireSql = null;
+
         // Close this database connection, and log any errors
         try {
             dbConnection.close();
@@ -930,7 +1502,9 @@ public class JDBCStore extends StoreBase implements Store {
         super.start();
 
         // Open connection to the database
-        this.dbConnection = getConnection();
+        if (dataSourceName == null) {
+            this.dbConnection = getConnection();
+        }
     }
 
     /**
@@ -949,5 +1523,6 @@ public class JDBCStore extends StoreBase implements Store {
             }
             close(dbConnection);
         }
+        dataSource = null;
     }
 }
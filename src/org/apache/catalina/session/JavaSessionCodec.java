@@ -0,0 +1,69 @@
+package org.apache.catalina.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.apache.catalina.util.CustomObjectInputStream;
+
+
+/**
+ * 使用Java序列化的<b>SessionCodec</b>实现类. 格式与<code>StandardSession.writeObjectData()</code>相同,
+ * 是Store的默认编解码器.
+ */
+public class JavaSessionCodec implements SessionCodec {
+
+
+    /**
+     * 将会话写入对象输出流.
+     *
+     * @param session 要写入的会话
+     * @param stream 输出流
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeSession(StandardSession session, OutputStream stream)
+        throws IOException {
+        ObjectOutputStream oos =
+            new ObjectOutputStream(new BufferedOutputStream(stream));
+        session.writeObjectData(oos);
+        oos.flush();
+    }
+
+
+    /**
+     * 从对象输入流读取会话, 使用指定的类加载器解析属性类.
+     *
+     * @param session 要读入的空会话
+     * @param stream 输入流
+     * @param classLoader 用于加载属性类的类加载器, 或<code>null</code>
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void readSession(StandardSession session, InputStream stream,
+                            ClassLoader classLoader)
+        throws ClassNotFoundException, IOException {
+        session.readObjectData(objectStream(stream, classLoader));
+    }
+
+
+    /**
+     * 创建对象输入流, 如果指定了类加载器, 使用它解析类.
+     */
+    static ObjectInputStream objectStream(InputStream stream,
+                                          ClassLoader classLoader)
+        throws IOException {
+        InputStream is = new BufferedInputStream(stream);
+        if (classLoader != null)
+            return (new CustomObjectInputStream(is, classLoader));
+        else
+            return (new ObjectInputStream(is));
+    }
+
+
+}
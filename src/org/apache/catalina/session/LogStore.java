@@ -0,0 +1,1081 @@
+package org.apache.catalina.session;
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.ServletContext;
+
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Globals;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.Store;
+
+
+/**
+ * <b>Store</b>接口实现类, 将会话追加到配置目录中的日志段文件.
+ * <p>
+ * 每次保存或删除会话时, 在当前段文件的末尾追加一条记录; 段文件达到<code>maxSegmentSize</code>后,
+ * 开始一个新的段文件. 内存中的索引记录每个会话最新的记录的位置, 因此<code>keys()</code>和
+ * <code>getSize()</code>不需要访问文件系统. 已关闭的段文件通过内存映射读取.
+ * <p>
+ * 后台线程定期压缩最旧的段文件: 如果其中有效记录的比例低于<code>compactionRatio</code>,
+ * 将有效记录复制到当前段文件, 然后删除它. 启动时, 按顺序扫描所有段文件以重建索引.
+ * <p>
+ * 如果<code>maxDeltas</code>大于0, 已经保存了基础数据的会话只追加自上次保存以来的增量数据
+ * (见<code>StandardSession.writeDeltaData()</code>), 加载时依次应用基础数据和增量数据.
+ * 一个会话累积了<code>maxDeltas</code>条增量记录后, 下一次保存将重新写入完整的基础数据.
+ * 注意只有通过<code>setAttribute()</code>和<code>removeAttribute()</code>进行的修改会被记录.
+ * <p>
+ * 记录格式:
+ * <pre>
+ *   byte   类型 (1 = 保存, 2 = 删除, 3 = 增量)
+ *   int    会话ID的长度, 后跟UTF-8编码的会话ID
+ *   long   最后访问时间        (仅保存和增量记录)
+ *   int    最大非活动间隔      (仅保存和增量记录)
+ *   int    数据长度, 后跟序列化的会话数据或增量数据 (仅保存和增量记录)
+ * </pre>
+ */
+public class LogStore extends StoreBase implements Store {
+
+    // ----------------------------------------------------- Constants
+
+    /**
+     * 段文件名前缀.
+     */
+    private static final String SEGMENT_PREFIX = "sessions-";
+
+    /**
+     * 段文件扩展名.
+     */
+    private static final String SEGMENT_EXT = ".log";
+
+    /**
+     * 保存会话的记录类型.
+     */
+    private static final byte RECORD_SAVE = 1;
+
+    /**
+     * 删除会话的记录类型.
+     */
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * 会话增量数据的记录类型.
+     */
+    private static final byte RECORD_DELTA = 3;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 存储段文件的目录的路径.
+     * 这可能是一个绝对路径名, 或相对于此应用程序的临时工作目录解析的相对路径.
+     */
+    private String directory = "sessions";
+
+
+    /**
+     * 存储段文件的目录.
+     */
+    private File directoryFile = null;
+
+
+    /**
+     * 段文件的最大大小 (in bytes).
+     */
+    private int maxSegmentSize = 16 * 1024 * 1024;
+
+
+    /**
+     * 有效记录占最旧的段文件的百分比低于这个值时, 压缩这个段文件.
+     */
+    private int compactionRatio = 50;
+
+
+    /**
+     * 写入完整的基础数据之前, 一个会话最多累积的增量记录数. 0表示总是写入完整的会话数据.
+     */
+    private int maxDeltas = 0;
+
+
+    /**
+     * 每个会话最新的记录的位置, 会话ID作为key.
+     */
+    private Map index = new ConcurrentHashMap();
+
+
+    /**
+     * 所有的段文件, 从旧到新排序. 最后一个是当前段文件. 访问时必须持有这个Store的锁.
+     */
+    private LinkedList segments = new LinkedList();
+
+
+    /**
+     * 当前追加记录的段文件.
+     */
+    private Segment active = null;
+
+
+    /**
+     * 实现类的描述信息.
+     */
+    private static final String info = "LogStore/1.0";
+
+    /**
+     * 注册此存储的名称，用于日志记录.
+     */
+    private static final String storeName = "logStore";
+
+    /**
+     * 注册后台线程的名称.
+     */
+    private static final String threadName = "LogStore";
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回目录路径.
+     */
+    public String getDirectory() {
+        return (directory);
+    }
+
+
+    /**
+     * 设置目录路径.
+     *
+     * @param path The new directory path
+     */
+    public void setDirectory(String path) {
+        String oldDirectory = this.directory;
+        this.directory = path;
+        this.directoryFile = null;
+        support.firePropertyChange("directory", oldDirectory, this.directory);
+    }
+
+
+    /**
+     * 返回段文件的最大大小 (in bytes).
+     */
+    public int getMaxSegmentSize() {
+        return (maxSegmentSize);
+    }
+
+
+    /**
+     * 设置段文件的最大大小 (in bytes).
+     *
+     * @param maxSegmentSize The new maximum segment size
+     */
+    public void setMaxSegmentSize(int maxSegmentSize) {
+        int oldMaxSegmentSize = this.maxSegmentSize;
+        this.maxSegmentSize = maxSegmentSize;
+        support.firePropertyChange("maxSegmentSize",
+                                   new Integer(oldMaxSegmentSize),
+                                   new Integer(this.maxSegmentSize));
+    }
+
+
+    /**
+     * 返回触发压缩的有效记录百分比.
+     */
+    public int getCompactionRatio() {
+        return (compactionRatio);
+    }
+
+
+    /**
+     * 设置触发压缩的有效记录百分比.
+     *
+     * @param compactionRatio The new compaction ratio (0-100)
+     */
+    public void setCompactionRatio(int compactionRatio) {
+        int oldCompactionRatio = this.compactionRatio;
+        this.compactionRatio = compactionRatio;
+        support.firePropertyChange("compactionRatio",
+                                   new Integer(oldCompactionRatio),
+                                   new Integer(this.compactionRatio));
+    }
+
+
+    /**
+     * 返回一个会话最多累积的增量记录数.
+     */
+    public int getMaxDeltas() {
+        return (maxDeltas);
+    }
+
+
+    /**
+     * 设置一个会话最多累积的增量记录数. 0表示总是写入完整的会话数据.
+     *
+     * @param maxDeltas The new maximum number of delta records
+     */
+    public void setMaxDeltas(int maxDeltas) {
+        int oldMaxDeltas = this.maxDeltas;
+        this.maxDeltas = maxDeltas;
+        support.firePropertyChange("maxDeltas",
+                                   new Integer(oldMaxDeltas),
+                                   new Integer(this.maxDeltas));
+    }
+
+
+    /**
+     * 返回描述信息和版本号, 格式为
+     * <code>&lt;description&gt;/&lt;version&gt;</code>.
+     */
+    public String getInfo() {
+        return (info);
+    }
+
+    /**
+     * 返回后台线程名称.
+     */
+    public String getThreadName() {
+        return(threadName);
+    }
+
+    /**
+     * 返回名称，用于记录日志.
+     */
+    public String getStoreName() {
+        return(storeName);
+    }
+
+
+    /**
+     * 返回当前会话的数目.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public int getSize() throws IOException {
+        return (index.size());
+    }
+
+
+    /**
+     * 返回段文件的数目.
+     */
+    public synchronized int getSegmentCount() {
+        return (segments.size());
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 删除所有会话和段文件.
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public synchronized void clear() throws IOException {
+        index.clear();
+        Iterator iter = segments.iterator();
+        while (iter.hasNext()) {
+            Segment segment = (Segment) iter.next();
+            segment.close();
+            segment.file.delete();
+        }
+        segments.clear();
+        active = null;
+        openSegment(1);
+    }
+
+
+    /**
+     * 返回一个数组包含当前保存的所有会话的会话标识符.
+     * 如果没有, 返回一个零长度数组.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    public String[] keys() throws IOException {
+        return ((String[]) index.keySet().toArray(new String[0]));
+    }
+
+
+    /**
+     * 加载并返回与指定会话标识符关联的会话, 不删除它.
+     * 如果没有, 返回<code>null</code>.
+     *
+     * @param id Session identifier of the session to load
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    public Session load(String id)
+        throws ClassNotFoundException, IOException {
+
+        Location location = (Location) index.get(id);
+        if (location == null) {
+            return (null);
+        }
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".loading",
+                             id, location.segment.file.getAbsolutePath()));
+        }
+
+        // 从基础数据开始, 依次应用增量数据
+        ArrayList chain = new ArrayList();
+        for (Location l = location; l != null; l = l.previous)
+            chain.add(0, l);
+        Location base = (Location) chain.get(0);
+        StandardSession session = readSession(new ByteBufferInputStream
+            (base.segment.read(base.offset, base.length)));
+        for (int i = 1; i < chain.size(); i++) {
+            ObjectInputStream ois = objectStream((Location) chain.get(i));
+            try {
+                session.readDeltaData(ois);
+            } finally {
+                try {
+                    ois.close();
+                } catch (IOException f) {
+                    ;
+                }
+            }
+        }
+        session.setDeltaReady(true);
+        return (session);
+    }
+
+
+    /**
+     * 删除指定的会话标识符的会话 . 如果没有, 什么都不做.
+     *
+     * @param id Session identifier of the Session to be removed
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void remove(String id) throws IOException {
+
+        if (!index.containsKey(id)) {
+            return;
+        }
+        if (manager.getContainer().getLogger().isDebugEnabled()) {
+            manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".removing",
+                             id, directory));
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        byte idBytes[] = id.getBytes("UTF-8");
+        dos.writeByte(RECORD_REMOVE);
+        dos.writeInt(idBytes.length);
+        dos.write(idBytes);
+        dos.flush();
+
+        synchronized (this) {
+            Location old = (Location) index.remove(id);
+            if (old == null)
+                return;
+            release(old);
+            append(bos.toByteArray());
+            active.removeBytes += bos.size();
+        }
+    }
+
+
+    /**
+     * 保存指定的 Session. 替换先前保存的关联会话标识符的信息.
+     *
+     * @param session Session to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void save(Session session) throws IOException {
+        saveAll(new Session[] { session });
+    }
+
+
+    /**
+     * 保存一组会话. 所有会话的记录通过一次写操作追加到当前段文件.
+     *
+     * @param sessions The sessions to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void saveAll(Session sessions[]) throws IOException {
+
+        boolean success = false;
+        try {
+            doSaveAll(sessions);
+            success = true;
+        } finally {
+            if (!success) {
+                // Store中的数据与会话记录的修改不再一致, 下一次必须写入完整的数据
+                for (int i = 0; i < sessions.length; i++)
+                    ((StandardSession) sessions[i]).setDeltaReady(false);
+            }
+        }
+    }
+
+
+    /**
+     * 检查过期会话, 然后压缩最旧的段文件.
+     */
+    public void processExpires() {
+        super.processExpires();
+        if (!started) {
+            return;
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            manager.getContainer().getLogger().error(sm.getString(getStoreName()+".compactException"), e);
+        }
+    }
+
+
+    // ------------------------------------------------------ Lifecycle Methods
+
+
+    /**
+     * 扫描现有的段文件以重建索引, 并打开一个新的段文件.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that prevents this component from being used
+     */
+    public void start() throws LifecycleException {
+        super.start();
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new LifecycleException
+                (sm.getString(getStoreName()+".recoverException"), e);
+        }
+    }
+
+
+    /**
+     * 关闭所有段文件.
+     *
+     * @exception LifecycleException if this component detects a fatal error
+     *  that needs to be reported
+     */
+    public void stop() throws LifecycleException {
+        super.stop();
+        synchronized (this) {
+            Iterator iter = segments.iterator();
+            while (iter.hasNext()) {
+                Segment segment = (Segment) iter.next();
+                try {
+                    segment.close();
+                } catch (IOException e) {
+                    manager.getContainer().getLogger().error(sm.getString(getStoreName()+".closeException",
+                                     segment.file.getAbsolutePath()), e);
+                }
+            }
+            segments.clear();
+            active = null;
+            index.clear();
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 序列化并追加一组会话. 已保存基础数据的会话写入增量记录, 其它会话写入完整的保存记录.
+     *
+     * @param sessions The sessions to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void doSaveAll(Session sessions[]) throws IOException {
+
+        // 在获取锁之前序列化所有会话
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        String ids[] = new String[sessions.length];
+        Location locations[] = new Location[sessions.length];
+        boolean deltas[] = new boolean[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            ids[i] = session.getIdInternal();
+            Location current = (Location) index.get(ids[i]);
+            deltas[i] = (maxDeltas > 0) && session.isDeltaReady()
+                && (current != null) && (current.deltas < maxDeltas);
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(sm.getString(getStoreName()
+                                 + (deltas[i] ? ".savingDelta" : ".saving"),
+                                 ids[i], directory));
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            if (deltas[i]) {
+                ObjectOutputStream oos =
+                    new ObjectOutputStream(new BufferedOutputStream(data));
+                try {
+                    session.writeDeltaData(oos);
+                } finally {
+                    oos.close();
+                }
+            } else {
+                session.resetDeltaState();
+                writeSession(session, data);
+            }
+
+            int start = dos.size();
+            byte idBytes[] = ids[i].getBytes("UTF-8");
+            dos.writeByte(deltas[i] ? RECORD_DELTA : RECORD_SAVE);
+            dos.writeInt(idBytes.length);
+            dos.write(idBytes);
+            dos.writeLong(session.getThisAccessedTimeInternal());
+            dos.writeInt(session.getMaxInactiveInterval());
+            dos.writeInt(data.size());
+            Location location = new Location();
+            location.offset = dos.size();
+            location.length = data.size();
+            data.writeTo(dos);
+            location.recordLength = dos.size() - start;
+            location.lastAccessedTime = session.getThisAccessedTimeInternal();
+            location.maxInactiveInterval = session.getMaxInactiveInterval();
+            locations[i] = location;
+        }
+        dos.flush();
+
+        synchronized (this) {
+            long base = append(bos.toByteArray());
+            for (int i = 0; i < sessions.length; i++) {
+                Location location = locations[i];
+                location.segment = active;
+                location.offset += base;
+                Location old = (Location) index.get(ids[i]);
+                if (deltas[i]) {
+                    if (old == null) {
+                        // 会话在序列化期间被删除, 增量记录没有基础数据
+                        ((StandardSession) sessions[i]).setDeltaReady(false);
+                        continue;
+                    }
+                    location.previous = old;
+                    location.deltas = old.deltas + 1;
+                } else if (old != null) {
+                    release(old);
+                }
+                active.liveBytes += location.recordLength;
+                index.put(ids[i], location);
+            }
+        }
+    }
+
+
+
+
+    /**
+     * 返回根据索引中的最后访问时间和最大非活动间隔可能已过期的会话ID,
+     * 只有这些会话需要被加载并检查.
+     */
+    protected String[] expireCandidates() throws IOException {
+        long timeNow = System.currentTimeMillis();
+        ArrayList list = new ArrayList();
+        Iterator entries = index.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            Location location = (Location) entry.getValue();
+            if (location.maxInactiveInterval < 0)
+                continue;
+            if (timeNow - location.lastAccessedTime
+                    >= location.maxInactiveInterval * 1000L)
+                list.add(entry.getKey());
+        }
+        return ((String[]) list.toArray(new String[list.size()]));
+    }
+
+
+    /**
+     * 压缩有效记录的比例低于<code>compactionRatio</code>的段文件 (当前段文件除外):
+     * 将其中的有效记录复制到当前段文件, 然后删除它.
+     * 删除记录也被复制, 除非这个段文件是最旧的, 因为更旧的段文件中可能仍然包含被删除的会话.
+     */
+    protected synchronized void compact() throws IOException {
+        Segment candidates[] = (Segment[]) segments.toArray(new Segment[segments.size()]);
+        for (int i = 0; i < candidates.length - 1; i++) {
+            Segment segment = candidates[i];
+            boolean oldest = (segment == segments.getFirst());
+            long retained = segment.liveBytes + (oldest ? 0 : segment.removeBytes);
+            if (segment.size > 0 && retained * 100L >= segment.size * compactionRatio)
+                continue;
+
+            ByteBuffer buffer = segment.read(0, (int) segment.size);
+            Record record = new Record();
+            while (nextRecord(buffer, segment, record)) {
+                if (record.type != RECORD_REMOVE) {
+                    Location chain = (Location) index.get(record.id);
+                    if (chain != null && contains(chain, segment, record.location.offset))
+                        index.put(record.id, copy(chain));
+                } else if (!oldest && !index.containsKey(record.id)) {
+                    append(record.bytes(buffer));
+                    active.removeBytes += record.length;
+                }
+            }
+
+            active.channel.force(false);
+            segments.remove(segment);
+            segment.close();
+            segment.file.delete();
+            if (manager.getContainer().getLogger().isDebugEnabled()) {
+                manager.getContainer().getLogger().debug(sm.getString(getStoreName()+".compacted",
+                                 segment.file.getAbsolutePath()));
+            }
+        }
+    }
+
+
+    /**
+     * 在当前段文件的末尾追加数据, 如果需要, 先开始一个新的段文件. 调用者必须持有这个Store的锁.
+     *
+     * @param bytes The data to append
+     * @return 数据在当前段文件中的偏移量
+     */
+    protected long append(byte bytes[]) throws IOException {
+        if (active == null)
+            throw new IllegalStateException
+                (sm.getString(getStoreName()+".notStarted"));
+        if (active.size > 0 && active.size + bytes.length > maxSegmentSize) {
+            active.seal();
+            openSegment(active.sequence + 1);
+        }
+        long base = active.size;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, active.size + buffer.position());
+        }
+        active.size += bytes.length;
+        return (base);
+    }
+
+
+    /**
+     * 按顺序扫描现有的段文件以重建索引, 然后打开一个新的段文件.
+     */
+    protected synchronized void recover() throws IOException {
+        index.clear();
+        segments.clear();
+        File dir = directory();
+        String files[] = dir.list();
+        if (files == null)
+            files = new String[0];
+        ArrayList sequences = new ArrayList();
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].startsWith(SEGMENT_PREFIX) && files[i].endsWith(SEGMENT_EXT)) {
+                String seq = files[i].substring(SEGMENT_PREFIX.length(),
+                        files[i].length() - SEGMENT_EXT.length());
+                try {
+                    sequences.add(new Long(seq));
+                } catch (NumberFormatException e) {
+                    ;
+                }
+            }
+        }
+        Long sorted[] = (Long[]) sequences.toArray(new Long[sequences.size()]);
+        Arrays.sort(sorted);
+
+        long next = 1;
+        for (int i = 0; i < sorted.length; i++) {
+            Segment segment = new Segment(segmentFile(sorted[i].longValue()),
+                    sorted[i].longValue());
+            segment.open();
+            scan(segment);
+            segment.seal();
+            segments.add(segment);
+            next = sorted[i].longValue() + 1;
+        }
+        openSegment(next);
+    }
+
+
+    /**
+     * 扫描一个段文件中的记录并更新索引. 文件末尾不完整的记录 (例如崩溃导致的) 被截断.
+     */
+    protected void scan(Segment segment) throws IOException {
+        ByteBuffer buffer = segment.channel.map
+            (FileChannel.MapMode.READ_ONLY, 0, segment.size);
+        Record record = new Record();
+        while (nextRecord(buffer, segment, record)) {
+            if (record.type == RECORD_SAVE) {
+                segment.liveBytes += record.length;
+                release((Location) index.put(record.id, record.location));
+            } else if (record.type == RECORD_DELTA) {
+                // 没有基础数据的增量记录被忽略
+                Location old = (Location) index.get(record.id);
+                if (old != null) {
+                    record.location.previous = old;
+                    record.location.deltas = old.deltas + 1;
+                    segment.liveBytes += record.length;
+                    index.put(record.id, record.location);
+                }
+            } else {
+                segment.removeBytes += record.length;
+                release((Location) index.remove(record.id));
+            }
+        }
+        int position = buffer.position();
+        if (position < segment.size) {
+            manager.getContainer().getLogger().warn(sm.getString(getStoreName()+".truncated",
+                             segment.file.getAbsolutePath(), new Long(position)));
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+
+    /**
+     * 从缓冲区的当前位置读取下一条记录. 如果没有完整的记录, 将缓冲区的位置恢复到记录的开始, 并返回<code>false</code>.
+     *
+     * @param buffer 段文件的内容
+     * @param segment 段文件
+     * @param record 用于返回读取的记录
+     */
+    protected boolean nextRecord(ByteBuffer buffer, Segment segment, Record record)
+        throws IOException {
+        int position = buffer.position();
+        try {
+            record.start = position;
+            record.type = buffer.get();
+            int idLength = buffer.getInt();
+            if (idLength < 0 || idLength > buffer.remaining()) {
+                buffer.position(position);
+                return (false);
+            }
+            byte idBytes[] = new byte[idLength];
+            buffer.get(idBytes);
+            record.id = new String(idBytes, "UTF-8");
+            if (record.type == RECORD_SAVE || record.type == RECORD_DELTA) {
+                Location location = new Location();
+                location.segment = segment;
+                location.lastAccessedTime = buffer.getLong();
+                location.maxInactiveInterval = buffer.getInt();
+                location.length = buffer.getInt();
+                location.offset = buffer.position();
+                if (location.length < 0 || location.length > buffer.remaining()) {
+                    buffer.position(position);
+                    return (false);
+                }
+                buffer.position(buffer.position() + location.length);
+                location.recordLength = buffer.position() - position;
+                record.location = location;
+            } else if (record.type == RECORD_REMOVE) {
+                record.location = null;
+            } else {
+                buffer.position(position);
+                return (false);
+            }
+            record.length = buffer.position() - position;
+            return (true);
+        } catch (BufferUnderflowException e) {
+            buffer.position(position);
+            return (false);
+        }
+    }
+
+
+    /**
+     * 将一个会话的所有记录 (基础数据和增量数据) 按顺序复制到当前段文件. 调用者必须持有这个Store的锁.
+     *
+     * @param chain 会话最新的记录
+     * @return 复制后最新的记录的位置
+     */
+    private Location copy(Location chain) throws IOException {
+        ArrayList records = new ArrayList();
+        for (Location l = chain; l != null; l = l.previous)
+            records.add(0, l);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        long starts[] = new long[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            Location l = (Location) records.get(i);
+            int header = l.recordLength - l.length;
+            ByteBuffer buffer = l.segment.read(l.offset - header, l.recordLength);
+            byte bytes[] = new byte[l.recordLength];
+            buffer.get(bytes);
+            starts[i] = bos.size() + header;
+            bos.write(bytes);
+        }
+        long base = append(bos.toByteArray());
+        release(chain);
+
+        Location previous = null;
+        for (int i = 0; i < records.size(); i++) {
+            Location l = (Location) records.get(i);
+            Location moved = new Location();
+            moved.segment = active;
+            moved.offset = base + starts[i];
+            moved.length = l.length;
+            moved.recordLength = l.recordLength;
+            moved.lastAccessedTime = l.lastAccessedTime;
+            moved.maxInactiveInterval = l.maxInactiveInterval;
+            moved.previous = previous;
+            moved.deltas = l.deltas;
+            active.liveBytes += moved.recordLength;
+            previous = moved;
+        }
+        return (previous);
+    }
+
+
+    /**
+     * 打开一个新的当前段文件. 调用者必须持有这个Store的锁.
+     */
+    protected void openSegment(long sequence) throws IOException {
+        Segment segment = new Segment(segmentFile(sequence), sequence);
+        segment.open();
+        segments.add(segment);
+        active = segment;
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 一个会话的所有记录不再有效, 从它们所在的段文件的有效记录长度中减去. 调用者必须持有这个Store的锁.
+     */
+    private static void release(Location chain) {
+        for (Location l = chain; l != null; l = l.previous)
+            l.segment.liveBytes -= l.recordLength;
+    }
+
+
+    /**
+     * 一个会话的记录中是否包含指定段文件中指定偏移量的记录?
+     */
+    private static boolean contains(Location chain, Segment segment, long offset) {
+        for (Location l = chain; l != null; l = l.previous) {
+            if (l.segment == segment && l.offset == offset)
+                return (true);
+        }
+        return (false);
+    }
+
+
+    /**
+     * 为一条增量记录的数据创建对象输入流, 使用Web应用程序的类加载器.
+     */
+    private ObjectInputStream objectStream(Location location) throws IOException {
+        ByteBuffer data = location.segment.read(location.offset, location.length);
+        ClassLoader classLoader = null;
+        Container container = manager.getContainer();
+        if (container != null && container.getLoader() != null)
+            classLoader = container.getLoader().getClassLoader();
+        return (JavaSessionCodec.objectStream
+                (new ByteBufferInputStream(data), classLoader));
+    }
+
+
+    /**
+     * 段文件的目录. 如果目录不存在，则将创建该目录.
+     */
+    private File directory() {
+
+        if (this.directory == null) {
+            return (null);
+        }
+        if (this.directoryFile != null) {
+            // NOTE:  竞争是无害的, 所以不需要同步
+            return (this.directoryFile);
+        }
+        File file = new File(this.directory);
+        if (!file.isAbsolute()) {
+            Container container = manager.getContainer();
+            if (container instanceof Context) {
+                ServletContext servletContext =
+                    ((Context) container).getServletContext();
+                File work = (File)
+                    servletContext.getAttribute(Globals.WORK_DIR_ATTR);
+                file = new File(work, this.directory);
+            } else {
+                throw new IllegalArgumentException
+                    ("Parent Container is not a Context");
+            }
+        }
+        if (!file.exists() || !file.isDirectory()) {
+            file.delete();
+            file.mkdirs();
+        }
+        this.directoryFile = file;
+        return (file);
+
+    }
+
+
+    /**
+     * 指定序号的段文件.
+     */
+    private File segmentFile(long sequence) {
+        return (new File(directory(), SEGMENT_PREFIX + sequence + SEGMENT_EXT));
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 会话最新的记录的位置. 增量记录通过<code>previous</code>链接到之前的记录, 直到基础数据.
+     */
+    private static final class Location {
+        Segment segment;
+        /** 序列化数据在段文件中的偏移量 */
+        long offset;
+        /** 序列化数据的长度 */
+        int length;
+        /** 整个记录的长度 */
+        int recordLength;
+        long lastAccessedTime;
+        int maxInactiveInterval;
+        /** 增量记录的前一条记录, 保存记录为<code>null</code> */
+        Location previous;
+        /** 自基础数据以来的增量记录数 */
+        int deltas;
+    }
+
+
+    /**
+     * 从段文件中读取的一条记录.
+     */
+    private static final class Record {
+        byte type;
+        String id;
+        /** 保存记录的位置, 删除记录为<code>null</code> */
+        Location location;
+        /** 记录在段文件中的偏移量 */
+        int start;
+        /** 记录的长度 */
+        int length;
+
+        /**
+         * 返回记录的原始内容.
+         */
+        byte[] bytes(ByteBuffer buffer) {
+            byte bytes[] = new byte[length];
+            ByteBuffer copy = buffer.duplicate();
+            copy.position(start);
+            copy.get(bytes);
+            return (bytes);
+        }
+    }
+
+
+    /**
+     * 一个段文件. 当前段文件通过FileChannel读写, 关闭后的段文件通过内存映射读取.
+     */
+    private static final class Segment {
+
+        final File file;
+        final long sequence;
+        RandomAccessFile raf = null;
+        FileChannel channel = null;
+        volatile MappedByteBuffer mapped = null;
+        long size = 0;
+        /** 有效的保存记录的总长度 */
+        long liveBytes = 0;
+        /** 删除记录的总长度 */
+        long removeBytes = 0;
+
+        Segment(File file, long sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+
+        void open() throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        /**
+         * 映射整个文件并关闭文件通道, 之后这个段文件是只读的.
+         */
+        synchronized void seal() throws IOException {
+            if (channel == null)
+                return;
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            close();
+        }
+
+        synchronized void close() throws IOException {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+                channel = null;
+            }
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            MappedByteBuffer buffer = mapped;
+            if (buffer == null) {
+                synchronized (this) {
+                    buffer = mapped;
+                    if (buffer == null) {
+                        if (channel == null)
+                            throw new IOException(file.getAbsolutePath());
+                        ByteBuffer result = ByteBuffer.allocate(length);
+                        while (result.hasRemaining()) {
+                            if (channel.read(result, offset + result.position()) < 0)
+                                throw new IOException(file.getAbsolutePath());
+                        }
+                        result.flip();
+                        return (result);
+                    }
+                }
+            }
+            ByteBuffer result = buffer.duplicate();
+            result.position((int) offset);
+            result.limit((int) offset + length);
+            return (result.slice());
+        }
+    }
+
+
+    /**
+     * 从ByteBuffer读取的输入流, 不复制数据.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            if (!buffer.hasRemaining())
+                return (-1);
+            return (buffer.get() & 0xff);
+        }
+
+        public int read(byte b[], int off, int len) {
+            if (!buffer.hasRemaining())
+                return (-1);
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return (len);
+        }
+
+        public int available() {
+            return (buffer.remaining());
+        }
+    }
+}
@@ -11,11 +11,18 @@ import java.security.AccessController;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivilegedAction;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.management.MBeanRegistration;
 import javax.management.MBeanServer;
@@ -118,6 +125,25 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     protected String randomClass = "java.security.SecureRandom";
 
 
+    /**
+     * 生成会话标识符的SessionIdGenerator实现类的名称.
+     */
+    protected String sessionIdGeneratorClassName =
+        "org.apache.catalina.session.StandardSessionIdGenerator";
+
+
+    /**
+     * 生成会话标识符的SessionIdGenerator, 在第一次使用时创建.
+     */
+    protected volatile SessionIdGenerator sessionIdGenerator = null;
+
+
+    /**
+     * 后台线程预先生成的会话ID池的大小. 0 表示禁用池.
+     */
+    protected int sessionIdPoolSize = 0;
+
+
     /**
      * 过期会话存活的最长时间（秒）.
      */
@@ -138,8 +164,18 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
     /**
      * 当前活动会话集合, 会话标识符作为key.
+     * 内部使用并发Map, 查找会话时不需要获取任何锁. 字段的类型仍然是<code>HashMap</code>,
+     * 以便与按照这个类型编译的子类 (例如集群管理器) 保持二进制兼容.
+     * 通过<code>put()</code>和<code>remove()</code>添加和移除的会话自动维护会话过期索引.
      */
-    protected HashMap sessions = new HashMap();
+    protected HashMap sessions = new SessionMap();
+
+
+    /**
+     * 按过期时间排序的活动会话索引.
+     * 永不过期的会话也在索引中, 过期时间为<code>Long.MAX_VALUE</code>.
+     */
+    protected SessionTimeIndex expiryIndex = new SessionTimeIndex(1000L);
 
     // 此管理器创建的会话数
     protected int sessionCounter=0;
@@ -150,6 +186,16 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     protected int duplicates=0;
 
     protected boolean initialized=false;
+
+    /**
+     * 调用<code>findSession()</code>查找会话的次数.
+     */
+    protected AtomicLong sessionLookups = new AtomicLong();
+
+    /**
+     * 调用<code>findSession()</code>未找到会话的次数.
+     */
+    protected AtomicLong sessionLookupMisses = new AtomicLong();
     
     /**
      * 会话过期期间的处理时间.
@@ -511,6 +557,89 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    /**
+     * 返回SessionIdGenerator实现类的名称.
+     */
+    public String getSessionIdGeneratorClassName() {
+        return (this.sessionIdGeneratorClassName);
+    }
+
+
+    /**
+     * 设置SessionIdGenerator实现类的名称.
+     *
+     * @param sessionIdGeneratorClassName The new generator class name
+     */
+    public void setSessionIdGeneratorClassName(String sessionIdGeneratorClassName) {
+        String oldSessionIdGeneratorClassName = this.sessionIdGeneratorClassName;
+        this.sessionIdGeneratorClassName = sessionIdGeneratorClassName;
+        support.firePropertyChange("sessionIdGeneratorClassName",
+                                   oldSessionIdGeneratorClassName,
+                                   this.sessionIdGeneratorClassName);
+    }
+
+
+    /**
+     * 返回预先生成的会话ID池的大小.
+     */
+    public int getSessionIdPoolSize() {
+        return (this.sessionIdPoolSize);
+    }
+
+
+    /**
+     * 设置预先生成的会话ID池的大小. 0 表示禁用池.
+     *
+     * @param sessionIdPoolSize The new pool size
+     */
+    public void setSessionIdPoolSize(int sessionIdPoolSize) {
+        int oldSessionIdPoolSize = this.sessionIdPoolSize;
+        this.sessionIdPoolSize = sessionIdPoolSize;
+        support.firePropertyChange("sessionIdPoolSize",
+                                   new Integer(oldSessionIdPoolSize),
+                                   new Integer(this.sessionIdPoolSize));
+    }
+
+
+    /**
+     * 返回用于生成会话标识符的SessionIdGenerator.
+     * 如果还没有创建, 创建并启动一个.
+     */
+    public SessionIdGenerator getSessionIdGenerator() {
+        SessionIdGenerator generator = this.sessionIdGenerator;
+        if (generator == null) {
+            synchronized (this) {
+                if (this.sessionIdGenerator == null) {
+                    try {
+                        Class clazz = Class.forName(sessionIdGeneratorClassName);
+                        generator = (SessionIdGenerator) clazz.newInstance();
+                    } catch (Exception e) {
+                        log.error(sm.getString("managerBase.sessionIdGenerator",
+                                sessionIdGeneratorClassName), e);
+                        generator = new StandardSessionIdGenerator();
+                    }
+                    generator.setManager(this);
+                    generator.start();
+                    this.sessionIdGenerator = generator;
+                }
+                generator = this.sessionIdGenerator;
+            }
+        }
+        return (generator);
+    }
+
+
+    /**
+     * 返回生成会话标识符时等待熵所花费的时间 (in milliseconds).
+     */
+    public long getEntropyWaitTime() {
+        SessionIdGenerator generator = this.sessionIdGenerator;
+        if (generator == null)
+            return (0);
+        return (generator.getEntropyWaitTime());
+    }
+
+
     /**
      * 获取已过期的会话的数目.
      *
@@ -583,17 +712,10 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public void processExpires() {
 
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
-        int expireHere = 0 ;
         
         if(log.isDebugEnabled())
-            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (!sessions[i].isValid()) {
-                expiredSessions++;
-                expireHere++;
-            }
-        }
+            log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.size());
+        int expireHere = expireSessions(timeNow);
         long timeEnd = System.currentTimeMillis();
         if(log.isDebugEnabled())
              log.debug("End expire sessions " + getName() + " processingTime " + (timeEnd - timeNow) + " expired sessions: " + expireHere);
@@ -601,7 +723,39 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
     }
 
+
+    /**
+     * 使过期时间已到的会话无效. 只检查过期索引中到期的会话, 而不是所有活动会话.
+     *
+     * @param timeNow The current time
+     * @return 已过期的会话数
+     */
+    protected int expireSessions(long timeNow) {
+        int expireHere = 0;
+        Session due[] = expiryIndex.findUpTo(timeNow, -1);
+        for (int i = 0; i < due.length; i++) {
+            String id = due[i].getIdInternal();
+            if ((id == null) || (sessions.get(id) != due[i])) {
+                // 已经被移除或回收的会话
+                expiryIndex.remove(due[i]);
+                continue;
+            }
+            // 仍然有效的会话 (例如正在使用中) 留在索引中, 下次再检查
+            if (!due[i].isValid()) {
+                expiredSessions++;
+                expireHere++;
+            }
+        }
+        return (expireHere);
+    }
+
+
     public void destroy() {
+        SessionIdGenerator generator = this.sessionIdGenerator;
+        if (generator != null) {
+            generator.stop();
+            this.sessionIdGenerator = null;
+        }
         if( oname != null )
             Registry.getRegistry(null, null).unregisterComponent(oname);
         initialized=false;
@@ -631,9 +785,6 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
             }
         }
         
-        // 初始化随机数生成
-        getRandomBytes(new byte[16]);
-        
         if(log.isDebugEnabled())
             log.debug("Registering " + oname );
     }
@@ -645,11 +796,10 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      */
     public void add(Session session) {
 
-        synchronized (sessions) {
-            sessions.put(session.getIdInternal(), session);
-            if( sessions.size() > maxActive ) {
-                maxActive=sessions.size();
-            }
+        sessions.put(session.getIdInternal(), session);
+        int size = sessions.size();
+        if( size > maxActive ) {
+            maxActive = size;
         }
     }
 
@@ -752,10 +902,11 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     public Session findSession(String id) throws IOException {
         if (id == null)
             return (null);
-        synchronized (sessions) {
-            Session session = (Session) sessions.get(id);
-            return (session);
-        }
+        sessionLookups.incrementAndGet();
+        Session session = (Session) sessions.get(id);
+        if (session == null)
+            sessionLookupMisses.incrementAndGet();
+        return (session);
     }
 
 
@@ -764,12 +915,7 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * 如果这个Manager没有活动的Sessions, 返回零长度数组.
      */
     public Session[] findSessions() {
-        Session results[] = null;
-        synchronized (sessions) {
-            results = new Session[sessions.size()];
-            results = (Session[]) sessions.values().toArray(results);
-        }
-        return (results);
+        return ((Session[]) sessions.values().toArray(new Session[0]));
     }
 
 
@@ -779,9 +925,8 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
      * @param session Session to be removed
      */
     public void remove(Session session) {
-        synchronized (sessions) {
-            sessions.remove(session.getIdInternal());
-        }
+        if (sessions.remove(session.getIdInternal()) != session)
+            unindexSession(session);
     }
 
 
@@ -798,6 +943,44 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * 会话被加入, 访问或者修改了最大非活动间隔后, 更新它在过期索引中的位置.
+     *
+     * @param session The session
+     */
+    protected void indexSession(Session session) {
+        int interval = session.getMaxInactiveInterval();
+        long expiryTime = Long.MAX_VALUE;
+        if (interval >= 0)
+            expiryTime = getThisAccessedTime(session) + interval * 1000L;
+        expiryIndex.update(session, expiryTime);
+    }
+
+
+    /**
+     * 从过期索引中移除会话.
+     *
+     * @param session The session
+     */
+    protected void unindexSession(Session session) {
+        expiryIndex.remove(session);
+    }
+
+
+    /**
+     * 返回会话最近一次开始访问的时间, 对无效会话不抛出异常.
+     */
+    protected long getThisAccessedTime(Session session) {
+        if (session instanceof StandardSession)
+            return ((StandardSession) session).getThisAccessedTimeInternal();
+        try {
+            return session.getLastAccessedTime();
+        } catch (IllegalStateException e) {
+            return session.getCreationTime();
+        }
+    }
+
+
     /**
      * 获取在doLoad()方法中使用的新会话类.
      */
@@ -837,47 +1020,16 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
 
 
     /**
-     * 生成并返回一个新会话标识符.
+     * 生成并返回一个新会话标识符, 使用配置的SessionIdGenerator.
      */
-    protected synchronized String generateSessionId() {
-
-        byte random[] = new byte[16];
-        String jvmRoute = getJvmRoute();
-        String result = null;
-
-        // 将结果呈现为十六进制数字的字符串
-        StringBuffer buffer = new StringBuffer();
-        do {
-            int resultLenBytes = 0;
-            if (result != null) {
-                buffer = new StringBuffer();
-                duplicates++;
-            }
+    protected String generateSessionId() {
 
-            while (resultLenBytes < this.sessionIdLength) {
-                getRandomBytes(random);
-                random = getDigest().digest(random);
-                for (int j = 0;
-                j < random.length && resultLenBytes < this.sessionIdLength;
-                j++) {
-                    byte b1 = (byte) ((random[j] & 0xf0) >> 4);
-                    byte b2 = (byte) (random[j] & 0x0f);
-                    if (b1 < 10)
-                        buffer.append((char) ('0' + b1));
-                    else
-                        buffer.append((char) ('A' + (b1 - 10)));
-                    if (b2 < 10)
-                        buffer.append((char) ('0' + b2));
-                    else
-                        buffer.append((char) ('A' + (b2 - 10)));
-                    resultLenBytes++;
-                }
-            }
-            if (jvmRoute != null) {
-                buffer.append('.').append(jvmRoute);
-            }
-            result = buffer.toString();
-        } while (sessions.get(result) != null);
+        SessionIdGenerator generator = getSessionIdGenerator();
+        String result = generator.generateSessionId();
+        while (sessions.get(result) != null) {
+            duplicates++;
+            result = generator.generateSessionId();
+        }
         return (result);
     }
 
@@ -954,6 +1106,36 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    /**
+     * 调用<code>findSession()</code>查找会话的次数.
+     *
+     * @return number of session lookups
+     */
+    public long getSessionLookups() {
+        return sessionLookups.get();
+    }
+
+
+    public void setSessionLookups(long sessionLookups) {
+        this.sessionLookups.set(sessionLookups);
+    }
+
+
+    /**
+     * 调用<code>findSession()</code>未找到会话的次数.
+     *
+     * @return number of session lookups which found no session
+     */
+    public long getSessionLookupMisses() {
+        return sessionLookupMisses.get();
+    }
+
+
+    public void setSessionLookupMisses(long sessionLookupMisses) {
+        this.sessionLookupMisses.set(sessionLookupMisses);
+    }
+
+
     /**
      * 最大并行活动会话数
      */
@@ -1094,6 +1276,218 @@ public abstract class ManagerBase implements Manager, MBeanRegistration {
     }
 
 
+    // ------------------------------------------------------------ SessionMap
+
+
+    /**
+     * 活动会话集合. 继承<code>HashMap</code>只是为了保持字段的类型, 所有操作都委托给一个<code>ConcurrentHashMap</code>.
+     * 添加或移除会话时更新会话过期索引, 所以直接修改<code>sessions</code>的子类也不会绕过索引.
+     * 通过视图的迭代器移除的会话不会从索引中移除, 它们在<code>expireSessions()</code>中被清除.
+     */
+    private class SessionMap extends HashMap {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int KEYS = 0;
+        private static final int VALUES = 1;
+        private static final int ENTRIES = 2;
+
+        private final ConcurrentHashMap map = new ConcurrentHashMap();
+
+        public int size() {
+            return map.size();
+        }
+
+        public boolean isEmpty() {
+            return map.isEmpty();
+        }
+
+        public Object get(Object key) {
+            return map.get(key);
+        }
+
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        public boolean containsValue(Object value) {
+            return map.containsValue(value);
+        }
+
+        public Object put(Object key, Object value) {
+            Object old = map.put(key, value);
+            if ((old != null) && (old != value))
+                unindexSession((Session) old);
+            indexSession((Session) value);
+            return old;
+        }
+
+        public void putAll(Map m) {
+            Iterator entries = m.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry entry = (Map.Entry) entries.next();
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        public Object remove(Object key) {
+            Object old = map.remove(key);
+            if (old != null)
+                unindexSession((Session) old);
+            return old;
+        }
+
+        public void clear() {
+            Iterator values = map.values().iterator();
+            while (values.hasNext()) {
+                unindexSession((Session) values.next());
+                values.remove();
+            }
+        }
+
+        public Set keySet() {
+            return new AbstractSet() {
+                public Iterator iterator() {
+                    return new SessionIterator(KEYS);
+                }
+                public int size() {
+                    return map.size();
+                }
+                public boolean contains(Object o) {
+                    return map.containsKey(o);
+                }
+                public boolean remove(Object o) {
+                    return (SessionMap.this.remove(o) != null);
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+            };
+        }
+
+        public Collection values() {
+            return new AbstractCollection() {
+                public Iterator iterator() {
+                    return new SessionIterator(VALUES);
+                }
+                public int size() {
+                    return map.size();
+                }
+                public boolean contains(Object o) {
+                    return map.containsValue(o);
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+            };
+        }
+
+        public Set entrySet() {
+            return new AbstractSet() {
+                public Iterator iterator() {
+                    return new SessionIterator(ENTRIES);
+                }
+                public int size() {
+                    return map.size();
+                }
+                public void clear() {
+                    SessionMap.this.clear();
+                }
+            };
+        }
+
+        public Object clone() {
+            HashMap copy = new HashMap();
+            copy.putAll(map);
+            return copy;
+        }
+
+
+        /**
+         * 视图的迭代器. 通过迭代器移除或替换会话时同时更新过期索引.
+         */
+        private class SessionIterator implements Iterator {
+
+            private final Iterator entries = map.entrySet().iterator();
+            private final int type;
+            private Map.Entry last = null;
+
+            SessionIterator(int type) {
+                this.type = type;
+            }
+
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            public Object next() {
+                last = (Map.Entry) entries.next();
+                if (type == KEYS)
+                    return last.getKey();
+                if (type == VALUES)
+                    return last.getValue();
+                return new SessionEntry(last.getKey(), last.getValue());
+            }
+
+            public void remove() {
+                if (last == null)
+                    throw new IllegalStateException();
+                if (map.remove(last.getKey(), last.getValue()))
+                    unindexSession((Session) last.getValue());
+                last = null;
+            }
+
+        }
+
+
+        /**
+         * 视图中的一个会话. <code>setValue()</code>通过<code>put()</code>替换会话.
+         */
+        private class SessionEntry implements Map.Entry {
+
+            private final Object key;
+            private Object value;
+
+            SessionEntry(Object key, Object value) {
+                this.key = key;
+                this.value = value;
+            }
+
+            public Object getKey() {
+                return key;
+            }
+
+            public Object getValue() {
+                return value;
+            }
+
+            public Object setValue(Object value) {
+                Object old = this.value;
+                put(key, value);
+                this.value = value;
+                return old;
+            }
+
+            public boolean equals(Object o) {
+                if (!(o instanceof Map.Entry))
+                    return false;
+                Map.Entry e = (Map.Entry) o;
+                return key.equals(e.getKey()) && value.equals(e.getValue());
+            }
+
+            public int hashCode() {
+                return key.hashCode() ^ value.hashCode();
+            }
+
+            public String toString() {
+                return key + "=" + value;
+            }
+
+        }
+
+    }
+
+
     // -------------------- JMX and Registration  --------------------
     protected String domain;
     protected ObjectName oname;
@@ -168,6 +168,49 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     protected long processingTime = 0;
 
 
+    /**
+     * 按最近一次访问时间排序的活动会话索引, 用于交换空闲会话.
+     */
+    protected SessionTimeIndex idleIndex = new SessionTimeIndex(1000L);
+
+
+    /**
+     * 按最近一次访问时间排序的尚未备份的活动会话索引.
+     * 会话被备份后从这个索引中移除, 直到它再次被访问.
+     */
+    protected SessionTimeIndex backupIndex = new SessionTimeIndex(1000L);
+
+
+    /**
+     * 是否通过后台线程异步地按批次将会话写入Store?
+     */
+    protected boolean writeBehind = false;
+
+
+    /**
+     * 等待异步写入的会话的最大数量. 达到这个数量时, 写入会话的线程将阻塞.
+     */
+    protected int writeBehindQueueSize = 10000;
+
+
+    /**
+     * 每个批次异步写入的会话的最大数量.
+     */
+    protected int writeBehindBatchSize = 100;
+
+
+    /**
+     * 两次定期异步写入之间的间隔 (in milliseconds).
+     */
+    protected int writeBehindFlushInterval = 1000;
+
+
+    /**
+     * 异步写入队列, 如果未启用, 则为<code>null</code>.
+     */
+    protected WriteBehindQueue writeBehindQueue = null;
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -249,6 +292,97 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     }
 
 
+    /**
+     * 是否异步地按批次将会话写入Store.
+     */
+    public boolean getWriteBehind() {
+        return writeBehind;
+    }
+
+
+    /**
+     * 设置是否异步地按批次将会话写入Store. 在Manager启动时生效.
+     *
+     * @param writeBehind The new write-behind flag
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        boolean oldWriteBehind = this.writeBehind;
+        this.writeBehind = writeBehind;
+        support.firePropertyChange("writeBehind",
+                                   new Boolean(oldWriteBehind),
+                                   new Boolean(this.writeBehind));
+    }
+
+
+    /**
+     * 等待异步写入的会话的最大数量.
+     */
+    public int getWriteBehindQueueSize() {
+        return writeBehindQueueSize;
+    }
+
+
+    /**
+     * 设置等待异步写入的会话的最大数量. 在Manager启动时生效.
+     */
+    public void setWriteBehindQueueSize(int writeBehindQueueSize) {
+        int oldWriteBehindQueueSize = this.writeBehindQueueSize;
+        this.writeBehindQueueSize = writeBehindQueueSize;
+        support.firePropertyChange("writeBehindQueueSize",
+                                   new Integer(oldWriteBehindQueueSize),
+                                   new Integer(this.writeBehindQueueSize));
+    }
+
+
+    /**
+     * 每个批次异步写入的会话的最大数量.
+     */
+    public int getWriteBehindBatchSize() {
+        return writeBehindBatchSize;
+    }
+
+
+    /**
+     * 设置每个批次异步写入的会话的最大数量. 在Manager启动时生效.
+     */
+    public void setWriteBehindBatchSize(int writeBehindBatchSize) {
+        int oldWriteBehindBatchSize = this.writeBehindBatchSize;
+        this.writeBehindBatchSize = writeBehindBatchSize;
+        support.firePropertyChange("writeBehindBatchSize",
+                                   new Integer(oldWriteBehindBatchSize),
+                                   new Integer(this.writeBehindBatchSize));
+    }
+
+
+    /**
+     * 两次定期异步写入之间的间隔 (in milliseconds).
+     */
+    public int getWriteBehindFlushInterval() {
+        return writeBehindFlushInterval;
+    }
+
+
+    /**
+     * 设置两次定期异步写入之间的间隔 (in milliseconds). 在Manager启动时生效.
+     */
+    public void setWriteBehindFlushInterval(int writeBehindFlushInterval) {
+        int oldWriteBehindFlushInterval = this.writeBehindFlushInterval;
+        this.writeBehindFlushInterval = writeBehindFlushInterval;
+        support.firePropertyChange("writeBehindFlushInterval",
+                                   new Integer(oldWriteBehindFlushInterval),
+                                   new Integer(this.writeBehindFlushInterval));
+    }
+
+
+    /**
+     * 返回等待异步写入的会话数.
+     */
+    public int getWriteBehindPending() {
+        WriteBehindQueue queue = writeBehindQueue;
+        return (queue == null) ? 0 : queue.getPendingCount();
+    }
+
+
     /**
 	 * 设置关联的Container.
      * 如果是一个Context (通常情况下), 监听会话超时属性的更改.
@@ -416,6 +550,9 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         if (store == null)
             return;
 
+        if (writeBehindQueue != null)
+            writeBehindQueue.flush();
+
         try {     
             if (SecurityUtil.isPackageProtectionEnabled()){
                 try{
@@ -441,16 +578,9 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 	public void processExpires() {
 		
         long timeNow = System.currentTimeMillis();
-        Session sessions[] = findSessions();
-        int expireHere = 0 ;
         if(log.isDebugEnabled())
-             log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.length);
-        for (int i = 0; i < sessions.length; i++) {
-            if (!sessions[i].isValid()) {
-                expiredSessions++;
-                expireHere++;
-            }
-        }
+             log.debug("Start expire sessions " + getName() + " at " + timeNow + " sessioncount " + sessions.size());
+        int expireHere = expireSessions(timeNow);
         processPersistenceChecks();
         if ((getStore() != null) && (getStore() instanceof StoreBase)) {
             ((StoreBase) getStore()).processExpires();
@@ -512,6 +642,9 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
         // 初始化内部数据结构
         sessions.clear();
+        expiryIndex.clear();
+        idleIndex.clear();
+        backupIndex.clear();
 
         if (store == null)
             return;
@@ -573,6 +706,8 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
      * @param id Session's id to be removed
      */    
     protected void removeSession(String id){
+        if (writeBehindQueue != null)
+            writeBehindQueue.cancel(id);
         try {
             if (SecurityUtil.isPackageProtectionEnabled()){
                 try{
@@ -626,6 +761,42 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     // ------------------------------------------------------ Protected Methods
 
 
+    /**
+     * 更新会话在过期索引, 空闲索引和备份索引中的位置.
+     *
+     * @param session The session
+     */
+    protected void indexSession(Session session) {
+        super.indexSession(session);
+        long accessedTime = getThisAccessedTime(session);
+        idleIndex.update(session, accessedTime);
+        backupIndex.update(session, accessedTime);
+    }
+
+
+    /**
+     * 会话的异步备份失败. 如果会话仍然是活动的, 重新放入备份索引, 以便再次备份.
+     *
+     * @param session The session
+     */
+    protected void backupFailed(Session session) {
+        if (session.isValid() && isLoaded(session.getIdInternal()))
+            backupIndex.update(session, getThisAccessedTime(session));
+    }
+
+
+    /**
+     * 从所有的会话索引中移除会话.
+     *
+     * @param session The session
+     */
+    protected void unindexSession(Session session) {
+        super.unindexSession(session);
+        idleIndex.remove(session);
+        backupIndex.remove(session);
+    }
+
+
     /**
      * 从Store中查找会话, 如果有合适的话，在Manager的活动列表中恢复它.
      * 会话将从Store中移除，在交换之后, 但如果活动会话列表无效或过期，则不会将其添加到活动会话列表中.
@@ -635,6 +806,20 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         if (store == null)
             return null;
 
+        // 会话可能仍在等待异步写入
+        if (writeBehindQueue != null) {
+            Session session = writeBehindQueue.take(id);
+            if (session != null) {
+                if(log.isDebugEnabled())
+                    log.debug(sm.getString("persistentManager.writeBehindTake", id));
+                ((StandardSession)session).tellNew();
+                add(session);
+                ((StandardSession)session).activate();
+                session.endAccess();
+                return (session);
+            }
+        }
+
         Session session = null;
         try {
             if (SecurityUtil.isPackageProtectionEnabled()){
@@ -696,6 +881,12 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         }
 
         ((StandardSession)session).passivate();
+        if (writeBehindQueue != null) {
+            // 会话在写入Store之后由写入队列回收
+            writeBehindQueue.enqueue(session, true);
+            super.remove(session);
+            return;
+        }
         writeSession(session);
         super.remove(session);
         session.recycle();
@@ -712,6 +903,11 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             return;
         }
 
+        if (writeBehindQueue != null) {
+            writeBehindQueue.enqueue(session, false);
+            return;
+        }
+
         try {
             if (SecurityUtil.isPackageProtectionEnabled()){
                 try{
@@ -733,6 +929,24 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
     }
 
 
+    /**
+     * 将一组会话写入Store, 由异步写入队列调用.
+     * 如果Store支持, 整个批次在一次操作中写入.
+     *
+     * @param sessions The sessions to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void saveSessions(Session sessions[]) throws IOException {
+        if (store instanceof StoreBase) {
+            ((StoreBase) store).saveAll(sessions);
+        } else {
+            for (int i = 0; i < sessions.length; i++)
+                store.save(sessions[i]);
+        }
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -795,6 +1009,12 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
         else if (store instanceof Lifecycle)
             ((Lifecycle)store).start();
 
+        if (store != null && writeBehind) {
+            writeBehindQueue = new WriteBehindQueue(this, writeBehindQueueSize,
+                    writeBehindBatchSize, writeBehindFlushInterval);
+            writeBehindQueue.start();
+        }
+
     }
 
 
@@ -831,6 +1051,12 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
             }
         }
 
+        // 在停止Store之前写出所有等待中的会话
+        if (writeBehindQueue != null) {
+            writeBehindQueue.stop();
+            writeBehindQueue = null;
+        }
+
         if (getStore() != null && getStore() instanceof Lifecycle)
             ((Lifecycle)getStore()).stop();
 
@@ -875,35 +1101,37 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
     /**
      * 交换空闲会话到 Store, 如果它们闲置太长时间.
+     * 只检查空闲索引中闲置时间足够长的会话.
      */
     protected void processMaxIdleSwaps() {
 
         if (!isStarted() || maxIdleSwap < 0)
             return;
 
-        Session sessions[] = findSessions();
         long timeNow = System.currentTimeMillis();
+        int maxIdle = Math.max(maxIdleSwap, minIdleSwap);
+        Session sessions[] = idleIndex.findUpTo(timeNow - (maxIdle + 1) * 1000L, -1);
 
         // 交换出所有闲置时间超过maxIdleSwap的会话
         // FIXME: What's preventing us from mangling a session during
         // a request?
-        if (maxIdleSwap >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
-                if (!session.isValid())
-                    continue;
-                int timeIdle = // Truncate, do not round up
-                    (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-                if (timeIdle > maxIdleSwap && timeIdle > minIdleSwap) {
-                    if (log.isDebugEnabled())
-                        log.debug(sm.getString
-                            ("persistentManager.swapMaxIdle",
-                             session.getIdInternal(), new Integer(timeIdle)));
-                    try {
-                        swapOut(session);
-                    } catch (IOException e) {
-                        ;   // This is logged in writeSession()
-                    }
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            if (!session.isValid()) {
+                unindexSession(session);
+                continue;
+            }
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
+            if (timeIdle > maxIdleSwap && timeIdle > minIdleSwap) {
+                if (log.isDebugEnabled())
+                    log.debug(sm.getString
+                        ("persistentManager.swapMaxIdle",
+                         session.getIdInternal(), new Integer(timeIdle)));
+                try {
+                    swapOut(session);
+                } catch (IOException e) {
+                    ;   // This is logged in writeSession()
                 }
             }
         }
@@ -911,28 +1139,33 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
 
     /**
-     * 交换空闲会话到Store, 如果太多活动的会话
+     * 交换空闲会话到Store, 如果太多活动的会话.
+     * 按最近一次访问时间从早到晚交换.
      */
     protected void processMaxActiveSwaps() {
 
         if (!isStarted() || getMaxActiveSessions() < 0)
             return;
 
-        Session sessions[] = findSessions();
-
-        // FIXME: Smarter algorithm (LRU)
-        if (getMaxActiveSessions() >= sessions.length)
+        int activeSessions = sessions.size();
+        if (getMaxActiveSessions() >= activeSessions)
             return;
 
         if(log.isDebugEnabled())
             log.debug(sm.getString
                 ("persistentManager.tooManyActive",
-                 new Integer(sessions.length)));
+                 new Integer(activeSessions)));
 
-        int toswap = sessions.length - getMaxActiveSessions();
+        int toswap = activeSessions - getMaxActiveSessions();
         long timeNow = System.currentTimeMillis();
+        Session sessions[] =
+            idleIndex.findUpTo(timeNow - (minIdleSwap + 1) * 1000L, toswap);
 
         for (int i = 0; i < sessions.length && toswap > 0; i++) {
+            if (!sessions[i].isValid()) {
+                unindexSession(sessions[i]);
+                continue;
+            }
             int timeIdle = // Truncate, do not round up
                 (int) ((timeNow - sessions[i].getLastAccessedTime()) / 1000L);
             if (timeIdle > minIdleSwap) {
@@ -953,34 +1186,37 @@ public abstract class PersistentManagerBase extends ManagerBase implements Lifec
 
     /**
      * 备份空闲会话.
+     * 每个会话在两次访问之间只备份一次.
      */
     protected void processMaxIdleBackups() {
 
         if (!isStarted() || maxIdleBackup < 0)
             return;
 
-        Session sessions[] = findSessions();
         long timeNow = System.currentTimeMillis();
+        Session sessions[] =
+            backupIndex.findUpTo(timeNow - (maxIdleBackup + 1) * 1000L, -1);
 
         // 备份所有空闲时间超过maxIdleBackup的会话
-        if (maxIdleBackup >= 0) {
-            for (int i = 0; i < sessions.length; i++) {
-                StandardSession session = (StandardSession) sessions[i];
-                if (!session.isValid())
-                    continue;
-                int timeIdle = // Truncate, do not round up
-                    (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
-                if (timeIdle > maxIdleBackup) {
-                    if (log.isDebugEnabled())
-                        log.debug(sm.getString
-                            ("persistentManager.backupMaxIdle",
-                            session.getIdInternal(), new Integer(timeIdle)));
-
-                    try {
-                        writeSession(session);
-                    } catch (IOException e) {
-                        ;   // This is logged in writeSession()
-                    }
+        for (int i = 0; i < sessions.length; i++) {
+            StandardSession session = (StandardSession) sessions[i];
+            if (!session.isValid()) {
+                unindexSession(session);
+                continue;
+            }
+            int timeIdle = // Truncate, do not round up
+                (int) ((timeNow - session.getLastAccessedTime()) / 1000L);
+            if (timeIdle > maxIdleBackup) {
+                if (log.isDebugEnabled())
+                    log.debug(sm.getString
+                        ("persistentManager.backupMaxIdle",
+                        session.getIdInternal(), new Integer(timeIdle)));
+
+                try {
+                    writeSession(session);
+                    backupIndex.remove(session);
+                } catch (IOException e) {
+                    ;   // This is logged in writeSession()
                 }
             }
         }
@@ -0,0 +1,45 @@
+package org.apache.catalina.session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * 会话编解码器. Store通过<code>codecClassName</code>属性指定的实现类序列化和反序列化会话,
+ * 实现类必须有一个无参构造方法, 并且是线程安全的.
+ */
+public interface SessionCodec {
+
+
+    /**
+     * 将会话的完整数据写入指定的输出流. 不关闭输出流.
+     * <p>
+     * 与<code>StandardSession.writeObjectData()</code>一样, 不可序列化的属性将从会话中解绑.
+     *
+     * @param session 要写入的会话
+     * @param stream 输出流
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeSession(StandardSession session, OutputStream stream)
+        throws IOException;
+
+
+    /**
+     * 从指定的输入流读取会话的完整数据. 不关闭输入流.
+     * 会话必须已经关联了Manager.
+     *
+     * @param session 要读入的空会话
+     * @param stream 输入流
+     * @param classLoader 用于加载属性类的类加载器, 或<code>null</code>
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void readSession(StandardSession session, InputStream stream,
+                            ClassLoader classLoader)
+        throws ClassNotFoundException, IOException;
+
+
+}
@@ -0,0 +1,44 @@
+package org.apache.catalina.session;
+
+
+/**
+ * 会话标识符生成器.
+ * <code>ManagerBase</code>通过<code>sessionIdGeneratorClassName</code>属性指定的实现类生成会话ID,
+ * 实现类必须有一个无参构造方法, 并且<code>generateSessionId()</code>方法必须是线程安全的.
+ */
+public interface SessionIdGenerator {
+
+
+    /**
+     * 设置关联的Manager. 生成器从这个Manager读取算法、随机数生成器类、熵、会话ID长度和jvmRoute等配置.
+     *
+     * @param manager The associated Manager
+     */
+    public void setManager(ManagerBase manager);
+
+
+    /**
+     * 启动生成器, 在第一次调用<code>generateSessionId()</code>之前调用.
+     */
+    public void start();
+
+
+    /**
+     * 停止生成器并释放它持有的所有资源 (例如后台线程).
+     */
+    public void stop();
+
+
+    /**
+     * 生成并返回一个新会话标识符. 不检查唯一性, 这由调用者负责.
+     */
+    public String generateSessionId();
+
+
+    /**
+     * 返回等待熵(初始化和播种随机数生成器)所花费的时间 (in milliseconds).
+     */
+    public long getEntropyWaitTime();
+
+
+}
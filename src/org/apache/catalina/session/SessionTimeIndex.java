@@ -0,0 +1,175 @@
+package org.apache.catalina.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.catalina.Session;
+
+
+/**
+ * 按时间排序的会话索引, 用于会话过期和空闲会话的处理.
+ * <p>
+ * 会话按时间分组到固定粒度的桶中, 桶按时间排序. 后台处理只需要访问时间不超过指定值的桶,
+ * 而不必遍历所有的活动会话. 所有操作都不需要获取全局锁, 可以在请求线程中调用.
+ * <p>
+ * 当会话被移动到另一个桶时, 旧桶中可能短暂地残留一个过期的条目; 这样的条目在查找时会被识别并清除.
+ */
+public final class SessionTimeIndex {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param resolution 桶的时间粒度 (in milliseconds)
+     */
+    public SessionTimeIndex(long resolution) {
+        this.resolution = resolution;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 桶的时间粒度 (in milliseconds).
+     */
+    private long resolution;
+
+
+    /**
+     * 桶的集合, 桶的序号作为key. 每个桶是一个以会话为key的并发Map.
+     */
+    private ConcurrentNavigableMap buckets = new ConcurrentSkipListMap();
+
+
+    /**
+     * 每个会话当前所在的桶的序号.
+     */
+    private Map positions = new ConcurrentHashMap();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 将会话加入索引, 或者移动到指定时间对应的桶中.
+     *
+     * @param session The session
+     * @param time The time for this session
+     */
+    public void update(Session session, long time) {
+        Long tick = new Long(time / resolution);
+        Long oldTick = (Long) positions.put(session, tick);
+        if (tick.equals(oldTick))
+            return;
+        if (oldTick != null) {
+            Map bucket = (Map) buckets.get(oldTick);
+            if (bucket != null)
+                bucket.remove(session);
+        }
+        addToBucket(session, tick);
+    }
+
+
+    /**
+     * 从索引中移除会话.
+     *
+     * @param session The session
+     */
+    public void remove(Session session) {
+        Long tick = (Long) positions.remove(session);
+        if (tick != null) {
+            Map bucket = (Map) buckets.get(tick);
+            if (bucket != null)
+                bucket.remove(session);
+        }
+    }
+
+
+    /**
+     * 返回时间不晚于指定时间的会话, 按时间从早到晚排序. 会话不会从索引中移除.
+     * 由于桶的粒度, 结果可能包含时间稍晚于指定时间的会话, 调用者应该自己检查.
+     *
+     * @param time The upper bound for the time of the sessions
+     * @param max 返回的会话的最大数量, 或-1 表示没有限制
+     */
+    public Session[] findUpTo(long time, int max) {
+        ArrayList results = new ArrayList();
+        Long lastTick = new Long(time / resolution);
+        Iterator ticks = buckets.headMap(lastTick, true).entrySet().iterator();
+        while (ticks.hasNext() && (max < 0 || results.size() < max)) {
+            Map.Entry entry = (Map.Entry) ticks.next();
+            Long tick = (Long) entry.getKey();
+            Map bucket = (Map) entry.getValue();
+            if (bucket.isEmpty()) {
+                if (buckets.remove(tick, bucket) && !bucket.isEmpty()) {
+                    // 会话在删除桶的同时被加入, 将它们移到新的桶中
+                    Iterator sessions = bucket.keySet().iterator();
+                    while (sessions.hasNext()) {
+                        Session session = (Session) sessions.next();
+                        if (tick.equals(positions.get(session)))
+                            addToBucket(session, tick);
+                    }
+                }
+                continue;
+            }
+            Iterator sessions = bucket.keySet().iterator();
+            while (sessions.hasNext() && (max < 0 || results.size() < max)) {
+                Session session = (Session) sessions.next();
+                if (tick.equals(positions.get(session))) {
+                    results.add(session);
+                } else {
+                    // 会话已经被移动或移除
+                    bucket.remove(session);
+                }
+            }
+        }
+        return ((Session[]) results.toArray(new Session[results.size()]));
+    }
+
+
+    /**
+     * 返回索引中的会话数量.
+     */
+    public int size() {
+        return (positions.size());
+    }
+
+
+    /**
+     * 清空索引.
+     */
+    public void clear() {
+        positions.clear();
+        buckets.clear();
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 将会话加入指定的桶, 如果桶同时被删除, 则重试.
+     */
+    private void addToBucket(Session session, Long tick) {
+        while (true) {
+            Map bucket = (Map) buckets.get(tick);
+            if (bucket == null) {
+                bucket = new ConcurrentHashMap();
+                Map existing = (Map) buckets.putIfAbsent(tick, bucket);
+                if (existing != null)
+                    bucket = existing;
+            }
+            bucket.put(session, tick);
+            if (buckets.get(tick) == bucket)
+                return;
+        }
+    }
+
+
+}
@@ -278,6 +278,7 @@ public class StandardManager extends ManagerBase implements Lifecycle, PropertyC
 
         // 初始化内部数据结构
         sessions.clear();
+        expiryIndex.clear();
 
         // 打开一个输入流到指定的路径
         File file = file();
@@ -14,9 +14,11 @@ import java.security.PrivilegedAction;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -224,6 +226,20 @@ public class StandardSession implements HttpSession, Session, Serializable {
     protected transient int accessCount = 0;
 
 
+    /**
+     * 自从上一次写入基础数据或增量数据以来, 被设置或删除的属性的名称.
+     * 访问时必须同步这个对象.
+     */
+    protected transient Set dirtyAttributes = new HashSet();
+
+
+    /**
+     * Store中是否保存了这个会话的基础数据, 使得下一次可以只写入增量数据?
+     * 新创建的会话, 以及通过其它方式反序列化的会话, 必须先写入完整的基础数据.
+     */
+    protected transient boolean deltaReady = false;
+
+
     // ----------------------------------------------------- Session Properties
 
 
@@ -362,6 +378,14 @@ public class StandardSession implements HttpSession, Session, Serializable {
     }
 
 
+    /**
+     * 返回最近一次开始访问的时间, 即使会话无效也不抛出异常. 用于Manager维护会话索引.
+     */
+    public long getThisAccessedTimeInternal() {
+        return (this.thisAccessedTime);
+    }
+
+
     /**
      * 返回其中会话有效的Manager.
      */
@@ -399,6 +423,8 @@ public class StandardSession implements HttpSession, Session, Serializable {
         this.maxInactiveInterval = interval;
         if (isValid && interval == 0) {
             expire();
+        } else {
+            updateIndex();
         }
     }
 
@@ -509,6 +535,7 @@ public class StandardSession implements HttpSession, Session, Serializable {
 
         evaluateIfValid();
         accessCount++;
+        updateIndex();
     }
 
 
@@ -518,6 +545,7 @@ public class StandardSession implements HttpSession, Session, Serializable {
     public void endAccess() {
         isNew = false;
         accessCount--;
+        updateIndex();
     }
 
 
@@ -720,6 +748,10 @@ public class StandardSession implements HttpSession, Session, Serializable {
         isNew = false;
         isValid = false;
         manager = null;
+        synchronized (dirtyAttributes) {
+            dirtyAttributes.clear();
+        }
+        deltaReady = false;
     }
 
 
@@ -791,6 +823,125 @@ public class StandardSession implements HttpSession, Session, Serializable {
     }
 
 
+    /**
+     * 清除被修改的属性的记录, 在写入这个会话的完整数据 (作为以后的增量数据的基础) 之前调用.
+     * 在写入之前清除, 写入期间被修改的属性将包含在下一次增量数据中.
+     */
+    public void resetDeltaState() {
+        synchronized (dirtyAttributes) {
+            dirtyAttributes.clear();
+        }
+        deltaReady = true;
+    }
+
+
+    /**
+     * 写入自从上一次写入完整数据或增量数据以来的修改: 时间戳和状态, 以及被设置或删除的属性.
+     * 只能跟踪通过<code>setAttribute()</code>和<code>removeAttribute()</code>进行的修改,
+     * 直接修改属性值对象的内容不会被记录.
+     *
+     * @param stream The object output stream to write to
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void writeDeltaData(ObjectOutputStream stream)
+        throws IOException {
+
+        String names[] = null;
+        synchronized (dirtyAttributes) {
+            names = (String[]) dirtyAttributes.toArray(new String[dirtyAttributes.size()]);
+            dirtyAttributes.clear();
+        }
+
+        // 写入scalar 实例变量(except Manager)
+        stream.writeObject(new Long(lastAccessedTime));
+        stream.writeObject(new Integer(maxInactiveInterval));
+        stream.writeObject(new Boolean(isNew));
+        stream.writeObject(new Boolean(isValid));
+        stream.writeObject(new Long(thisAccessedTime));
+        if (manager.getContainer().getLogger().isDebugEnabled())
+            manager.getContainer().getLogger().debug
+                ("writeDeltaData() storing " + names.length +
+                 " changed attributes of session " + id);
+
+        // 序列化被修改的属性, 已删除或不可序列化的属性写入为删除
+        stream.writeObject(new Integer(names.length));
+        for (int i = 0; i < names.length; i++) {
+            Object value = attributes.get(names[i]);
+            stream.writeObject(names[i]);
+            if (value == null) {
+                stream.writeObject(Boolean.FALSE);
+                continue;
+            } else if (!(value instanceof Serializable) || exclude(names[i])) {
+                removeAttributeInternal(names[i], true);
+                stream.writeObject(Boolean.FALSE);
+                continue;
+            }
+            stream.writeObject(Boolean.TRUE);
+            try {
+                stream.writeObject(value);
+            } catch (NotSerializableException e) {
+                manager.getContainer().getLogger().warn
+                    (sm.getString("standardSession.notSerializable",
+                     names[i], id), e);
+                stream.writeObject(NOT_SERIALIZED);
+            }
+        }
+    }
+
+
+    /**
+     * 读取<code>writeDeltaData()</code>写入的增量数据, 并应用于这个会话. 不通知任何监听器.
+     *
+     * @param stream The object input stream to read from
+     *
+     * @exception ClassNotFoundException if an unknown class is specified
+     * @exception IOException if an input/output error occurs
+     */
+    public void readDeltaData(ObjectInputStream stream)
+        throws ClassNotFoundException, IOException {
+
+        lastAccessedTime = ((Long) stream.readObject()).longValue();
+        maxInactiveInterval = ((Integer) stream.readObject()).intValue();
+        isNew = ((Boolean) stream.readObject()).booleanValue();
+        isValid = ((Boolean) stream.readObject()).booleanValue();
+        thisAccessedTime = ((Long) stream.readObject()).longValue();
+
+        int n = ((Integer) stream.readObject()).intValue();
+        for (int i = 0; i < n; i++) {
+            String name = (String) stream.readObject();
+            boolean present = ((Boolean) stream.readObject()).booleanValue();
+            Object value = null;
+            if (present)
+                value = stream.readObject();
+            if (!present || ((value instanceof String) && (value.equals(NOT_SERIALIZED)))) {
+                attributes.remove(name);
+            } else {
+                attributes.put(name, value);
+            }
+        }
+    }
+
+
+    /**
+     * Store中是否保存了这个会话的基础数据, 使得可以只写入增量数据?
+     */
+    public boolean isDeltaReady() {
+        return (this.deltaReady);
+    }
+
+
+    /**
+     * 设置Store中是否保存了这个会话的基础数据. Store在写入失败时设置为<code>false</code>,
+     * 在从基础数据和增量数据恢复会话后设置为<code>true</code>.
+     *
+     * @param deltaReady The new flag value
+     */
+    public void setDeltaReady(boolean deltaReady) {
+        this.deltaReady = deltaReady;
+    }
+
+
     // ------------------------------------------------- HttpSession Properties
 
 
@@ -1072,6 +1223,7 @@ public class StandardSession implements HttpSession, Session, Serializable {
 
         // 替换或添加
         Object unbound = attributes.put(name, value);
+        markDirty(name);
 
         // Call the valueUnbound() method if necessary
         if ((unbound != null) && (unbound != value) &&
@@ -1198,6 +1350,10 @@ public class StandardSession implements HttpSession, Session, Serializable {
         if (notes == null) {
             notes = new Hashtable();
         }
+
+        if (dirtyAttributes == null) {
+            dirtyAttributes = new HashSet();
+        }
     }
 
 
@@ -1283,6 +1439,27 @@ public class StandardSession implements HttpSession, Session, Serializable {
     }
 
 
+    /**
+     * 记录一个被设置或删除的属性, 以便写入增量数据.
+     *
+     * @param name 属性名称
+     */
+    protected void markDirty(String name) {
+        synchronized (dirtyAttributes) {
+            dirtyAttributes.add(name);
+        }
+    }
+
+
+    /**
+     * 通知Manager更新这个会话在它的会话索引中的位置.
+     */
+    protected void updateIndex() {
+        if (isValid && (id != null) && (manager instanceof ManagerBase))
+            ((ManagerBase) manager).indexSession(this);
+    }
+
+
     protected void evaluateIfValid() {
         /*
 	     * 如果此会话已过期或即将到期或将永不过期，则返回
@@ -1372,6 +1549,8 @@ public class StandardSession implements HttpSession, Session, Serializable {
 
         // 删除属性
         Object value = attributes.remove(name);
+        if (value != null)
+            markDirty(name);
 
         // Do we need to do valueUnbound() and attributeRemoved() notification?
         if (!notify || (value == null)) {
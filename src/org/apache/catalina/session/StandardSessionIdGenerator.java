@@ -0,0 +1,358 @@
+package org.apache.catalina.session;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.AccessController;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivilegedAction;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.catalina.util.StringManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * <b>SessionIdGenerator</b>的标准实现类.
+ * <p>
+ * 每个线程持有自己的随机数生成器和消息摘要, 因此生成会话ID时不需要任何同步.
+ * 如果Manager的<code>sessionIdPoolSize</code>大于0, 一个后台线程将预先生成会话ID并放入一个有界池中,
+ * <code>generateSessionId()</code>优先从池中获取; 池为空时在调用线程中直接生成.
+ */
+public class StandardSessionIdGenerator implements SessionIdGenerator {
+
+    private static Log log = LogFactory.getLog(StandardSessionIdGenerator.class);
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm = StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 关联的Manager.
+     */
+    protected ManagerBase manager = null;
+
+
+    /**
+     * 每个线程的随机数生成器和消息摘要.
+     */
+    protected ThreadLocal state = new ThreadLocal();
+
+
+    /**
+     * 预先生成的会话ID池 (不包括jvmRoute), 如果未启用, 则为<code>null</code>.
+     */
+    protected BlockingQueue pool = null;
+
+
+    /**
+     * 填充会话ID池的后台线程.
+     */
+    protected Thread poolThread = null;
+
+
+    /**
+     * 是否已启动?
+     */
+    protected volatile boolean started = false;
+
+
+    /**
+     * 等待熵所花费的时间 (in nanoseconds).
+     */
+    protected long entropyWaitTime = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 设置关联的Manager.
+     *
+     * @param manager The associated Manager
+     */
+    public void setManager(ManagerBase manager) {
+        this.manager = manager;
+    }
+
+
+    /**
+     * 返回等待熵所花费的时间 (in milliseconds).
+     */
+    public synchronized long getEntropyWaitTime() {
+        return (entropyWaitTime / 1000000L);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 启动生成器, 如果需要, 启动填充会话ID池的后台线程.
+     */
+    public void start() {
+        if (started)
+            return;
+        started = true;
+
+        int poolSize = manager.getSessionIdPoolSize();
+        if (poolSize > 0) {
+            pool = new ArrayBlockingQueue(poolSize);
+            String threadName = "SessionIdPool[" + manager.getContainer() + "]";
+            poolThread = new Thread(new SessionIdPoolFiller(pool), threadName);
+            poolThread.setDaemon(true);
+            poolThread.start();
+        }
+    }
+
+
+    /**
+     * 停止生成器和填充会话ID池的后台线程.
+     */
+    public void stop() {
+        if (!started)
+            return;
+        started = false;
+
+        if (poolThread != null) {
+            poolThread.interrupt();
+            try {
+                poolThread.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+            poolThread = null;
+        }
+        pool = null;
+    }
+
+
+    /**
+     * 生成并返回一个新会话标识符.
+     */
+    public String generateSessionId() {
+
+        String result = null;
+        BlockingQueue pool = this.pool;
+        if (pool != null)
+            result = (String) pool.poll();
+        if (result == null)
+            result = generateId();
+
+        String jvmRoute = manager.getJvmRoute();
+        if (jvmRoute != null) {
+            result = result + '.' + jvmRoute;
+        }
+        return (result);
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 使用当前线程的随机数生成器和消息摘要, 生成不包括jvmRoute的会话标识符.
+     */
+    protected String generateId() {
+
+        SessionIdState s = getState();
+        int sessionIdLength = manager.getSessionIdLength();
+        byte random[] = s.bytes;
+
+        // 将结果呈现为十六进制数字的字符串
+        StringBuffer buffer = new StringBuffer(2 * sessionIdLength);
+        int resultLenBytes = 0;
+        while (resultLenBytes < sessionIdLength) {
+            s.random.nextBytes(random);
+            byte digested[] = random;
+            if (s.digest != null)
+                digested = s.digest.digest(random);
+            for (int j = 0;
+            j < digested.length && resultLenBytes < sessionIdLength;
+            j++) {
+                byte b1 = (byte) ((digested[j] & 0xf0) >> 4);
+                byte b2 = (byte) (digested[j] & 0x0f);
+                if (b1 < 10)
+                    buffer.append((char) ('0' + b1));
+                else
+                    buffer.append((char) ('A' + (b1 - 10)));
+                if (b2 < 10)
+                    buffer.append((char) ('0' + b2));
+                else
+                    buffer.append((char) ('A' + (b2 - 10)));
+                resultLenBytes++;
+            }
+        }
+        return (buffer.toString());
+    }
+
+
+    /**
+     * 返回当前线程的状态, 如果还没有, 创建它.
+     */
+    protected SessionIdState getState() {
+        SessionIdState s = (SessionIdState) state.get();
+        if (s == null) {
+            long t1 = System.nanoTime();
+            s = new SessionIdState();
+            s.digest = createDigest();
+            s.random = createRandom();
+            // 强制播种, 以便在这里计入等待熵的时间
+            s.random.nextBytes(s.bytes);
+            addEntropyWaitTime(System.nanoTime() - t1);
+            state.set(s);
+        }
+        return (s);
+    }
+
+
+    /**
+     * 创建一个新的MessageDigest, 使用Manager配置的算法.
+     */
+    protected MessageDigest createDigest() {
+        String algorithm = manager.getAlgorithm();
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            log.error(sm.getString("managerBase.digest", algorithm), e);
+            try {
+                return MessageDigest.getInstance(ManagerBase.DEFAULT_ALGORITHM);
+            } catch (NoSuchAlgorithmException f) {
+                log.error(sm.getString("managerBase.digest",
+                        ManagerBase.DEFAULT_ALGORITHM), e);
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * 创建并播种一个新的随机数生成器, 使用Manager配置的类.
+     */
+    protected Random createRandom() {
+
+        // Calculate the new random number generator seed
+        long seed = System.currentTimeMillis()
+            ^ ((long) System.identityHashCode(Thread.currentThread()) << 32);
+        char entropy[] = manager.getEntropy().toCharArray();
+        for (int i = 0; i < entropy.length; i++) {
+            long update = ((byte) entropy[i]) << ((i % 8) * 8);
+            seed ^= update;
+        }
+        Long fileSeed = readSeedFile();
+        if (fileSeed != null)
+            seed ^= fileSeed.longValue();
+
+        String randomClass = manager.getRandomClass();
+        Random random = null;
+        try {
+            // Construct and seed a new random number generator
+            Class clazz = Class.forName(randomClass);
+            random = (Random) clazz.newInstance();
+        } catch (Exception e) {
+            // Fall back to the simple case
+            log.error(sm.getString("managerBase.random", randomClass), e);
+            random = new java.util.Random();
+        }
+        random.setSeed(seed);
+        return (random);
+    }
+
+
+    /**
+     * 从Manager配置的随机文件 (例如/dev/urandom) 读取一个种子.
+     * 如果文件不存在或不可读, 返回<code>null</code>.
+     */
+    protected Long readSeedFile() {
+        if (manager.getRandomFile() == null)
+            return (null);
+        if (System.getSecurityManager() != null) {
+            return (Long) AccessController.doPrivileged(new PrivilegedReadSeedFile());
+        }
+        return doReadSeedFile();
+    }
+
+
+    protected Long doReadSeedFile() {
+        File f = new File(manager.getRandomFile());
+        if (!f.exists())
+            return (null);
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new FileInputStream(f));
+            return new Long(is.readLong());
+        } catch (IOException e) {
+            return (null);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+
+    protected synchronized void addEntropyWaitTime(long time) {
+        entropyWaitTime += time;
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 每个线程的会话ID生成状态.
+     */
+    protected static class SessionIdState {
+        protected Random random = null;
+        protected MessageDigest digest = null;
+        protected byte bytes[] = new byte[16];
+    }
+
+
+    private class PrivilegedReadSeedFile implements PrivilegedAction {
+        public Object run() {
+            return doReadSeedFile();
+        }
+    }
+
+
+    /**
+     * 预先生成会话ID并放入池中, 直到生成器被停止. 池满时阻塞.
+     */
+    protected class SessionIdPoolFiller implements Runnable {
+
+        private BlockingQueue pool;
+
+        public SessionIdPoolFiller(BlockingQueue pool) {
+            this.pool = pool;
+        }
+
+        public void run() {
+            while (started) {
+                try {
+                    pool.put(generateId());
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Throwable t) {
+                    log.error(sm.getString("sessionIdGenerator.poolFill"), t);
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -3,11 +3,16 @@ package org.apache.catalina.session;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
+import org.apache.catalina.Container;
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.Loader;
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.Store;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
@@ -54,6 +59,17 @@ public abstract class StoreBase implements Lifecycle, Store {
      */
     protected Manager manager;
 
+    /**
+     * 会话编解码器的实现类名.
+     */
+    protected String codecClassName =
+        "org.apache.catalina.session.JavaSessionCodec";
+
+    /**
+     * 会话编解码器, 第一次使用时创建.
+     */
+    protected SessionCodec codec = null;
+
     // ------------------------------------------------------------- Properties
 
     /**
@@ -91,6 +107,49 @@ public abstract class StoreBase implements Lifecycle, Store {
     }
 
 
+    /**
+     * 返回会话编解码器的实现类名.
+     */
+    public String getCodecClassName() {
+        return (this.codecClassName);
+    }
+
+
+    /**
+     * 设置会话编解码器的实现类名.
+     *
+     * @param codecClassName The new codec class name
+     */
+    public void setCodecClassName(String codecClassName) {
+        String oldCodecClassName = this.codecClassName;
+        synchronized (this) {
+            this.codecClassName = codecClassName;
+            this.codec = null;
+        }
+        support.firePropertyChange("codecClassName", oldCodecClassName,
+                                   this.codecClassName);
+    }
+
+
+    /**
+     * 返回会话编解码器, 如果还没有, 创建它.
+     * 如果指定的类无法实例化, 使用<code>JavaSessionCodec</code>.
+     */
+    public synchronized SessionCodec getCodec() {
+        if (codec == null) {
+            try {
+                Class clazz = Class.forName(codecClassName);
+                codec = (SessionCodec) clazz.newInstance();
+            } catch (Exception e) {
+                manager.getContainer().getLogger().error
+                    (sm.getString("storeBase.codec", codecClassName), e);
+                codec = new JavaSessionCodec();
+            }
+        }
+        return (codec);
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
     /**
@@ -139,8 +198,59 @@ public abstract class StoreBase implements Lifecycle, Store {
         support.removePropertyChangeListener(listener);
     }
 
+    /**
+     * 保存一组会话. 默认的实现逐个调用<code>save()</code>,
+     * 子类可以覆盖这个方法, 以一次操作保存整个批次.
+     *
+     * @param sessions The sessions to be saved
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    public void saveAll(Session sessions[]) throws IOException {
+        for (int i = 0; i < sessions.length; i++) {
+            save(sessions[i]);
+        }
+    }
+
     // --------------------------------------------------------- Protected Methods
 
+    /**
+     * 使用会话编解码器将会话写入指定的输出流.
+     *
+     * @param session The session to be written
+     * @param stream The output stream
+     *
+     * @exception IOException if an input/output error occurs
+     */
+    protected void writeSession(Session session, OutputStream stream)
+        throws IOException {
+        getCodec().writeSession((StandardSession) session, stream);
+    }
+
+    /**
+     * 使用会话编解码器从指定的输入流读取一个新会话, 属性类由Web应用程序的类加载器加载.
+     *
+     * @param stream The input stream
+     *
+     * @exception ClassNotFoundException if a deserialization error occurs
+     * @exception IOException if an input/output error occurs
+     */
+    protected StandardSession readSession(InputStream stream)
+        throws ClassNotFoundException, IOException {
+        ClassLoader classLoader = null;
+        Container container = manager.getContainer();
+        if (container != null) {
+            Loader loader = container.getLoader();
+            if (loader != null)
+                classLoader = loader.getClassLoader();
+        }
+        StandardSession session =
+            (StandardSession) manager.createEmptySession();
+        getCodec().readSession(session, stream, classLoader);
+        session.setManager(manager);
+        return (session);
+    }
+
     /**
      * 由后台线程调用，以检查保存在存储中的会话是否过期.
      * 如果是这样，则终止Session并将其从Store中删除.
@@ -154,7 +264,7 @@ public abstract class StoreBase implements Lifecycle, Store {
         }
 
         try {
-            keys = keys();
+            keys = expireCandidates();
         } catch (IOException e) {
             manager.getContainer().getLogger().error("Error getting keys", e);
             return;
@@ -195,6 +305,17 @@ public abstract class StoreBase implements Lifecycle, Store {
     }
 
 
+    /**
+     * 返回需要被<code>processExpires()</code>加载并检查的会话ID.
+     * 默认返回所有会话ID; 子类如果不需要加载会话就能知道其最后访问时间, 可以只返回可能已过期的会话ID.
+     *
+     * @exception IOException if an input/output error occurred
+     */
+    protected String[] expireCandidates() throws IOException {
+        return keys();
+    }
+
+
     // --------------------------------------------------------- Thread Methods
 
 
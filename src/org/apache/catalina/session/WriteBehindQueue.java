@@ -0,0 +1,346 @@
+package org.apache.catalina.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.catalina.Session;
+import org.apache.catalina.util.StringManager;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * <b>PersistentManagerBase</b>的异步写入队列.
+ * <p>
+ * 需要保存到Store的会话首先放入队列, 同一会话的多次写入被合并为一次.
+ * 一个后台线程按批次将会话写入Store, 当队列中的会话达到批次大小或者经过了刷新间隔时.
+ * 队列的容量是有界的: 队列满时, 写入会话的线程将阻塞, 直到后台线程写出了足够的会话.
+ * <p>
+ * 被交换出去的会话在写入Store之前仍然保存在队列中, 如果在这期间被请求, Manager从队列中直接取回它.
+ */
+public class WriteBehindQueue {
+
+    private static Log log = LogFactory.getLog(WriteBehindQueue.class);
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param manager 关联的Manager
+     * @param queueSize 队列中会话的最大数量
+     * @param batchSize 每个批次写入的会话的最大数量
+     * @param flushInterval 两次定期刷新之间的间隔 (in milliseconds)
+     */
+    public WriteBehindQueue(PersistentManagerBase manager, int queueSize,
+                            int batchSize, long flushInterval) {
+        this.manager = manager;
+        this.permits = new Semaphore(queueSize);
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * The string manager for this package.
+     */
+    protected static StringManager sm = StringManager.getManager(Constants.Package);
+
+
+    /**
+     * 关联的Manager.
+     */
+    protected PersistentManagerBase manager = null;
+
+
+    /**
+     * 等待写入的会话, 会话ID作为key.
+     */
+    protected ConcurrentHashMap pending = new ConcurrentHashMap();
+
+
+    /**
+     * 队列中剩余的空间.
+     */
+    protected Semaphore permits = null;
+
+
+    /**
+     * 每个批次写入的会话的最大数量.
+     */
+    protected int batchSize = 100;
+
+
+    /**
+     * 两次定期刷新之间的间隔 (in milliseconds).
+     */
+    protected long flushInterval = 1000L;
+
+
+    /**
+     * 执行写入的后台线程.
+     */
+    protected ScheduledThreadPoolExecutor executor = null;
+
+
+    /**
+     * 是否已经提交了一个刷新任务?
+     */
+    protected AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+
+    /**
+     * 写入Store的会话总数.
+     */
+    protected long writeCount = 0;
+
+
+    /**
+     * 写入Store的批次总数.
+     */
+    protected long batchCount = 0;
+
+
+    // ------------------------------------------------------------- Properties
+
+
+    /**
+     * 返回等待写入的会话数.
+     */
+    public int getPendingCount() {
+        return (pending.size());
+    }
+
+
+    /**
+     * 返回写入Store的会话总数.
+     */
+    public long getWriteCount() {
+        return (writeCount);
+    }
+
+
+    /**
+     * 返回写入Store的批次总数.
+     */
+    public long getBatchCount() {
+        return (batchCount);
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 启动后台写入线程.
+     */
+    public void start() {
+        final String threadName = "WriteBehind[" + manager.getContainer() + "]";
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return (thread);
+            }
+        });
+        executor.scheduleWithFixedDelay(new FlushTask(false), flushInterval,
+                flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * 停止后台写入线程, 并在调用线程中写出队列中剩余的所有会话.
+     */
+    public void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                ;
+            }
+            executor = null;
+        }
+        flush();
+    }
+
+
+    /**
+     * 将会话放入队列. 如果这个会话已经在队列中, 合并两次写入. 如果队列已满, 阻塞直到有可用空间.
+     *
+     * @param session 要写入的会话
+     * @param swappedOut 会话是否已经从Manager的活动会话中移除
+     */
+    public void enqueue(Session session, boolean swappedOut) {
+        String id = session.getIdInternal();
+        PendingWrite write = new PendingWrite(id, session, swappedOut);
+        while (true) {
+            PendingWrite old = (PendingWrite) pending.get(id);
+            if (old != null) {
+                write.swappedOut |= old.swappedOut;
+                if (pending.replace(id, old, write))
+                    break;
+            } else {
+                permits.acquireUninterruptibly();
+                if (pending.putIfAbsent(id, write) == null)
+                    break;
+                permits.release();
+            }
+        }
+        ScheduledThreadPoolExecutor executor = this.executor;
+        if ((pending.size() >= batchSize) && (executor != null)
+                && flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(new FlushTask(true));
+            } catch (RejectedExecutionException e) {
+                // 正在停止, 剩余的会话将由stop()写出
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+
+    /**
+     * 如果指定ID的会话已被交换出去, 并且仍在队列中等待写入, 从队列中取回它.
+     *
+     * @param id The session id
+     * @return 取回的会话, 或<code>null</code>
+     */
+    public Session take(String id) {
+        PendingWrite write = (PendingWrite) pending.get(id);
+        if ((write == null) || !write.swappedOut)
+            return (null);
+        if (!pending.remove(id, write))
+            return (null);
+        permits.release();
+        return (write.session);
+    }
+
+
+    /**
+     * 取消指定ID的会话的等待中的写入.
+     *
+     * @param id The session id
+     */
+    public void cancel(String id) {
+        if (pending.remove(id) != null)
+            permits.release();
+    }
+
+
+    /**
+     * 按批次将队列中的所有会话写入Store.
+     */
+    public synchronized void flush() {
+        int remaining = pending.size();
+        while (remaining > 0 && !pending.isEmpty()) {
+            ArrayList batch = new ArrayList();
+            Iterator writes = pending.values().iterator();
+            while (writes.hasNext() && batch.size() < batchSize)
+                batch.add(writes.next());
+            remaining -= batch.size();
+            writeBatch(batch);
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+
+    /**
+     * 将一个批次的会话写入Store.
+     * 写入失败时, 已被交换出去的会话重新加入Manager的活动会话,
+     * 备份的会话重新放入Manager的备份索引, 稍后再次备份.
+     */
+    protected void writeBatch(ArrayList batch) {
+        Session sessions[] = new Session[batch.size()];
+        for (int i = 0; i < sessions.length; i++)
+            sessions[i] = ((PendingWrite) batch.get(i)).session;
+
+        boolean success = false;
+        try {
+            manager.saveSessions(sessions);
+            success = true;
+            writeCount += sessions.length;
+            batchCount++;
+        } catch (IOException e) {
+            log.error(sm.getString("writeBehind.saveException"), e);
+        } catch (Throwable t) {
+            log.error(sm.getString("writeBehind.saveException"), t);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = (PendingWrite) batch.get(i);
+            // 在写入期间被取回, 取消或者再次写入的会话不在这里处理
+            if (!pending.remove(write.id, write))
+                continue;
+            permits.release();
+            if (!write.swappedOut) {
+                if (!success)
+                    manager.backupFailed(write.session);
+                continue;
+            }
+            if (success) {
+                if (!manager.isLoaded(write.id))
+                    write.session.recycle();
+            } else {
+                manager.add(write.session);
+                ((StandardSession) write.session).activate();
+            }
+        }
+    }
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 等待写入的会话.
+     */
+    protected static class PendingWrite {
+
+        protected String id;
+        protected Session session;
+        protected boolean swappedOut;
+
+        public PendingWrite(String id, Session session, boolean swappedOut) {
+            this.id = id;
+            this.session = session;
+            this.swappedOut = swappedOut;
+        }
+    }
+
+
+    /**
+     * 刷新队列的后台任务.
+     */
+    protected class FlushTask implements Runnable {
+
+        private boolean scheduled;
+
+        public FlushTask(boolean scheduled) {
+            this.scheduled = scheduled;
+        }
+
+        public void run() {
+            if (scheduled)
+                flushScheduled.set(false);
+            try {
+                flush();
+            } catch (Throwable t) {
+                log.error(sm.getString("writeBehind.saveException"), t);
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.apache.catalina.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * 记录延迟分布的直方图, 单位是纳秒.
+ * <p>
+ * 与HdrHistogram相同的对数线性分桶: 每个2的幂区间分为<code>SUB_BUCKETS</code>个等宽的桶,
+ * 所以任何值的相对误差不超过1/16. 记录一个值只需要几次原子加法, 不需要锁, 可以一直开启.
+ * 读取时不做快照, 并发记录时百分位数是近似的.
+ */
+public final class LatencyHistogram {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * 每个2的幂区间的桶数, 以2为底的对数.
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 每个桶的计数.
+     */
+    private final AtomicLongArray counts;
+
+
+    /**
+     * 记录的值的数量.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+
+    /**
+     * 记录的值的总和.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+
+    /**
+     * 记录的最大值.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 记录一个值.
+     *
+     * @param value 延迟, 纳秒
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+        long current = max.get();
+        while ((value > current) && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+
+    /**
+     * 返回记录的值的数量.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+
+    /**
+     * 返回记录的值的总和, 纳秒.
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+
+    /**
+     * 返回记录的最大值, 纳秒.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+
+    /**
+     * 返回平均值, 纳秒.
+     */
+    public long getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : total.get() / n;
+    }
+
+
+    /**
+     * 返回指定的百分位数, 纳秒. 结果是值所在桶的上界, 不超过最大值.
+     *
+     * @param percentile 百分位, 0到100
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts.get(i);
+        }
+        if (n == 0)
+            return 0;
+        long target = (long) Math.ceil(n * Math.min(percentile, 100.0) / 100.0);
+        if (target < 1)
+            target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+
+    /**
+     * 清除所有记录.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+
+    /**
+     * 返回摘要: 数量, 平均值, 常用的百分位数和最大值, 微秒.
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("count=").append(getCount());
+        sb.append(", mean=").append(getMean() / 1000).append("us");
+        sb.append(", p50=").append(getPercentile(50.0) / 1000).append("us");
+        sb.append(", p90=").append(getPercentile(90.0) / 1000).append("us");
+        sb.append(", p99=").append(getPercentile(99.0) / 1000).append("us");
+        sb.append(", p99.9=").append(getPercentile(99.9) / 1000).append("us");
+        sb.append(", max=").append(getMax() / 1000).append("us");
+        return sb.toString();
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+
+    /**
+     * 返回值所在的桶.
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+
+    /**
+     * 返回桶中的最大值.
+     */
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+
+}
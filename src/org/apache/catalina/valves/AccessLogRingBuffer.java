@@ -0,0 +1,135 @@
+package org.apache.catalina.valves;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * 访问日志使用的有界无锁环形缓冲区.
+ * <p>
+ * 多个请求线程可以同时放入元素, 一个或多个线程可以同时取出元素. 每个槽位有一个序号,
+ * 生产者和消费者通过CAS推进各自的位置, 不需要任何锁. 队列满时<code>offer()</code>立即返回
+ * <code>false</code>, 由调用者决定阻塞还是丢弃.
+ */
+public final class AccessLogRingBuffer {
+
+
+    // ----------------------------------------------------------- Constructors
+
+
+    /**
+     * @param capacity 最小容量, 向上取整为2的幂
+     */
+    public AccessLogRingBuffer(int capacity) {
+        int size = 2;
+        while (size < capacity)
+            size <<= 1;
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+
+    // ----------------------------------------------------- Instance Variables
+
+
+    /**
+     * 元素.
+     */
+    private final Object[] items;
+
+
+    /**
+     * 每个槽位的序号. 等于生产者位置时槽位可写, 等于消费者位置加一时槽位可读.
+     */
+    private final AtomicLongArray sequences;
+
+
+    private final int mask;
+
+
+    /**
+     * 下一个要写的位置.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+
+    /**
+     * 下一个要读的位置.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+
+    // --------------------------------------------------------- Public Methods
+
+
+    /**
+     * 返回容量.
+     */
+    public int capacity() {
+        return items.length;
+    }
+
+
+    /**
+     * 返回当前元素的近似数量.
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0)
+            return 0;
+        return (int) Math.min(size, items.length);
+    }
+
+
+    /**
+     * 放入一个元素.
+     *
+     * @return <code>false</code>如果缓冲区已满
+     */
+    public boolean offer(Object item) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    items[index] = item;
+                    sequences.lazySet(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+    }
+
+
+    /**
+     * 取出最早的元素.
+     *
+     * @return 元素, 或者<code>null</code>如果缓冲区为空
+     */
+    public Object poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    Object item = items[index];
+                    items[index] = null;
+                    sequences.lazySet(index, pos + items.length);
+                    return item;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+
+}
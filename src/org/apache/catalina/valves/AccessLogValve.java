@@ -2,15 +2,25 @@ package org.apache.catalina.valves;
 
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
-import java.text.DecimalFormat;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -74,6 +84,14 @@ import org.apache.catalina.util.StringManager;
  * 还支持条件日志记录. 这可以用<code>condition</code>属性.
  * 如果从ServletRequest.getAttribute(condition)返回值非空值. 将跳过日志记录.
  * </p>
+ *
+ * <p>
+ * 如果<code>async</code>属性为<code>true</code>, 请求线程只把格式化后的行放入一个无锁的环形缓冲区,
+ * 由一个后台线程批量编码并通过<code>FileChannel</code>写入文件, 同时负责日志文件的轮转.
+ * 缓冲区满时的行为由<code>overflowPolicy</code>决定:
+ * <code>block</code>等待空间, <code>drop</code>丢弃最早的行, <code>count</code>丢弃新的行.
+ * 被丢弃的行数和队列深度可以通过JMX查看.
+ * </p>
  */
 public class AccessLogValve extends ValveBase implements Lifecycle {
 
@@ -122,7 +140,7 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
 
 
     /**
-     * 如果当前日志模式与公共访问日志格式模式相同, 然后，将这个变量设置为true，并以更优化和硬编码的方式登录.
+     * 如果当前日志模式与公共访问日志格式模式相同, 然后，将这个变量设置为true. <code>%h</code>按照<code>resolveHosts</code>写入地址或主机名.
      */
     private boolean common = false;
 
@@ -139,6 +157,18 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
     private String pattern = null;
 
 
+    /**
+     * 从<code>pattern</code>编译得到的元素.
+     */
+    private AccessLogElement[] logElements = new AccessLogElement[0];
+
+
+    /**
+     * 最近一秒格式化的<code>%t</code>时间戳.
+     */
+    private volatile CachedTimestamp cachedTimestamp = null;
+
+
     /**
      * 添加到日志文件的文件名的前缀.
      */
@@ -195,11 +225,6 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
 
 
     /**
-     * 取3位小数格式的时间.
-     */
-     private DecimalFormat timeTakenFormatter = null;
-
-
     /**
      * "yyyy".
      */
@@ -236,12 +261,6 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
     private Date currentDate = null;
 
 
-    /**
-     * 格式化日志行时, 经常使用像这样的字符串(" ").
-     */
-    private String space = " ";
-
-
     /**
      * 解决主机
      */
@@ -265,6 +284,96 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
      */
     private String fileDateFormat = null;
 
+
+    /**
+     * 是否异步写入日志.
+     */
+    private boolean async = false;
+
+
+    /**
+     * 异步写入时, 缓冲区可以容纳的最大行数.
+     */
+    private int queueSize = 8192;
+
+
+    /**
+     * 异步写入时, 缓冲区满后的策略: block, drop或count.
+     */
+    private String overflowPolicy = OVERFLOW_BLOCK;
+
+
+    /**
+     * 异步写入时, 每批最多写入的字节数.
+     */
+    private int batchSize = 64 * 1024;
+
+
+    /**
+     * 异步写入时, 等待的行.
+     */
+    private volatile AccessLogRingBuffer queue = null;
+
+
+    /**
+     * 异步写入的后台线程.
+     */
+    private Thread writerThread = null;
+
+
+    /**
+     * 后台线程是否应该结束.
+     */
+    private volatile boolean writerDone = false;
+
+
+    /**
+     * 后台线程是否在等待新的行.
+     */
+    private volatile boolean writerWaiting = false;
+
+
+    /**
+     * 异步写入时, 当前日志文件的通道. 只被后台线程使用.
+     */
+    private FileChannel channel = null;
+
+
+    /**
+     * 因为缓冲区满被丢弃的行数.
+     */
+    private AtomicLong droppedCount = new AtomicLong();
+
+
+    /**
+     * 异步写入的行数.
+     */
+    private volatile long writtenCount = 0L;
+
+
+    /**
+     * 观察到的最大队列深度.
+     */
+    private volatile int maxQueueDepth = 0;
+
+
+    /**
+     * 每个请求线程格式化日志行使用的缓冲区.
+     */
+    private static ThreadLocal lineBuffer = new ThreadLocal();
+
+
+    /**
+     * 行分隔符.
+     */
+    private static final String lineSeparator =
+        System.getProperty("line.separator");
+
+
+    public static final String OVERFLOW_BLOCK = "block";
+    public static final String OVERFLOW_DROP = "drop";
+    public static final String OVERFLOW_COUNT = "count";
+
     // ------------------------------------------------------------- Properties
 
 
@@ -326,6 +435,8 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
             combined = true;
         else
             combined = false;
+
+        logElements = createLogElements(this.pattern);
     }
 
 
@@ -434,6 +545,108 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
         this.fileDateFormat =  fileDateFormat;
     }
 
+
+    /**
+     * 是否异步写入日志.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+
+    /**
+     * 设置是否异步写入日志. 在启动之前设置.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+
+    /**
+     * 返回异步缓冲区可以容纳的最大行数.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+
+    /**
+     * 设置异步缓冲区可以容纳的最大行数. 在启动之前设置.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+
+    /**
+     * 返回缓冲区满后的策略.
+     */
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * 设置缓冲区满后的策略: <code>block</code>, <code>drop</code>或<code>count</code>.
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        if (OVERFLOW_DROP.equalsIgnoreCase(overflowPolicy))
+            this.overflowPolicy = OVERFLOW_DROP;
+        else if (OVERFLOW_COUNT.equalsIgnoreCase(overflowPolicy))
+            this.overflowPolicy = OVERFLOW_COUNT;
+        else
+            this.overflowPolicy = OVERFLOW_BLOCK;
+    }
+
+
+    /**
+     * 返回每批最多写入的字节数.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    /**
+     * 设置每批最多写入的字节数. 在启动之前设置.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+
+    /**
+     * 返回等待写入的行数.
+     */
+    public int getQueueDepth() {
+        AccessLogRingBuffer queue = this.queue;
+        return (queue == null) ? 0 : queue.size();
+    }
+
+
+    /**
+     * 返回观察到的最大队列深度.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+
+    /**
+     * 返回因为缓冲区满被丢弃的行数.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+
+    /**
+     * 返回异步写入的行数.
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -464,120 +677,16 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
 
 
         Date date = getDate();
-        StringBuffer result = new StringBuffer();
-
-        // Check to see if we should log using the "common" access log pattern
-        if (common || combined) {
-            String value = null;
-
-            if (isResolveHosts())
-                result.append(request.getRemoteHost());
-            else
-                result.append(request.getRemoteAddr());
-
-            result.append(" - ");
-
-            value = request.getRemoteUser();
-            if (value == null)
-                result.append("- ");
-            else {
-                result.append(value);
-                result.append(space);
-            }
-
-            result.append("[");
-            result.append(dayFormatter.format(date));           // Day
-            result.append('/');
-            result.append(lookup(monthFormatter.format(date))); // Month
-            result.append('/');
-            result.append(yearFormatter.format(date));          // Year
-            result.append(':');
-            result.append(timeFormatter.format(date));          // Time
-            result.append(space);
-            result.append(getTimeZone(date));                   // Time Zone
-            result.append("] \"");
-
-            result.append(request.getMethod());
-            result.append(space);
-            result.append(request.getRequestURI());
-            if (request.getQueryString() != null) {
-                result.append('?');
-                result.append(request.getQueryString());
-            }
-            result.append(space);
-            result.append(request.getProtocol());
-            result.append("\" ");
-
-            result.append(response.getStatus());
-
-            result.append(space);
-
-            int length = response.getContentCount();
-
-            if (length <= 0)
-                value = "-";
-            else
-                value = "" + length;
-            result.append(value);
-
-            if (combined) {
-                result.append(space);
-                result.append("\"");
-                String referer = request.getHeader("referer");
-                if(referer != null)
-                    result.append(referer);
-                else
-                    result.append("-");
-                result.append("\"");
-
-                result.append(space);
-                result.append("\"");
-                String ua = request.getHeader("user-agent");
-                if(ua != null)
-                    result.append(ua);
-                else
-                    result.append("-");
-                result.append("\"");
-            }
+        StringBuffer result = (StringBuffer) lineBuffer.get();
+        if ((result == null) || (result.capacity() > 8192)) {
+            result = new StringBuffer(256);
+            lineBuffer.set(result);
+        }
+        result.setLength(0);
 
-        } else {
-            // Generate a message based on the defined pattern
-            boolean replace = false;
-            for (int i = 0; i < pattern.length(); i++) {
-                char ch = pattern.charAt(i);
-                if (replace) {
-                    /* For code that processes {, the behavior will be ... if I
-                     * do not enounter a closing } - then I ignore the {
-                     */
-                    if ('{' == ch){
-                        StringBuffer name = new StringBuffer();
-                        int j = i + 1;
-                        for(;j < pattern.length() && '}' != pattern.charAt(j); j++) {
-                            name.append(pattern.charAt(j));
-                        }
-                        if (j+1 < pattern.length()) {
-                            /* the +1 was to account for } which we increment now */
-                            j++;
-                            result.append(replace(name.toString(),
-                                                pattern.charAt(j),
-                                                request,
-                                                response));
-                            i=j; /*Since we walked more than one character*/
-                        } else {
-                            //D'oh - end of string - pretend we never did this
-                            //and do processing the "old way"
-                            result.append(replace(ch, date, request, response, time));
-                        }
-                    } else {
-                        result.append(replace(ch, date, request, response,time ));
-                    }
-                    replace = false;
-                } else if (ch == '%') {
-                    replace = true;
-                } else {
-                    result.append(ch);
-                }
-            }
+        AccessLogElement[] logElements = this.logElements;
+        for (int i = 0; i < logElements.length; i++) {
+            logElements[i].addElement(result, date, request, response, time);
         }
         log(result.toString(), date);
     }
@@ -607,6 +716,12 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
      */
     public void log(String message, Date date) {
 
+        AccessLogRingBuffer queue = this.queue;
+        if (queue != null) {
+            enqueue(queue, message);
+            return;
+        }
+
         if (rotatable){
             // Only do a logfile switch check once a second, max.
             long systime = System.currentTimeMillis();
@@ -639,6 +754,150 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
     }
 
 
+    /**
+     * 把一行放入异步缓冲区, 缓冲区满时按照<code>overflowPolicy</code>处理.
+     */
+    private void enqueue(AccessLogRingBuffer queue, String message) {
+        while (!queue.offer(message)) {
+            if (writerDone) {
+                droppedCount.incrementAndGet();
+                return;
+            }
+            if (overflowPolicy == OVERFLOW_COUNT) {
+                droppedCount.incrementAndGet();
+                return;
+            } else if (overflowPolicy == OVERFLOW_DROP) {
+                if (queue.poll() != null)
+                    droppedCount.incrementAndGet();
+            } else {
+                wakeWriter();
+                LockSupport.parkNanos(100000L);
+            }
+        }
+        int depth = queue.size();
+        if (depth > maxQueueDepth)
+            maxQueueDepth = depth;
+        if (writerWaiting)
+            wakeWriter();
+    }
+
+
+    private void wakeWriter() {
+        writerWaiting = false;
+        Thread thread = writerThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+
+    /**
+     * 异步写入时, 检查日期是否改变, 如果需要, 切换日志文件. 只被后台线程调用.
+     */
+    private void rotateChannel() {
+        if (rotatable) {
+            long systime = System.currentTimeMillis();
+            if ((systime - rotationLastChecked) > 1000) {
+                rotationLastChecked = systime;
+                String tsDate = dateFormatter.format(new Date(systime));
+                if (!dateStamp.equals(tsDate)) {
+                    closeChannel();
+                    dateStamp = tsDate;
+                }
+            }
+        }
+        if (channel == null) {
+            try {
+                channel = new FileOutputStream(getLogFile(), true).getChannel();
+            } catch (IOException e) {
+                if (container != null)
+                    container.getLogger().error
+                        (sm.getString("accessLogValve.openFail", getLogFile()), e);
+            }
+        }
+    }
+
+
+    private void closeChannel() {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ;
+        }
+        channel = null;
+    }
+
+
+    /**
+     * 异步写入日志的后台线程. 每次取出缓冲区中所有的行, 编码到一个直接缓冲区中,
+     * 缓冲区满或者没有更多的行时写入文件.
+     */
+    protected class AsyncLogWriter implements Runnable {
+
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(batchSize, 1024));
+            CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            while (true) {
+                Object line = queue.poll();
+                if (line == null) {
+                    if (writerDone && (queue.size() == 0))
+                        break;
+                    writerWaiting = true;
+                    if (queue.size() == 0)
+                        LockSupport.parkNanos(1000000000L);
+                    writerWaiting = false;
+                    continue;
+                }
+                rotateChannel();
+                long count = 0;
+                while (line != null) {
+                    encode(encoder, CharBuffer.wrap((String) line), buffer);
+                    encode(encoder, CharBuffer.wrap(lineSeparator), buffer);
+                    count++;
+                    line = queue.poll();
+                }
+                write(buffer);
+                writtenCount += count;
+            }
+            closeChannel();
+        }
+
+        private void encode(CharsetEncoder encoder, CharBuffer chars,
+                            ByteBuffer buffer) {
+            encoder.reset();
+            while (true) {
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if (result.isOverflow()) {
+                    write(buffer);
+                } else {
+                    break;
+                }
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                write(buffer);
+            }
+        }
+
+        private void write(ByteBuffer buffer) {
+            buffer.flip();
+            try {
+                while ((channel != null) && buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                if (container != null)
+                    container.getLogger().error
+                        (sm.getString("accessLogValve.writeFail"), e);
+                closeChannel();
+            }
+            buffer.clear();
+        }
+    }
+
+
     /**
      * 返回指定月份的月份缩写, 它必须是一个两位数字的字符串.
      *
@@ -661,211 +920,190 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
      */
     private synchronized void open() {
 
+        // 打开当前日志文件
+        try {
+            writer = new PrintWriter(new FileWriter(getLogFile(), true), true);
+        } catch (IOException e) {
+            writer = null;
+        }
+    }
+
+
+    /**
+     * 返回当前日志文件的路径, 如果需要, 创建目录.
+     */
+    private String getLogFile() {
+
         // Create the directory if necessary
         File dir = new File(directory);
         if (!dir.isAbsolute())
             dir = new File(System.getProperty("catalina.base"), directory);
         dir.mkdirs();
 
-        // 打开当前日志文件
-        try {
-            String pathname;
-            // If no rotate - no need for dateStamp in fileName
-            if (rotatable){
-                pathname = dir.getAbsolutePath() + File.separator +
-                            prefix + dateStamp + suffix;
-            } else {
-                pathname = dir.getAbsolutePath() + File.separator +
-                            prefix + suffix;
-            }
-            writer = new PrintWriter(new FileWriter(pathname, true), true);
-        } catch (IOException e) {
-            writer = null;
+        // If no rotate - no need for dateStamp in fileName
+        if (rotatable){
+            return dir.getAbsolutePath() + File.separator +
+                        prefix + dateStamp + suffix;
+        } else {
+            return dir.getAbsolutePath() + File.separator +
+                        prefix + suffix;
         }
     }
 
 
     /**
-     * 返回指定字符的替换文本.
+     * 返回<code>%t</code>使用的时间戳, 同一秒内的请求共享同一个格式化结果.
      *
-     * @param pattern 识别所需文本的模式字符
-     * @param date 当前日期，以便此方法不需要创建
-     * @param request Request being processed
-     * @param response Response being processed
+     * @param date 当前日期
      */
-    private String replace(char pattern, Date date, Request request,
-                           Response response, long time) {
+    private String getTimestamp(Date date) {
+        long second = date.getTime() / 1000;
+        CachedTimestamp cached = cachedTimestamp;
+        if ((cached != null) && (cached.second == second))
+            return cached.value;
+
+        StringBuffer temp = new StringBuffer(32);
+        synchronized (timeFormatter) {
+            temp.append('[');
+            temp.append(dayFormatter.format(date));             // Day
+            temp.append('/');
+            temp.append(lookup(monthFormatter.format(date)));   // Month
+            temp.append('/');
+            temp.append(yearFormatter.format(date));            // Year
+            temp.append(':');
+            temp.append(timeFormatter.format(date));            // Time
+            temp.append(' ');
+            temp.append(getTimeZone(date));                     // Timezone
+            temp.append(']');
+        }
+        cached = new CachedTimestamp(second, temp.toString());
+        cachedTimestamp = cached;
+        return cached.value;
+    }
 
-        String value = null;
 
-        if (pattern == 'a') {
-            value = request.getRemoteAddr();
-        } else if (pattern == 'A') {
-            try {
-                value = InetAddress.getLocalHost().getHostAddress();
-            } catch(Throwable e){
-                value = "127.0.0.1";
-            }
-        } else if (pattern == 'b') {
-            int length = response.getContentCount();
-            if (length <= 0)
-                value = "-";
-            else
-                value = "" + length;
-        } else if (pattern == 'B') {
-            value = "" + response.getContentLength();
-        } else if (pattern == 'h') {
-            value = request.getRemoteHost();
-        } else if (pattern == 'H') {
-            value = request.getProtocol();
-        } else if (pattern == 'l') {
-            value = "-";
-        } else if (pattern == 'm') {
-            if (request != null)
-                value = request.getMethod();
-            else
-                value = "";
-        } else if (pattern == 'p') {
-            value = "" + request.getServerPort();
-        } else if (pattern == 'D') {
-                    value = "" + time;
-        } else if (pattern == 'q') {
-            String query = null;
-            if (request != null)
-                query = request.getQueryString();
-            if (query != null)
-                value = "?" + query;
-            else
-                value = "";
-        } else if (pattern == 'r') {
-            StringBuffer sb = new StringBuffer();
-            if (request != null) {
-                sb.append(request.getMethod());
-                sb.append(space);
-                sb.append(request.getRequestURI());
-                if (request.getQueryString() != null) {
-                    sb.append('?');
-                    sb.append(request.getQueryString());
+    /**
+     * 把模式编译为元素数组. 常量文本合并为一个元素, 每个替换字符串对应一个元素.
+     *
+     * @param pattern 模式
+     */
+    protected AccessLogElement[] createLogElements(String pattern) {
+        ArrayList list = new ArrayList();
+        StringBuffer buf = new StringBuffer();
+        boolean replace = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char ch = pattern.charAt(i);
+            if (replace) {
+                /* For code that processes {, the behavior will be ... if I
+                 * do not enounter a closing } - then I ignore the {
+                 */
+                if ('{' == ch){
+                    StringBuffer name = new StringBuffer();
+                    int j = i + 1;
+                    for(;j < pattern.length() && '}' != pattern.charAt(j); j++) {
+                        name.append(pattern.charAt(j));
+                    }
+                    if (j+1 < pattern.length()) {
+                        /* the +1 was to account for } which we increment now */
+                        j++;
+                        list.add(createAccessLogElement(name.toString(),
+                                                        pattern.charAt(j)));
+                        i=j; /*Since we walked more than one character*/
+                    } else {
+                        //D'oh - end of string - pretend we never did this
+                        //and do processing the "old way"
+                        list.add(createAccessLogElement(ch));
+                    }
+                } else {
+                    list.add(createAccessLogElement(ch));
+                }
+                replace = false;
+            } else if (ch == '%') {
+                replace = true;
+                if (buf.length() > 0) {
+                    list.add(new StringElement(buf.toString()));
+                    buf.setLength(0);
                 }
-                sb.append(space);
-                sb.append(request.getProtocol());
             } else {
-                sb.append("- - ");
-                sb.append(request.getProtocol());
+                buf.append(ch);
             }
-            value = sb.toString();
-        } else if (pattern == 'S') {
-            if (request != null)
-                if (request.getSession(false) != null)
-                    value = request.getSessionInternal(false).getIdInternal();
-                else value = "-";
-            else
-                value = "-";
-        } else if (pattern == 's') {
-            if (response != null)
-                value = "" + response.getStatus();
-            else
-                value = "-";
-        } else if (pattern == 't') {
-            StringBuffer temp = new StringBuffer("[");
-            temp.append(dayFormatter.format(date));             // Day
-            temp.append('/');
-            temp.append(lookup(monthFormatter.format(date)));   // Month
-            temp.append('/');
-            temp.append(yearFormatter.format(date));            // Year
-            temp.append(':');
-            temp.append(timeFormatter.format(date));            // Time
-            temp.append(' ');
-            temp.append(getTimeZone(date));                     // Timezone
-            temp.append(']');
-            value = temp.toString();
-        } else if (pattern == 'T') {
-            value = timeTakenFormatter.format(time/1000d);
-        } else if (pattern == 'u') {
-            if (request != null)
-                value = request.getRemoteUser();
-            if (value == null)
-                value = "-";
-        } else if (pattern == 'U') {
-            if (request != null)
-                value = request.getRequestURI();
-            else
-                value = "-";
-        } else if (pattern == 'v') {
-            value = request.getServerName();
-        } else {
-            value = "???" + pattern + "???";
         }
-
-        if (value == null)
-            return ("");
-        else
-            return (value);
+        if (buf.length() > 0) {
+            list.add(new StringElement(buf.toString()));
+        }
+        return (AccessLogElement[]) list.toArray(new AccessLogElement[list.size()]);
     }
 
 
     /**
-     * 返回指定的"header/parameter"替换文本.
+     * 返回指定的"header/parameter"替换字符串的元素.
      *
      * @param header The header/parameter to get
      * @param type Where to get it from i=input,c=cookie,r=ServletRequest,s=Session
-     * @param request Request being processed
-     * @param response Response being processed
      */
-    private String replace(String header, char type, Request request,
-                           Response response) {
-
-        Object value = null;
-
+    protected AccessLogElement createAccessLogElement(String header, char type) {
         switch (type) {
             case 'i':
-                if (null != request)
-                    value = request.getHeader(header);
-                else
-                    value= "??";
-                break;
-/*
-            // Someone please make me work
-            case 'o':
-                break;
-*/
+                return new HeaderElement(header);
             case 'c':
-                 Cookie[] c = request.getCookies();
-                 for (int i=0; c != null && i < c.length; i++){
-                     if (header.equals(c[i].getName())){
-                         value = c[i].getValue();
-                         break;
-                     }
-                 }
-                break;
+                return new CookieElement(header);
             case 'r':
-                if (null != request)
-                    value = request.getAttribute(header);
-                else
-                    value= "??";
-                break;
+                return new RequestAttributeElement(header);
             case 's':
-                if (null != request) {
-                    HttpSession sess = request.getSession(false);
-                    if (null != sess)
-                        value = sess.getAttribute(header);
-                }
-               break;
+                return new SessionAttributeElement(header);
             default:
-                value = "???";
+                return new StringElement("???");
         }
+    }
 
-        /* try catch in case toString() barfs */
-        try {
-            if (value!=null)
-                if (value instanceof String)
-                    return (String)value;
-                else
-                    return value.toString();
-            else
-               return "-";
-        } catch(Throwable e) {
-            return "-";
+
+    /**
+     * 返回指定替换字符的元素.
+     *
+     * @param pattern 识别所需文本的模式字符
+     */
+    protected AccessLogElement createAccessLogElement(char pattern) {
+        switch (pattern) {
+            case 'a':
+                return new RemoteAddrElement();
+            case 'A':
+                return new LocalAddrElement();
+            case 'b':
+                return new ByteSentElement(true);
+            case 'B':
+                return new ByteSentElement(false);
+            case 'h':
+                return new HostElement();
+            case 'H':
+                return new ProtocolElement();
+            case 'l':
+                return new StringElement("-");
+            case 'm':
+                return new MethodElement();
+            case 'p':
+                return new LocalPortElement();
+            case 'D':
+                return new ElapsedTimeElement(true);
+            case 'q':
+                return new QueryElement();
+            case 'r':
+                return new RequestElement();
+            case 'S':
+                return new SessionIdElement();
+            case 's':
+                return new HttpStatusCodeElement();
+            case 't':
+                return new DateAndTimeElement();
+            case 'T':
+                return new ElapsedTimeElement(false);
+            case 'u':
+                return new UserElement();
+            case 'U':
+                return new RequestURIElement();
+            case 'v':
+                return new LocalServerNameElement();
+            default:
+                return new StringElement("???" + pattern + "???");
         }
     }
 
@@ -921,6 +1159,421 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
     }
 
 
+    // ---------------------------------------------------- Log Element Classes
+
+
+    /**
+     * 模式编译后的一个元素, 把对应的文本追加到日志行中.
+     */
+    protected interface AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time);
+    }
+
+
+    /**
+     * 同一秒内共享的时间戳.
+     */
+    private static final class CachedTimestamp {
+        final long second;
+        final String value;
+
+        CachedTimestamp(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+
+
+    /**
+     * 常量文本.
+     */
+    protected static class StringElement implements AccessLogElement {
+        private String str;
+
+        public StringElement(String str) {
+            this.str = str;
+        }
+
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(str);
+        }
+    }
+
+
+    /**
+     * %a - 远程IP地址
+     */
+    protected static class RemoteAddrElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(request.getRemoteAddr());
+        }
+    }
+
+
+    /**
+     * %A - 本地IP地址, 只查找一次
+     */
+    protected static class LocalAddrElement implements AccessLogElement {
+        private String value;
+
+        public LocalAddrElement() {
+            try {
+                value = InetAddress.getLocalHost().getHostAddress();
+            } catch(Throwable e){
+                value = "127.0.0.1";
+            }
+        }
+
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(value);
+        }
+    }
+
+
+    /**
+     * %b, %B - 发送字节数
+     */
+    protected static class ByteSentElement implements AccessLogElement {
+        private boolean conversion;
+
+        /**
+         * @param conversion <code>true</code>表示没有字节发送时写入'-'
+         */
+        public ByteSentElement(boolean conversion) {
+            this.conversion = conversion;
+        }
+
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (conversion) {
+                int length = response.getContentCount();
+                if (length <= 0)
+                    buf.append('-');
+                else
+                    buf.append(length);
+            } else {
+                buf.append(response.getContentLength());
+            }
+        }
+    }
+
+
+    /**
+     * %h - 远程主机名. common和combined模式沿用原来的行为,
+     * 只有<code>resolveHosts</code>为true时才写入主机名.
+     */
+    protected class HostElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if ((common || combined) && !resolveHosts)
+                buf.append(request.getRemoteAddr());
+            else
+                buf.append(request.getRemoteHost());
+        }
+    }
+
+
+    /**
+     * %H - 请求协议
+     */
+    protected static class ProtocolElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(request.getProtocol());
+        }
+    }
+
+
+    /**
+     * %m - 请求的方法
+     */
+    protected static class MethodElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (request != null)
+                buf.append(request.getMethod());
+        }
+    }
+
+
+    /**
+     * %p - 本地端口
+     */
+    protected static class LocalPortElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(request.getServerPort());
+        }
+    }
+
+
+    /**
+     * %D, %T - 处理请求的时间, 毫秒或秒
+     */
+    protected static class ElapsedTimeElement implements AccessLogElement {
+        private boolean millis;
+
+        public ElapsedTimeElement(boolean millis) {
+            this.millis = millis;
+        }
+
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (millis) {
+                buf.append(time);
+            } else {
+                appendSeconds(buf, time);
+            }
+        }
+
+        /**
+         * 以秒为单位追加处理时间, 与"0.000"格式相同, 但不需要DecimalFormat.
+         * <code>ExtendedAccessLogValve</code>的time-taken字段也使用这个格式.
+         *
+         * @param buf 要追加的缓冲区
+         * @param time 处理时间 (in milliseconds)
+         */
+        static void appendSeconds(StringBuffer buf, long time) {
+            if (time < 0) {
+                buf.append('-');
+                time = -time;
+            }
+            buf.append(time / 1000);
+            buf.append('.');
+            long fraction = time % 1000;
+            if (fraction < 100)
+                buf.append('0');
+            if (fraction < 10)
+                buf.append('0');
+            buf.append(fraction);
+        }
+    }
+
+
+    /**
+     * %q - 查询字符串
+     */
+    protected static class QueryElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            String query = null;
+            if (request != null)
+                query = request.getQueryString();
+            if (query != null) {
+                buf.append('?');
+                buf.append(query);
+            }
+        }
+    }
+
+
+    /**
+     * %r - 请求的第一行
+     */
+    protected static class RequestElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (request != null) {
+                buf.append(request.getMethod());
+                buf.append(' ');
+                buf.append(request.getRequestURI());
+                if (request.getQueryString() != null) {
+                    buf.append('?');
+                    buf.append(request.getQueryString());
+                }
+                buf.append(' ');
+                buf.append(request.getProtocol());
+            } else {
+                buf.append("- - ");
+            }
+        }
+    }
+
+
+    /**
+     * %S - User session ID
+     */
+    protected static class SessionIdElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if ((request != null) && (request.getSession(false) != null))
+                buf.append(request.getSessionInternal(false).getIdInternal());
+            else
+                buf.append('-');
+        }
+    }
+
+
+    /**
+     * %s - 响应的HTTP状态码
+     */
+    protected static class HttpStatusCodeElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (response != null)
+                buf.append(response.getStatus());
+            else
+                buf.append('-');
+        }
+    }
+
+
+    /**
+     * %t - 日期和时间, 常用的日志格式格式
+     */
+    protected class DateAndTimeElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(getTimestamp(date));
+        }
+    }
+
+
+    /**
+     * %u - 已验证的远程用户
+     */
+    protected static class UserElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            String value = null;
+            if (request != null)
+                value = request.getRemoteUser();
+            if (value == null)
+                buf.append('-');
+            else
+                buf.append(value);
+        }
+    }
+
+
+    /**
+     * %U - 请求的URL路径
+     */
+    protected static class RequestURIElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            if (request != null)
+                buf.append(request.getRequestURI());
+            else
+                buf.append('-');
+        }
+    }
+
+
+    /**
+     * %v - 本地服务器的名称
+     */
+    protected static class LocalServerNameElement implements AccessLogElement {
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            buf.append(request.getServerName());
+        }
+    }
+
+
+    /**
+     * %{xxx}i, %{xxx}c, %{xxx}r, %{xxx}s的基类. 值为null时写入'-'.
+     */
+    protected static abstract class NamedElement implements AccessLogElement {
+        protected String name;
+
+        public NamedElement(String name) {
+            this.name = name;
+        }
+
+        public void addElement(StringBuffer buf, Date date, Request request,
+                               Response response, long time) {
+            /* try catch in case toString() barfs */
+            try {
+                Object value = getValue(request);
+                if (value != null)
+                    buf.append(value.toString());
+                else
+                    buf.append('-');
+            } catch(Throwable e) {
+                buf.append('-');
+            }
+        }
+
+        protected abstract Object getValue(Request request);
+    }
+
+
+    /**
+     * %{xxx}i - 输入标头
+     */
+    protected static class HeaderElement extends NamedElement {
+        public HeaderElement(String name) {
+            super(name);
+        }
+
+        protected Object getValue(Request request) {
+            if (null == request)
+                return "??";
+            return request.getHeader(name);
+        }
+    }
+
+
+    /**
+     * %{xxx}c - 特定的cookie
+     */
+    protected static class CookieElement extends NamedElement {
+        public CookieElement(String name) {
+            super(name);
+        }
+
+        protected Object getValue(Request request) {
+            Cookie[] c = request.getCookies();
+            for (int i=0; c != null && i < c.length; i++){
+                if (name.equals(c[i].getName())){
+                    return c[i].getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * %{xxx}r - ServletRequest的属性
+     */
+    protected static class RequestAttributeElement extends NamedElement {
+        public RequestAttributeElement(String name) {
+            super(name);
+        }
+
+        protected Object getValue(Request request) {
+            if (null == request)
+                return "??";
+            return request.getAttribute(name);
+        }
+    }
+
+
+    /**
+     * %{xxx}s - HttpSession的属性
+     */
+    protected static class SessionAttributeElement extends NamedElement {
+        public SessionAttributeElement(String name) {
+            super(name);
+        }
+
+        protected Object getValue(Request request) {
+            if (null != request) {
+                HttpSession sess = request.getSession(false);
+                if (null != sess)
+                    return sess.getAttribute(name);
+            }
+            return null;
+        }
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -989,9 +1642,18 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
         timeFormatter.setTimeZone(timezone);
         currentDate = new Date();
         dateStamp = dateFormatter.format(currentDate);
-        timeTakenFormatter = new DecimalFormat("0.000");
-
-        open();
+        cachedTimestamp = null;
+
+        if (async) {
+            queue = new AccessLogRingBuffer(queueSize);
+            writerDone = false;
+            writerThread = new Thread(new AsyncLogWriter(),
+                                      "AccessLogWriter[" + prefix + "]");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } else {
+            open();
+        }
     }
 
 
@@ -1010,6 +1672,18 @@ public class AccessLogValve extends ValveBase implements Lifecycle {
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
 
+        if (writerThread != null) {
+            // 后台线程写完剩余的行后结束
+            writerDone = true;
+            wakeWriter();
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+            writerThread = null;
+            queue = null;
+        }
         close();
     }
 }
@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.URLEncoder;
-import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
@@ -162,9 +161,9 @@ public class ExtendedAccessLogValve extends ValveBase implements Lifecycle {
 
 
     /**
-     * 小数点后3位时间formatter.
+     * 最近一秒格式化的日期和时间.
      */
-     private DecimalFormat timeTakenFormatter = null;
+    private volatile CachedTimestamp cachedTimestamp = null;
 
 
     /**
@@ -444,6 +443,7 @@ public class ExtendedAccessLogValve extends ValveBase implements Lifecycle {
 
 
         Date date = getDate(endTime);
+        CachedTimestamp timestamp = getTimestamp(endTime);
         StringBuffer result = new StringBuffer();
 
         for (int i=0; fieldInfos!=null && i<fieldInfos.length; i++) {
@@ -484,11 +484,11 @@ public class ExtendedAccessLogValve extends ValveBase implements Lifecycle {
                     break;
                 case FieldInfo.DATA_SPECIAL:
                     if (FieldInfo.SPECIAL_DATE==fieldInfos[i].location)
-                        result.append(dateFormatter.format(date));
+                        result.append(timestamp.date);
                     else if (FieldInfo.SPECIAL_TIME_TAKEN==fieldInfos[i].location)
-                        result.append(timeTakenFormatter.format(runTime/1000d));
+                        AccessLogValve.ElapsedTimeElement.appendSeconds(result, runTime);
                     else if (FieldInfo.SPECIAL_TIME==fieldInfos[i].location)
-                        result.append(timeFormatter.format(date));
+                        result.append(timestamp.time);
                     else if (FieldInfo.SPECIAL_BYTES==fieldInfos[i].location) {
                         int length = response.getContentCount();
                         if (length > 0)
@@ -842,6 +842,41 @@ public class ExtendedAccessLogValve extends ValveBase implements Lifecycle {
     }
 
 
+    /**
+     * 返回指定时间所在秒的格式化日期和时间. 同一秒内的请求共享同一个结果,
+     * 每秒只在锁内格式化一次.
+     */
+    private CachedTimestamp getTimestamp(long systime) {
+        long second = systime / 1000;
+        CachedTimestamp cached = cachedTimestamp;
+        if ((cached != null) && (cached.second == second))
+            return cached;
+        Date date = new Date(second * 1000);
+        synchronized (dateFormatter) {
+            cached = new CachedTimestamp(second, dateFormatter.format(date),
+                                         timeFormatter.format(date));
+        }
+        cachedTimestamp = cached;
+        return cached;
+    }
+
+
+    /**
+     * 同一秒内共享的日期和时间.
+     */
+    private static final class CachedTimestamp {
+        final long second;
+        final String date;
+        final String time;
+
+        CachedTimestamp(long second, String date, String time) {
+            this.second = second;
+            this.date = date;
+            this.time = time;
+        }
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -900,7 +935,7 @@ public class ExtendedAccessLogValve extends ValveBase implements Lifecycle {
             fileDateFormat = "yyyy-MM-dd";
         fileDateFormatter = new SimpleDateFormat(fileDateFormat);
         dateStamp = fileDateFormatter.format(currentDate);
-        timeTakenFormatter = new DecimalFormat("0.000");
+        cachedTimestamp = null;
 
         /* Everybody say ick ... ick */
         try {
@@ -1,21 +1,36 @@
 package org.apache.catalina.valves;
 
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.Driver;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import javax.naming.Context;
 import javax.servlet.ServletException;
+import javax.sql.DataSource;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.ServerFactory;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
+import org.apache.catalina.core.StandardServer;
 import org.apache.catalina.util.LifecycleSupport;
 import org.apache.catalina.util.StringManager;
 
@@ -73,6 +88,19 @@ import org.apache.catalina.util.StringManager;
  * <code>remoteHost, user, timeStamp, query, status, bytes</code>
  * </p>
  * <p>
+ * 也可以使用全局JNDI资源中的<code>DataSource</code>, 通过<code>dataSourceName</code>指定,
+ * 这时不需要<code>driverName</code>和<code>connectionURL</code>.
+ * </p>
+ * <p>
+ * 如果<code>async</code>为<code>true</code>, 请求线程只把记录放入队列, 由后台线程使用JDBC批量插入,
+ * 每批最多<code>batchSize</code>条, 最多等待<code>flushInterval</code>毫秒. 队列满时的行为
+ * 由<code>overflowPolicy</code>决定, 与<code>AccessLogValve</code>相同.
+ * 如果设置了<code>spillFile</code>, 数据库不可用时记录写入这个本地文件, 数据库恢复后再插入数据库.
+ * 被数据库拒绝的记录 (数据错误或违反约束) 不会阻塞其它记录, 它们被写入<code>spillFile</code>加上
+ * <code>.rejected</code>后缀的文件.
+ * 使用<code>DataSource</code>时, 每批从连接池获取一个连接, 用完后归还.
+ * </p>
+ * <p>
  * <i>TO DO: 提供排除某些MIME类型日志记录的选项.</i>
  * </p>
  */
@@ -160,6 +188,63 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
     private String userAgentField;
     private String pattern;
     private boolean resolveHosts;
+    private String dataSourceName = null;
+
+
+    /**
+     * 是否在后台线程中批量插入.
+     */
+    private boolean async = false;
+
+
+    /**
+     * 每批最多插入的记录数.
+     */
+    private int batchSize = 100;
+
+
+    /**
+     * 一批记录最多等待的时间, 毫秒.
+     */
+    private long flushInterval = 1000L;
+
+
+    /**
+     * 队列可以容纳的最大记录数.
+     */
+    private int queueSize = 10000;
+
+
+    /**
+     * 队列满后的策略: block, drop或count.
+     */
+    private String overflowPolicy = AccessLogValve.OVERFLOW_BLOCK;
+
+
+    /**
+     * 数据库不可用时写入记录的本地文件. null表示丢弃这些记录.
+     */
+    private String spillFile = null;
+
+
+    /**
+     * 插入失败后, 再次尝试连接数据库之前等待的时间, 毫秒.
+     */
+    private static final long RETRY_DELAY = 10000L;
+
+
+    private DataSource dataSource = null;
+    private volatile AccessLogRingBuffer queue = null;
+    private Thread writerThread = null;
+    private volatile boolean writerDone = false;
+    private volatile boolean writerWaiting = false;
+    private long retryTime = 0L;
+    private int spillSkip = 0;
+    private AtomicLong droppedCount = new AtomicLong();
+    private volatile long insertedCount = 0L;
+    private volatile long spilledCount = 0L;
+    private volatile long batchCount = 0L;
+    private volatile long rejectedCount = 0L;
 
 
     private Connection conn;
@@ -378,6 +463,175 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
     }
 
 
+    /**
+     * 返回全局JNDI资源中<code>DataSource</code>的名称.
+     */
+    public String getDataSourceName() {
+        return dataSourceName;
+    }
+
+
+    /**
+     * 设置全局JNDI资源中<code>DataSource</code>的名称. 设置后不再使用
+     * <code>driverName</code>和<code>connectionURL</code>.
+     *
+     * @param dataSourceName JNDI名称
+     */
+    public void setDataSourceName(String dataSourceName) {
+        this.dataSourceName = dataSourceName;
+    }
+
+
+    /**
+     * 是否在后台线程中批量插入.
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+
+    /**
+     * 设置是否在后台线程中批量插入. 在启动之前设置.
+     */
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+
+    /**
+     * 返回每批最多插入的记录数.
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+
+    /**
+     * 设置每批最多插入的记录数.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = (batchSize < 1) ? 1 : batchSize;
+    }
+
+
+    /**
+     * 返回一批记录最多等待的时间, 毫秒.
+     */
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+
+    /**
+     * 设置一批记录最多等待的时间, 毫秒.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = (flushInterval < 1) ? 1 : flushInterval;
+    }
+
+
+    /**
+     * 返回队列可以容纳的最大记录数.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+
+    /**
+     * 设置队列可以容纳的最大记录数. 在启动之前设置.
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+
+    /**
+     * 返回队列满后的策略.
+     */
+    public String getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+
+    /**
+     * 设置队列满后的策略: <code>block</code>, <code>drop</code>或<code>count</code>.
+     */
+    public void setOverflowPolicy(String overflowPolicy) {
+        if (AccessLogValve.OVERFLOW_DROP.equalsIgnoreCase(overflowPolicy))
+            this.overflowPolicy = AccessLogValve.OVERFLOW_DROP;
+        else if (AccessLogValve.OVERFLOW_COUNT.equalsIgnoreCase(overflowPolicy))
+            this.overflowPolicy = AccessLogValve.OVERFLOW_COUNT;
+        else
+            this.overflowPolicy = AccessLogValve.OVERFLOW_BLOCK;
+    }
+
+
+    /**
+     * 返回数据库不可用时写入记录的本地文件.
+     */
+    public String getSpillFile() {
+        return spillFile;
+    }
+
+
+    /**
+     * 设置数据库不可用时写入记录的本地文件. 相对路径相对于<code>catalina.base</code>.
+     */
+    public void setSpillFile(String spillFile) {
+        this.spillFile = spillFile;
+    }
+
+
+    /**
+     * 返回等待插入的记录数.
+     */
+    public int getQueueDepth() {
+        AccessLogRingBuffer queue = this.queue;
+        return (queue == null) ? 0 : queue.size();
+    }
+
+
+    /**
+     * 返回因为队列满被丢弃的记录数.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+
+    /**
+     * 返回批量插入的记录数.
+     */
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+
+
+    /**
+     * 返回写入本地文件的记录数.
+     */
+    public long getSpilledCount() {
+        return spilledCount;
+    }
+
+
+    /**
+     * 返回执行的批次数.
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+
+    /**
+     * 返回被数据库拒绝的记录数.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -396,66 +650,38 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
 
         getNext().invoke(request, response);
 
-        String remoteHost = "";
+        AccessLogRecord record = new AccessLogRecord();
         if(resolveHosts)
-            remoteHost = request.getRemoteHost();
+            record.remoteHost = request.getRemoteHost();
         else
-            remoteHost = request.getRemoteAddr();
-        String user = "";
-        if(request != null)
-            user = request.getRemoteUser();
-        String query="";
-        if(request != null)
-            query = request.getRequestURI();
-        int bytes = response.getContentCount();
-        if(bytes < 0)
-            bytes = 0;
-        int status = response.getStatus();
+            record.remoteHost = request.getRemoteAddr();
+        record.user = request.getRemoteUser();
+        record.timestamp = getCurrentTimeMillis();
+        record.query = request.getRequestURI();
+        record.bytes = response.getContentCount();
+        if(record.bytes < 0)
+            record.bytes = 0;
+        record.status = response.getStatus();
         if (pattern.equals("combined")) {
-                String virtualHost = "";
-                if(request != null)
-                    virtualHost = request.getServerName();
-                String method = "";
-                if(request != null)
-                    method = request.getMethod();
-                String referer = "";
-                if(request != null)
-                    referer = request.getHeader("referer");
-                String userAgent = "";
-                if(request != null)
-                    userAgent = request.getHeader("user-agent");
+            record.virtualHost = request.getServerName();
+            record.method = request.getMethod();
+            record.referer = request.getHeader("referer");
+            record.userAgent = request.getHeader("user-agent");
         }
+
+        AccessLogRingBuffer queue = this.queue;
+        if (queue != null) {
+            enqueue(queue, record);
+            return;
+        }
+
         synchronized (this) {
           int numberOfTries = 2;
           while (numberOfTries>0) {
             try {
                 open();
     
-                ps.setString(1, remoteHost);
-                ps.setString(2, user);
-                ps.setTimestamp(3, new Timestamp(getCurrentTimeMillis()));
-                ps.setString(4, query);
-                ps.setInt(5, status);
-                ps.setInt(6, bytes);
-                if (pattern.equals("combined")) {
-     
-                      String virtualHost = "";
-                      if(request != null)
-                         virtualHost = request.getServerName();
-                      String method = "";
-                      if(request != null)
-                         method = request.getMethod();
-                      String referer = "";
-                      if(request != null)
-                         referer = request.getHeader("referer");
-                      String userAgent = "";
-                      if(request != null)
-                         userAgent = request.getHeader("user-agent");
-                      ps.setString(7, virtualHost);
-                      ps.setString(8, method);
-                      ps.setString(9, referer);
-                      ps.setString(10, userAgent);
-                }
+                bind(ps, record);
                 ps.executeUpdate();
                 return;
               } catch (SQLException e) {
@@ -511,6 +737,33 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
         if (conn != null)
             return ;
 
+        conn = getConnection();
+        conn.setAutoCommit(true);
+        ps = conn.prepareStatement(getInsertSQL());
+    }
+
+
+    /**
+     * 返回一个新的数据库连接, 来自<code>DataSource</code>或者JDBC驱动.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    protected Connection getConnection() throws SQLException {
+
+        if (dataSourceName != null) {
+            if (dataSource == null) {
+                try {
+                    StandardServer server =
+                        (StandardServer) ServerFactory.getServer();
+                    Context context = server.getGlobalNamingContext();
+                    dataSource = (DataSource) context.lookup(dataSourceName);
+                } catch (Exception e) {
+                    throw new SQLException(e.getMessage());
+                }
+            }
+            return dataSource.getConnection();
+        }
+
         // 初始化数据库驱动
         if (driver == null) {
             try {
@@ -528,25 +781,393 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
             props.put("user", connectionName);
         if (connectionPassword != null)
             props.put("password", connectionPassword);
-        conn = driver.connect(connectionURL, props);
-        conn.setAutoCommit(true);
-        if (pattern.equals("common")) {
-                ps = conn.prepareStatement
-                    ("INSERT INTO " + tableName + " (" 
-                     + remoteHostField + ", " + userField + ", "
-                     + timestampField +", " + queryField + ", "
-                     + statusField + ", " + bytesField 
-                     + ") VALUES(?, ?, ?, ?, ?, ?)");
-        } else if (pattern.equals("combined")) {
-                ps = conn.prepareStatement
-                    ("INSERT INTO " + tableName + " (" 
-                     + remoteHostField + ", " + userField + ", "
-                     + timestampField + ", " + queryField + ", " 
-                     + statusField + ", " + bytesField + ", " 
-                     + virtualHostField + ", " + methodField + ", "
-                     + refererField + ", " + userAgentField
-                     + ") VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        return driver.connect(connectionURL, props);
+    }
+
+
+    /**
+     * 返回插入一条记录的SQL语句.
+     */
+    protected String getInsertSQL() {
+        if (pattern.equals("combined")) {
+            return "INSERT INTO " + tableName + " ("
+                + remoteHostField + ", " + userField + ", "
+                + timestampField + ", " + queryField + ", "
+                + statusField + ", " + bytesField + ", "
+                + virtualHostField + ", " + methodField + ", "
+                + refererField + ", " + userAgentField
+                + ") VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+        } else {
+            return "INSERT INTO " + tableName + " ("
+                + remoteHostField + ", " + userField + ", "
+                + timestampField +", " + queryField + ", "
+                + statusField + ", " + bytesField
+                + ") VALUES(?, ?, ?, ?, ?, ?)";
+        }
+    }
+
+
+    /**
+     * 把记录绑定到插入语句的参数.
+     */
+    private void bind(PreparedStatement ps, AccessLogRecord record)
+        throws SQLException {
+        ps.setString(1, record.remoteHost);
+        ps.setString(2, record.user);
+        ps.setTimestamp(3, new Timestamp(record.timestamp));
+        ps.setString(4, record.query);
+        ps.setInt(5, record.status);
+        ps.setInt(6, record.bytes);
+        if (pattern.equals("combined")) {
+            ps.setString(7, record.virtualHost);
+            ps.setString(8, record.method);
+            ps.setString(9, record.referer);
+            ps.setString(10, record.userAgent);
+        }
+    }
+
+
+    /**
+     * 把记录放入队列, 队列满时按照<code>overflowPolicy</code>处理.
+     */
+    private void enqueue(AccessLogRingBuffer queue, AccessLogRecord record) {
+        while (!queue.offer(record)) {
+            if (writerDone || (overflowPolicy == AccessLogValve.OVERFLOW_COUNT)) {
+                droppedCount.incrementAndGet();
+                return;
+            } else if (overflowPolicy == AccessLogValve.OVERFLOW_DROP) {
+                if (queue.poll() != null)
+                    droppedCount.incrementAndGet();
+            } else {
+                wakeWriter();
+                LockSupport.parkNanos(100000L);
+            }
+        }
+        if (writerWaiting && (queue.size() >= batchSize))
+            wakeWriter();
+    }
+
+
+    private void wakeWriter() {
+        writerWaiting = false;
+        Thread thread = writerThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+
+    /**
+     * 在一个事务中批量插入记录, 成功后清空列表. 只被后台线程调用.
+     *
+     * @exception SQLException if a database error occurs
+     */
+    private void insert(List records) throws SQLException {
+        Connection connection = null;
+        PreparedStatement statement = null;
+        boolean pooled = (dataSourceName != null);
+        try {
+            if (pooled) {
+                connection = getConnection();
+                statement = connection.prepareStatement(getInsertSQL());
+            } else {
+                open();
+                connection = conn;
+                statement = ps;
+            }
+            connection.setAutoCommit(false);
+            try {
+                for (int i = 0; i < records.size(); i++) {
+                    bind(statement, (AccessLogRecord) records.get(i));
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException f) {
+                    ;
+                }
+                throw e;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException f) {
+                    ;
+                }
+            }
+            insertedCount += records.size();
+            batchCount++;
+            records.clear();
+        } catch (SQLException e) {
+            if (!pooled)
+                close();
+            throw e;
+        } finally {
+            if (pooled) {
+                try {
+                    if (statement != null)
+                        statement.close();
+                } catch (Throwable t) {
+                    ;
+                }
+                try {
+                    if (connection != null)
+                        connection.close();
+                } catch (Throwable t) {
+                    ;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 插入记录, 插入的记录从列表中移除. 如果批量插入因为数据错误失败, 逐条插入,
+     * 被数据库拒绝的记录写入隔离文件, 其它记录正常插入. 只被后台线程调用.
+     *
+     * @exception SQLException 如果数据库不可用, 列表中保留还没有插入的记录
+     */
+    private void insertRecords(List records) throws SQLException {
+        if (records.isEmpty())
+            return;
+        try {
+            insert(records);
+            return;
+        } catch (SQLException e) {
+            if (!isDataError(e))
+                throw e;
+        }
+        List single = new ArrayList(1);
+        while (!records.isEmpty()) {
+            AccessLogRecord record = (AccessLogRecord) records.get(0);
+            single.add(record);
+            try {
+                insert(single);
+            } catch (SQLException e) {
+                single.clear();
+                if (!isDataError(e))
+                    throw e;
+                reject(record, e);
+            }
+            records.remove(0);
+        }
+    }
+
+
+    /**
+     * 异常是否表示记录本身的错误 (SQLState类22: 数据异常, 23: 违反完整性约束), 而不是数据库不可用.
+     */
+    private static boolean isDataError(SQLException e) {
+        while (e != null) {
+            String state = e.getSQLState();
+            if ((state != null)
+                && (state.startsWith("22") || state.startsWith("23")))
+                return true;
+            e = e.getNextException();
+        }
+        return false;
+    }
+
+
+    /**
+     * 插入一批记录. 数据库不可用时把没有插入的记录写入本地文件; 数据库可用时先插入本地文件中的记录.
+     * 只被后台线程调用.
+     */
+    private void flush(List records) {
+        if (records.isEmpty())
+            return;
+        if (System.currentTimeMillis() >= retryTime) {
+            try {
+                replaySpillFile();
+                insertRecords(records);
+            } catch (SQLException e) {
+                container.getLogger().error(sm.getString("jdbcAccessLogValve.exception"), e);
+                retryTime = System.currentTimeMillis() + RETRY_DELAY;
+            } catch (IOException e) {
+                container.getLogger().error
+                    (sm.getString("jdbcAccessLogValve.spillFail", resolveSpillFile()), e);
+                retryTime = System.currentTimeMillis() + RETRY_DELAY;
+            }
+        }
+        if (!records.isEmpty()) {
+            File file = resolveSpillFile();
+            if (append(file, records))
+                spilledCount += records.size();
+            else
+                droppedCount.addAndGet(records.size());
+            records.clear();
+        }
+    }
+
+
+    /**
+     * 返回本地文件, 或者null.
+     */
+    private File resolveSpillFile() {
+        if (spillFile == null)
+            return null;
+        File file = new File(spillFile);
+        if (!file.isAbsolute())
+            file = new File(System.getProperty("catalina.base"), spillFile);
+        return file;
+    }
+
+
+    /**
+     * 把被数据库拒绝的记录写入隔离文件, 以便检查; 没有设置<code>spillFile</code>时丢弃它.
+     */
+    private void reject(AccessLogRecord record, SQLException e) {
+        container.getLogger().warn(sm.getString("jdbcAccessLogValve.rejected",
+                record.query), e);
+        rejectedCount++;
+        File file = resolveSpillFile();
+        if (file != null) {
+            List records = new ArrayList(1);
+            records.add(record);
+            append(new File(file.getPath() + ".rejected"), records);
+        }
+    }
+
+
+    /**
+     * 把记录追加到本地文件, 每行一条记录, 字段用制表符分隔.
+     *
+     * @return <code>true</code>如果写入成功
+     */
+    private boolean append(File file, List records) {
+        if (file == null)
+            return false;
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter
+                (new FileOutputStream(file, true), "UTF-8");
+            for (int i = 0; i < records.size(); i++) {
+                ((AccessLogRecord) records.get(i)).write(writer);
+            }
+            writer.flush();
+            return true;
+        } catch (IOException e) {
+            container.getLogger().error
+                (sm.getString("jdbcAccessLogValve.spillFail", file), e);
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * 把本地文件中的记录插入数据库, 成功后删除文件. 中途失败时, 文件被改写为只包含还没有插入的记录,
+     * 所以已经插入的记录不会被重复插入. 如果文件不能被改写 (或删除), 记住文件开头已经插入的行数,
+     * 下次插入时跳过这些行.
+     *
+     * @exception SQLException if a database error occurs
+     * @exception IOException if the file cannot be read or rewritten
+     */
+    private void replaySpillFile() throws SQLException, IOException {
+        File file = resolveSpillFile();
+        if ((file == null) || !file.exists()) {
+            spillSkip = 0;
+            return;
+        }
+        BufferedReader reader = null;
+        List records = new ArrayList(batchSize);
+        List recordLines = new ArrayList(batchSize);
+        int lineCount = 0;
+        int committed = spillSkip;
+        try {
+            reader = new BufferedReader(new InputStreamReader
+                (new FileInputStream(file), "UTF-8"));
+            String line = null;
+            boolean eof = false;
+            while (!eof) {
+                line = reader.readLine();
+                if (line == null) {
+                    eof = true;
+                } else {
+                    lineCount++;
+                    if (lineCount <= spillSkip)
+                        continue;
+                    AccessLogRecord record = AccessLogRecord.read(line);
+                    if (record != null) {
+                        records.add(record);
+                        recordLines.add(new Integer(lineCount));
+                    }
+                    if (records.size() < batchSize)
+                        continue;
+                }
+                try {
+                    insertRecords(records);
+                } catch (SQLException e) {
+                    // 没有插入的记录是这个批次的最后几个记录
+                    committed = ((Integer) recordLines.get
+                        (recordLines.size() - records.size())).intValue() - 1;
+                    keepRemaining(file, records, reader);
+                    spillSkip = 0;
+                    throw e;
+                }
+                committed = lineCount;
+                recordLines.clear();
+            }
+        } catch (IOException e) {
+            spillSkip = committed;
+            throw e;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    ;
+                }
+            }
         }
+        spillSkip = file.delete() ? 0 : lineCount;
+    }
+
+
+    /**
+     * 用还没有插入的记录和文件中还没有读取的行替换本地文件.
+     *
+     * @param file 本地文件
+     * @param records 读取了但还没有插入的记录
+     * @param reader 文件的其余部分, 在这个方法中被关闭
+     */
+    private void keepRemaining(File file, List records, BufferedReader reader)
+        throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        temp.delete();
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter
+                (new FileOutputStream(temp), "UTF-8");
+            for (int i = 0; i < records.size(); i++) {
+                ((AccessLogRecord) records.get(i)).write(writer);
+            }
+            String line = null;
+            while ((line = reader.readLine()) != null) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            if (writer != null)
+                writer.close();
+            writer = null;
+            temp.delete();
+            throw e;
+        } finally {
+            if (writer != null)
+                writer.close();
+        }
+        reader.close();
+        if (!file.delete() || !temp.renameTo(file))
+            throw new IOException(file.getAbsolutePath());
     }
 
     /**
@@ -587,6 +1208,17 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
+        if (async) {
+            // 数据库不可用时记录写入本地文件, 所以不在这里连接
+            queue = new AccessLogRingBuffer(queueSize);
+            writerDone = false;
+            retryTime = 0L;
+            writerThread = new Thread(new BatchWriter(), "JDBCAccessLogWriter");
+            writerThread.setDaemon(true);
+            writerThread.start();
+            return;
+        }
+
         try {
             open() ;        
         } catch (SQLException e) {
@@ -607,7 +1239,19 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
                 (sm.getString("accessLogValve.notStarted"));
         lifecycle.fireLifecycleEvent(STOP_EVENT, null);
         started = false;
-        
+
+        if (writerThread != null) {
+            // 后台线程插入剩余的记录后结束
+            writerDone = true;
+            wakeWriter();
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                ;
+            }
+            writerThread = null;
+            queue = null;
+        }
         close() ;
     }
 
@@ -620,4 +1264,164 @@ public final class JDBCAccessLogValve extends ValveBase implements Lifecycle {
         return currentTimeMillis;
     }
 
+
+
+    // ---------------------------------------------------------- Inner Classes
+
+
+    /**
+     * 后台线程, 从队列中取出记录批量插入.
+     */
+    protected class BatchWriter implements Runnable {
+
+        public void run() {
+            List records = new ArrayList(batchSize);
+            long firstTime = 0L;
+            while (true) {
+                Object record = queue.poll();
+                if (record != null) {
+                    if (records.isEmpty())
+                        firstTime = System.currentTimeMillis();
+                    records.add(record);
+                    if (records.size() >= batchSize)
+                        flush(records);
+                    continue;
+                }
+                if (writerDone && (queue.size() == 0))
+                    break;
+                long wait = flushInterval;
+                if (!records.isEmpty()) {
+                    wait = firstTime + flushInterval - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        flush(records);
+                        continue;
+                    }
+                }
+                writerWaiting = true;
+                if (queue.size() < batchSize)
+                    LockSupport.parkNanos(wait * 1000000L);
+                writerWaiting = false;
+            }
+            flush(records);
+        }
+    }
+
+
+    /**
+     * 一条访问记录.
+     */
+    private static final class AccessLogRecord {
+
+        String remoteHost;
+        String user;
+        long timestamp;
+        String query;
+        int status;
+        int bytes;
+        String virtualHost;
+        String method;
+        String referer;
+        String userAgent;
+
+        /**
+         * 写入一行. null写为"\N", 制表符, 换行和反斜线被转义.
+         */
+        void write(Writer writer) throws IOException {
+            writeField(writer, remoteHost);
+            writer.write('\t');
+            writeField(writer, user);
+            writer.write('\t');
+            writer.write(String.valueOf(timestamp));
+            writer.write('\t');
+            writeField(writer, query);
+            writer.write('\t');
+            writer.write(String.valueOf(status));
+            writer.write('\t');
+            writer.write(String.valueOf(bytes));
+            writer.write('\t');
+            writeField(writer, virtualHost);
+            writer.write('\t');
+            writeField(writer, method);
+            writer.write('\t');
+            writeField(writer, referer);
+            writer.write('\t');
+            writeField(writer, userAgent);
+            writer.write('\n');
+        }
+
+        private static void writeField(Writer writer, String value)
+            throws IOException {
+            if (value == null) {
+                writer.write("\\N");
+                return;
+            }
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '\\') {
+                    writer.write("\\\\");
+                } else if (c == '\t') {
+                    writer.write("\\t");
+                } else if (c == '\n') {
+                    writer.write("\\n");
+                } else if (c == '\r') {
+                    writer.write("\\r");
+                } else {
+                    writer.write(c);
+                }
+            }
+        }
+
+        /**
+         * 解析<code>write()</code>写入的一行, 格式错误时返回null.
+         */
+        static AccessLogRecord read(String line) {
+            String[] fields = new String[10];
+            int n = 0;
+            StringBuffer buf = new StringBuffer();
+            boolean isNull = false;
+            for (int i = 0; i <= line.length(); i++) {
+                char c = (i < line.length()) ? line.charAt(i) : '\t';
+                if (c == '\t') {
+                    if (n >= fields.length)
+                        return null;
+                    fields[n++] = isNull ? null : buf.toString();
+                    buf.setLength(0);
+                    isNull = false;
+                } else if ((c == '\\') && (i + 1 < line.length())) {
+                    char e = line.charAt(++i);
+                    if (e == 'N')
+                        isNull = true;
+                    else if (e == 't')
+                        buf.append('\t');
+                    else if (e == 'n')
+                        buf.append('\n');
+                    else if (e == 'r')
+                        buf.append('\r');
+                    else
+                        buf.append(e);
+                } else {
+                    buf.append(c);
+                }
+            }
+            if (n != fields.length)
+                return null;
+            try {
+                AccessLogRecord record = new AccessLogRecord();
+                record.remoteHost = fields[0];
+                record.user = fields[1];
+                record.timestamp = Long.parseLong(fields[2]);
+                record.query = fields[3];
+                record.status = Integer.parseInt(fields[4]);
+                record.bytes = Integer.parseInt(fields[5]);
+                record.virtualHost = fields[6];
+                record.method = fields[7];
+                record.referer = fields[8];
+                record.userAgent = fields[9];
+                return record;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
 }
@@ -2,9 +2,16 @@ package org.apache.catalina.valves;
 
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.catalina.Lifecycle;
 import org.apache.catalina.LifecycleException;
@@ -19,6 +26,18 @@ import org.apache.catalina.util.StringManager;
  * <p>Valve的实现类限制了并发.</p>
  *
  * <p>这个Valve 可能附加到任何 Container, 取决于希望执行的并发控制的粒度.</p>
+ *
+ * <p>如果<code>maxQueueTime</code>不小于0, 请求最多等待这么多毫秒获取许可, 超时后立即返回503和
+ * <code>Retry-After</code>头, 而不是一直占用连接器的线程.</p>
+ *
+ * <p>如果<code>adaptive</code>为<code>true</code>, 许可数量根据观察到的延迟调整 (梯度算法):
+ * 每个采样窗口比较窗口内的平均延迟和无负载延迟 (观察到的最小延迟),
+ * 延迟没有明显上升时增加许可, 上升时按比例减少, 范围在<code>minConcurrency</code>和
+ * <code>maxConcurrency</code>之间. <code>concurrency</code>是初始值.</p>
+ *
+ * <p><code>limits</code>可以为不同的URL前缀设置单独的限制, 例如
+ * <code>/app1=20,/app2/api=5</code>. 每个前缀有自己的许可和延迟统计, 最长的前缀优先,
+ * 没有匹配的请求使用默认的限制. 放在Host上时可以用来限制每个Context.</p>
  */
 public class SemaphoreValve extends ValveBase implements Lifecycle {
 
@@ -76,6 +95,121 @@ public class SemaphoreValve extends ValveBase implements Lifecycle {
     public void setFairness(boolean fairness) { this.fairness = fairness; }
     
 
+    /**
+     * 是否根据延迟调整许可数量.
+     */
+    protected boolean adaptive = false;
+    public boolean getAdaptive() { return adaptive; }
+    public void setAdaptive(boolean adaptive) { this.adaptive = adaptive; }
+
+
+    /**
+     * 自适应模式下许可数量的最小值.
+     */
+    protected int minConcurrency = 1;
+    public int getMinConcurrency() { return minConcurrency; }
+    public void setMinConcurrency(int minConcurrency) { this.minConcurrency = minConcurrency; }
+
+
+    /**
+     * 自适应模式下许可数量的最大值.
+     */
+    protected int maxConcurrency = 200;
+    public int getMaxConcurrency() { return maxConcurrency; }
+    public void setMaxConcurrency(int maxConcurrency) { this.maxConcurrency = maxConcurrency; }
+
+
+    /**
+     * 等待许可的最长时间, 毫秒. 小于0表示一直等待.
+     */
+    protected long maxQueueTime = -1;
+    public long getMaxQueueTime() { return maxQueueTime; }
+    public void setMaxQueueTime(long maxQueueTime) { this.maxQueueTime = maxQueueTime; }
+
+
+    /**
+     * 拒绝请求时<code>Retry-After</code>头的值, 秒.
+     */
+    protected int retryAfter = 1;
+    public int getRetryAfter() { return retryAfter; }
+    public void setRetryAfter(int retryAfter) { this.retryAfter = retryAfter; }
+
+
+    /**
+     * URL前缀的限制, 例如<code>/app1=20,/app2/api=5</code>.
+     */
+    protected String limits = null;
+    public String getLimits() { return limits; }
+    public void setLimits(String limits) { this.limits = limits; }
+
+
+    /**
+     * 默认的限制.
+     */
+    protected Limiter limiter = null;
+
+
+    /**
+     * URL前缀的限制, 按前缀长度从长到短排序.
+     */
+    protected Limiter[] prefixLimiters = new Limiter[0];
+
+
+    /**
+     * 返回默认限制当前的许可数量.
+     */
+    public int getLimit() {
+        Limiter limiter = this.limiter;
+        return (limiter == null) ? 0 : limiter.limit;
+    }
+
+
+    /**
+     * 返回正在处理的请求数量, 包括所有前缀.
+     */
+    public int getInFlight() {
+        int n = 0;
+        Limiter limiter = this.limiter;
+        if (limiter != null)
+            n += limiter.inFlight.get();
+        Limiter[] limiters = prefixLimiters;
+        for (int i = 0; i < limiters.length; i++) {
+            n += limiters[i].inFlight.get();
+        }
+        return n;
+    }
+
+
+    /**
+     * 返回被拒绝的请求数量, 包括所有前缀.
+     */
+    public long getRejectedCount() {
+        long n = 0;
+        Limiter limiter = this.limiter;
+        if (limiter != null)
+            n += limiter.rejectedCount.get();
+        Limiter[] limiters = prefixLimiters;
+        for (int i = 0; i < limiters.length; i++) {
+            n += limiters[i].rejectedCount.get();
+        }
+        return n;
+    }
+
+
+    /**
+     * 返回每个限制的状态.
+     */
+    public String[] getLimitStates() {
+        Limiter[] limiters = prefixLimiters;
+        String[] results = new String[limiters.length + 1];
+        for (int i = 0; i < limiters.length; i++) {
+            results[i] = limiters[i].toString();
+        }
+        results[limiters.length] = String.valueOf(limiter);
+        return results;
+    }
+
+
     // ------------------------------------------------------ Lifecycle Methods
 
 
@@ -122,7 +256,36 @@ public class SemaphoreValve extends ValveBase implements Lifecycle {
         lifecycle.fireLifecycleEvent(START_EVENT, null);
         started = true;
 
-        semaphore = new Semaphore(concurrency, fairness);
+        limiter = new Limiter("", concurrency);
+        semaphore = limiter.semaphore;
+
+        ArrayList list = new ArrayList();
+        if (limits != null) {
+            StringTokenizer tokenizer = new StringTokenizer(limits, ",");
+            while (tokenizer.hasMoreTokens()) {
+                String token = tokenizer.nextToken().trim();
+                int pos = token.indexOf('=');
+                if (pos <= 0)
+                    throw new LifecycleException
+                        (sm.getString("semaphoreValve.invalidLimit", token));
+                int limit;
+                try {
+                    limit = Integer.parseInt(token.substring(pos + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new LifecycleException
+                        (sm.getString("semaphoreValve.invalidLimit", token));
+                }
+                String prefix = token.substring(0, pos).trim();
+                Limiter prefixLimiter = new Limiter(prefix, limit);
+                int i = 0;
+                while ((i < list.size()) && (((Limiter) list.get(i)).prefix.length()
+                                              >= prefix.length())) {
+                    i++;
+                }
+                list.add(i, prefixLimiter);
+            }
+        }
+        prefixLimiters = (Limiter[]) list.toArray(new Limiter[list.size()]);
     }
 
 
@@ -141,6 +304,8 @@ public class SemaphoreValve extends ValveBase implements Lifecycle {
         started = false;
 
         semaphore = null;
+        limiter = null;
+        prefixLimiters = new Limiter[0];
     }
 
     
@@ -166,12 +331,224 @@ public class SemaphoreValve extends ValveBase implements Lifecycle {
      */
     public void invoke(Request request, Response response)
         throws IOException, ServletException {
+
+        Limiter limiter = this.limiter;
+        Limiter[] limiters = prefixLimiters;
+        if (limiters.length > 0) {
+            String uri = request.getDecodedRequestURI();
+            for (int i = 0; i < limiters.length; i++) {
+                if (limiters[i].matches(uri)) {
+                    limiter = limiters[i];
+                    break;
+                }
+            }
+        }
+
+        if (maxQueueTime < 0) {
+            limiter.semaphore.acquireUninterruptibly();
+        } else {
+            boolean acquired = false;
+            try {
+                acquired = limiter.semaphore.tryAcquire
+                    (maxQueueTime, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // 拒绝请求, 保留线程的中断状态
+                Thread.currentThread().interrupt();
+            }
+            if (!acquired) {
+                limiter.rejectedCount.incrementAndGet();
+                response.setHeader("Retry-After", String.valueOf(retryAfter));
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+        }
+
+        int inFlight = limiter.inFlight.incrementAndGet();
+        long t1 = System.nanoTime();
         try {
-            semaphore.acquireUninterruptibly();
             // Perform the request
             getNext().invoke(request, response);
         } finally {
-            semaphore.release();
+            limiter.inFlight.decrementAndGet();
+            limiter.semaphore.release();
+            if (adaptive)
+                limiter.sample(System.nanoTime() - t1, inFlight);
+        }
+    }
+
+
+    // --------------------------------------------------------- Limiter Class
+
+
+    /**
+     * 可以减少许可的信号量.
+     */
+    protected static class LimitSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        public LimitSemaphore(int permits, boolean fair) {
+            super(permits, fair);
+        }
+
+        public void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+
+    /**
+     * 一个限制: 许可, 正在处理的请求数量和延迟统计.
+     * <p>
+     * 自适应模式下, 每<code>WINDOW_SIZE</code>个请求或<code>WINDOW_TIME</code>纳秒是一个采样窗口.
+     * 窗口结束时, 第一个获得锁的线程计算新的许可数量:
+     * <code>limit * min(1, max(0.5, TOLERANCE * noLoad / average)) + sqrt(limit)</code>,
+     * 再与旧值平滑. 如果窗口内的并发没有达到许可的一半, 许可不增加.
+     * 每<code>PROBE_WINDOWS</code>个窗口重新测量无负载延迟, 以便跟随负载的变化.
+     */
+    protected class Limiter {
+
+        protected String prefix;
+        protected LimitSemaphore semaphore;
+        protected volatile int limit;
+        protected AtomicInteger inFlight = new AtomicInteger();
+        protected AtomicLong rejectedCount = new AtomicLong();
+
+        private ReentrantLock lock = new ReentrantLock();
+        private AtomicInteger sampleCount = new AtomicInteger();
+        private AtomicLong sampleTotal = new AtomicLong();
+        private AtomicLong sampleMin = new AtomicLong(Long.MAX_VALUE);
+        private AtomicInteger sampleMaxInFlight = new AtomicInteger();
+        private volatile long windowStart = System.nanoTime();
+        private long noLoadTime = 0;
+        private long lastAverage = 0;
+        private int windows = 0;
+        private double smoothedLimit;
+
+        public Limiter(String prefix, int limit) {
+            this.prefix = prefix;
+            this.limit = limit;
+            this.smoothedLimit = limit;
+            this.semaphore = new LimitSemaphore(limit, fairness);
+        }
+
+        /**
+         * URI是否属于这个前缀: 与前缀相同, 或者前缀之后是<code>/</code>.
+         * 所以<code>/app1</code>不匹配<code>/app10/...</code>.
+         */
+        public boolean matches(String uri) {
+            if (!uri.startsWith(prefix))
+                return false;
+            int length = prefix.length();
+            return (uri.length() == length) || prefix.endsWith("/")
+                || (uri.charAt(length) == '/');
+        }
+
+        /**
+         * 记录一个请求的处理时间.
+         *
+         * @param time 处理时间, 纳秒
+         * @param concurrent 请求开始时正在处理的请求数量
+         */
+        public void sample(long time, int concurrent) {
+            int n = sampleCount.incrementAndGet();
+            sampleTotal.addAndGet(time);
+            long min = sampleMin.get();
+            while ((time < min) && !sampleMin.compareAndSet(min, time)) {
+                min = sampleMin.get();
+            }
+            int max = sampleMaxInFlight.get();
+            while ((concurrent > max) && !sampleMaxInFlight.compareAndSet(max, concurrent)) {
+                max = sampleMaxInFlight.get();
+            }
+            long now = System.nanoTime();
+            if (((n >= WINDOW_SIZE) || (now - windowStart >= WINDOW_TIME))
+                && lock.tryLock()) {
+                try {
+                    update(now);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 结束当前窗口, 计算新的许可数量. 在锁内调用.
+         */
+        private void update(long now) {
+            int n = sampleCount.getAndSet(0);
+            long total = sampleTotal.getAndSet(0);
+            long min = sampleMin.getAndSet(Long.MAX_VALUE);
+            int maxInFlight = sampleMaxInFlight.getAndSet(0);
+            windowStart = now;
+            if (n == 0)
+                return;
+
+            long average = total / n;
+            lastAverage = average;
+            windows++;
+            if ((noLoadTime == 0) || (min < noLoadTime)
+                || (windows % PROBE_WINDOWS == 0))
+                noLoadTime = Math.max(min, 1);
+
+            double gradient = Math.max(0.5, Math.min(1.0,
+                TOLERANCE * noLoadTime / Math.max(average, 1)));
+            double newLimit = limit * gradient + Math.sqrt(limit);
+            if ((newLimit > limit) && (maxInFlight < limit / 2))
+                newLimit = limit;
+            smoothedLimit = smoothedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+            int target = (int) Math.round(smoothedLimit);
+            target = Math.max(minConcurrency, Math.min(maxConcurrency, target));
+            smoothedLimit = Math.max(minConcurrency, Math.min(maxConcurrency, smoothedLimit));
+
+            int delta = target - limit;
+            if (delta > 0)
+                semaphore.release(delta);
+            else if (delta < 0)
+                semaphore.reducePermits(-delta);
+            limit = target;
+        }
+
+        public String toString() {
+            StringBuffer sb = new StringBuffer();
+            sb.append((prefix.length() == 0) ? "*" : prefix);
+            sb.append(": limit=").append(limit);
+            sb.append(", inFlight=").append(inFlight.get());
+            sb.append(", rejected=").append(rejectedCount.get());
+            if (adaptive) {
+                sb.append(", noLoad=").append(noLoadTime / 1000).append("us");
+                sb.append(", average=").append(lastAverage / 1000).append("us");
+            }
+            return sb.toString();
         }
     }
+
+
+    /**
+     * 采样窗口的最大请求数.
+     */
+    protected static final int WINDOW_SIZE = 100;
+
+
+    /**
+     * 采样窗口的最长时间, 纳秒.
+     */
+    protected static final long WINDOW_TIME = 1000000000L;
+
+
+    /**
+     * 平均延迟不超过无负载延迟的这个倍数时, 认为没有排队.
+     */
+    protected static final double TOLERANCE = 1.5;
+
+
+    /**
+     * 新的许可数量所占的权重.
+     */
+    protected static final double SMOOTHING = 0.2;
+
+
+    /**
+     * 重新测量无负载延迟的窗口间隔.
+     */
+    protected static final int PROBE_WINDOWS = 50;
 }
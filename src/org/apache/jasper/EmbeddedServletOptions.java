@@ -84,6 +84,11 @@ public final class EmbeddedServletOptions implements Options {
      */
     private boolean genStringAsCharArray = false;
     
+    /**
+     * 模板文本是否被生成为预先编码的字节数组?
+     */
+    private boolean genStringAsByteArray = false;
+    
     private boolean errorOnUseBeanInvalidClassAttribute = true;
     
     /**
@@ -237,6 +242,13 @@ public final class EmbeddedServletOptions implements Options {
         return this.genStringAsCharArray;
     }
     
+    /**
+     * 模板文本是否被生成为预先编码的字节数组
+     */
+    public boolean genStringAsByteArray() {
+        return this.genStringAsByteArray;
+    }
+    
     /**
      * 当浏览器是IE时，在标签库中使用的Class ID. 
      */
@@ -513,6 +525,19 @@ public final class EmbeddedServletOptions implements Options {
             }
         }
         
+        String genByteArray = config.getInitParameter("genStrAsByteArray");
+        if (genByteArray != null) {
+            if (genByteArray.equalsIgnoreCase("true")) {
+                genStringAsByteArray = true;
+            } else if (genByteArray.equalsIgnoreCase("false")) {
+                genStringAsByteArray = false;
+            } else {
+                if (log.isWarnEnabled()) {
+                    log.warn(Localizer.getMessage("jsp.warning.genbytearray"));
+                }
+            }
+        }
+        
         String errBeanClass =
             config.getInitParameter("errorOnUseBeanInvalidClassAttribute");
         if (errBeanClass != null) {
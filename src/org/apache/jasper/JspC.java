@@ -119,6 +119,7 @@ public class JspC implements Options {
     private URLClassLoader loader = null;
     private boolean trimSpaces = false;
     private boolean genStringAsCharArray = false;
+    private boolean genStringAsByteArray = false;
     private boolean xpoweredBy;
     private boolean mappedFile = false;
     private boolean poolingEnabled = true;
@@ -476,6 +477,24 @@ public class JspC implements Options {
         return genStringAsCharArray;
     }
 
+    /**
+     * 模板文本是否生成为按页面的字符编码预先编码的字节数组, 输出时不需要再转换字符.
+     *
+     * @param genStringAsByteArray true 如果模板文本被生成为字节数组, 否则false
+     */
+    public void setGenStringAsByteArray(boolean genStringAsByteArray) {
+        this.genStringAsByteArray = genStringAsByteArray;
+    }
+
+    /**
+     * 是否将模板文本生成为字节数组.
+     *
+     * @return true 如果模板文本被生成为字节数组, 否则false
+     */
+    public boolean genStringAsByteArray() {
+        return genStringAsByteArray;
+    }
+
     /**
      * 设置class-id值发送给Internet Explorer, 当使用<jsp:plugin>标签时.
      *
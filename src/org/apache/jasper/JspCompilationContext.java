@@ -182,6 +182,15 @@ public class JspCompilationContext {
             if (jspCompiler == null) {
                 jspCompiler = createCompiler("org.apache.jasper.compiler.AntCompiler");
             }
+        } else if (Compiler.isJsr199Compiler(options.getCompiler())) {
+            // 只有明确配置时才使用进程内的javac
+            jspCompiler = createCompiler("org.apache.jasper.compiler.Jsr199JavaCompiler");
+            if (jspCompiler == null) {
+                jspCompiler = createCompiler("org.apache.jasper.compiler.JDTCompiler");
+            }
+            if (jspCompiler == null) {
+                jspCompiler = createCompiler("org.apache.jasper.compiler.AntCompiler");
+            }
         } else {
             jspCompiler = createCompiler("org.apache.jasper.compiler.AntCompiler");
             if (jspCompiler == null) {
@@ -503,8 +512,19 @@ public class JspCompilationContext {
     // ==================== Compile and reload ====================
     
     public void compile() throws JasperException, FileNotFoundException {
+        compile(false);
+    }
+
+    /**
+     * 编译页面.
+     *
+     * @param force 如果是true, 不检查时间戳直接编译. 用于启动时的预编译, 调用者已经确定页面需要编译,
+     *              检查依赖项需要加载servlet.
+     */
+    public void compile(boolean force)
+        throws JasperException, FileNotFoundException {
         createCompiler();
-        if (isPackagedTagFile || jspCompiler.isOutDated()) {
+        if (force || isPackagedTagFile || jspCompiler.isOutDated()) {
             try {
                 jspLoader = null;
                 jspCompiler.compile();
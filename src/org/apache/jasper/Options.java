@@ -137,6 +137,11 @@ public interface Options {
      */
     public boolean genStringAsCharArray();
     
+    /**
+     * 是否把页面的模板文本生成为按页面的字符编码预先编码的字节数组?
+     */
+    public boolean genStringAsByteArray();
+    
     /**
      * 修改测试间隔.
      */
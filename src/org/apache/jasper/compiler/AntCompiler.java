@@ -30,6 +30,17 @@ public class AntCompiler extends Compiler {
 
     // ------------------------------------------------------------ Constructor
 
+    /**
+     * 返回Ant使用的编译器, 初始化参数选择JSR 199编译器时返回null (JSR 199编译器不可用时的回退).
+     */
+    protected String getAntCompiler() {
+        String compiler = options.getCompiler();
+        if (isJsr199Compiler(compiler)) {
+            return null;
+        }
+        return compiler;
+    }
+
     // Lazy eval - 如果我们不需要编译，我们可能不需要这个项目
     protected Project getProject() {
         
@@ -46,10 +57,11 @@ public class AntCompiler extends Compiler {
             project.setBasedir( System.getProperty("catalina.home"));
         }
         
-        if( options.getCompiler() != null ) {
+        String compiler = getAntCompiler();
+        if( compiler != null ) {
             if( log.isDebugEnabled() )
-                log.debug("Compiler " + options.getCompiler() );
-            project.setProperty("build.compiler", options.getCompiler() );
+                log.debug("Compiler " + compiler );
+            project.setProperty("build.compiler", compiler );
         }
         project.init();
         return project;
@@ -165,9 +177,10 @@ public class AntCompiler extends Compiler {
         info.append("    srcDir=" + srcPath + "\n" );
         
         // 设置要使用的Java 编译器
-        if (options.getCompiler() != null) {
-            javac.setCompiler(options.getCompiler());
-            info.append("    compiler=" + options.getCompiler() + "\n");
+        String compiler = getAntCompiler();
+        if (compiler != null) {
+            javac.setCompiler(compiler);
+            info.append("    compiler=" + compiler + "\n");
         }
 
         if (options.getCompilerTargetVM() != null) {
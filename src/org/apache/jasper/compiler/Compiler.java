@@ -43,6 +43,11 @@ public abstract class Compiler {
     protected Options options;
 
     protected Node.Nodes pageNodes;
+
+    /**
+     * 最近一次生成的页面的源依赖项. 编译结束后pageInfo被清除, 依赖项保留在这里.
+     */
+    protected List dependants;
     // ------------------------------------------------------------ Constructor
 
     public void init(JspCompilationContext ctxt, JspServletWrapper jsw) {
@@ -207,6 +212,14 @@ public abstract class Compiler {
         return smapStr;
     }
 
+    /**
+     * 编译器初始化参数是否选择进程内的JSR 199编译器.
+     */
+    public static boolean isJsr199Compiler(String compiler) {
+        return "jsr199".equalsIgnoreCase(compiler)
+            || "org.apache.jasper.compiler.Jsr199JavaCompiler".equals(compiler);
+    }
+
     /** 
      * 编译servlet 从 .java 文件到 .class 文件
      */
@@ -248,6 +261,7 @@ public abstract class Compiler {
 
         try {
             String[] smap = generateJava();
+            dependants = pageInfo.getDependants();
             if (compileClass) {
                 generateClass(smap);
             }
@@ -386,6 +400,13 @@ public abstract class Compiler {
     	return pageInfo;
     }
 
+    /**
+     * 返回最近一次编译的页面的源依赖项, 如果还没有编译过, 返回<code>null</code>.
+     */
+    public List getDependants() {
+        return dependants;
+    }
+
 
     public JspCompilationContext getCompilationContext() {
     	return ctxt;
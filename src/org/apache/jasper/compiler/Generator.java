@@ -6,6 +6,8 @@ import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -1761,6 +1763,35 @@ class Generator {
             }
         }
 
+        /**
+         * 返回页面的contentType中的字符编码, 默认是ISO-8859-1. JVM不支持这个编码时返回null.
+         */
+        private String getPageCharset() {
+            String charset = "ISO-8859-1";
+            String cType = pageInfo.getContentType();
+            int index = (cType == null) ? -1 : cType.indexOf("charset=");
+            if (index >= 0) {
+                charset = cType.substring(index + 8);
+                int semicolon = charset.indexOf(';');
+                if (semicolon >= 0) {
+                    charset = charset.substring(0, semicolon);
+                }
+                charset = charset.trim();
+                if (charset.length() > 1 && charset.charAt(0) == '"'
+                        && charset.charAt(charset.length() - 1) == '"') {
+                    charset = charset.substring(1, charset.length() - 1);
+                }
+            }
+            try {
+                if (Charset.isSupported(charset)) {
+                    return charset;
+                }
+            } catch (IllegalCharsetNameException e) {
+                // 使用字符输出
+            }
+            return null;
+        }
+
         public void visit(Node.TemplateText n) throws JasperException {
 
             String text = n.getText();
@@ -1788,6 +1819,39 @@ class Generator {
                return;
            }
 
+            if (ctxt.getOptions().genStringAsByteArray() && !isTagFile) {
+                // 按页面的字符编码预先编码, 输出时直接写入响应的字节缓冲区
+                String charset = getPageCharset();
+                if (charset != null) {
+                    ServletWriter caOut;
+                    if (charArrayBuffer == null) {
+                        charArrayBuffer = new GenBuffer();
+                        caOut = charArrayBuffer.getOut();
+                        caOut.pushIndent();
+                        textMap = new HashMap();
+                    } else {
+                        caOut = charArrayBuffer.getOut();
+                    }
+                    String textName = (String) textMap.get(text);
+                    if (textName == null) {
+                        textName = "_jspx_text_" + charArrayCount++;
+                        textMap.put(text, textName);
+                        caOut.printin("private static final org.apache.jasper.runtime.EncodedText ");
+                        caOut.print(textName);
+                        caOut.print(" = new org.apache.jasper.runtime.EncodedText(");
+                        caOut.print(quote(text));
+                        caOut.print(", ");
+                        caOut.print(quote(charset));
+                        caOut.println(");");
+                    }
+
+                    n.setBeginJavaLine(out.getJavaLine());
+                    out.printil(textName + ".write(out);");
+                    n.setEndJavaLine(out.getJavaLine());
+                    return;
+                }
+            }
+
             if (ctxt.getOptions().genStringAsCharArray()) {
                // 将Strings 转换为char 数组, 提高性能
                 ServletWriter caOut;
@@ -0,0 +1,164 @@
+package org.apache.jasper.compiler;
+
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletContext;
+
+import org.apache.jasper.servlet.JspServletWrapper;
+
+/**
+ * 跟踪JSP页面和它们依赖的文件 (包含的文件, 标签文件, TLD) 的修改.
+ * <p>
+ * 保存一个依赖关系图: 每个文件和依赖它的页面. 后台线程定期检查每个文件一次, 不管有多少页面依赖它,
+ * 文件修改或删除时依赖它的所有页面被标记为过期. 请求线程不需要检查任何文件.
+ */
+final class JspChangeTracker {
+
+    private ServletContext context;
+
+    /**
+     * JspServletWrapper -> String[], 页面依赖的文件, 包括页面本身.
+     */
+    private Map dependencies = new HashMap();
+
+    /**
+     * 文件 -> Set, 依赖文件的页面.
+     */
+    private Map dependents = new HashMap();
+
+    /**
+     * 文件 -> Long, 最近一次检查时的修改时间, 文件不存在时是-1.
+     */
+    private Map lastModified = new HashMap();
+
+
+    JspChangeTracker(ServletContext context) {
+        this.context = context;
+    }
+
+
+    /**
+     * 登记页面的依赖项, 替换以前登记的依赖项.
+     *
+     * @param jsw 页面的包装
+     * @param jspUri 页面
+     * @param dependants 页面依赖的文件
+     */
+    synchronized void track(JspServletWrapper jsw, String jspUri,
+                            List dependants) {
+        untrack(jsw);
+        int size = (dependants == null) ? 0 : dependants.size();
+        String[] paths = new String[size + 1];
+        paths[0] = jspUri;
+        for (int i = 0; i < size; i++) {
+            paths[i + 1] = (String) dependants.get(i);
+        }
+        dependencies.put(jsw, paths);
+        for (int i = 0; i < paths.length; i++) {
+            Set wrappers = (Set) dependents.get(paths[i]);
+            if (wrappers == null) {
+                wrappers = new HashSet();
+                dependents.put(paths[i], wrappers);
+                lastModified.put(paths[i],
+                        new Long(getLastModified(paths[i])));
+            }
+            wrappers.add(jsw);
+        }
+    }
+
+
+    /**
+     * 删除页面的依赖项.
+     */
+    synchronized void untrack(JspServletWrapper jsw) {
+        String[] paths = (String[]) dependencies.remove(jsw);
+        if (paths == null) {
+            return;
+        }
+        for (int i = 0; i < paths.length; i++) {
+            Set wrappers = (Set) dependents.get(paths[i]);
+            if (wrappers == null) {
+                continue;
+            }
+            wrappers.remove(jsw);
+            if (wrappers.isEmpty()) {
+                dependents.remove(paths[i]);
+                lastModified.remove(paths[i]);
+            }
+        }
+    }
+
+
+    /**
+     * 返回跟踪的文件数量.
+     */
+    synchronized int getFileCount() {
+        return lastModified.size();
+    }
+
+
+    /**
+     * 检查所有跟踪的文件, 把依赖修改的文件的页面标记为过期.
+     *
+     * @return 被标记为过期的页面的包装
+     */
+    List scan() {
+        String[] paths;
+        synchronized (this) {
+            paths = (String[]) lastModified.keySet().toArray(new String[0]);
+        }
+
+        // 在锁外面检查文件
+        long[] times = new long[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            times[i] = getLastModified(paths[i]);
+        }
+
+        Set stale = new HashSet();
+        synchronized (this) {
+            for (int i = 0; i < paths.length; i++) {
+                Long previous = (Long) lastModified.get(paths[i]);
+                if ((previous == null) || (previous.longValue() == times[i])) {
+                    continue;
+                }
+                lastModified.put(paths[i], new Long(times[i]));
+                stale.addAll((Set) dependents.get(paths[i]));
+            }
+        }
+
+        List result = new ArrayList(stale);
+        Iterator iter = result.iterator();
+        while (iter.hasNext()) {
+            ((JspServletWrapper) iter.next()).setStale();
+        }
+        return result;
+    }
+
+
+    /**
+     * 返回文件的修改时间, 文件不存在时返回-1.
+     */
+    private long getLastModified(String path) {
+        try {
+            URL url = context.getResource(path);
+            if (url == null) {
+                return -1;
+            }
+            URLConnection uc = url.openConnection();
+            long result = uc.getLastModified();
+            uc.getInputStream().close();
+            return result;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+}
@@ -12,6 +12,7 @@ import java.security.cert.Certificate;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletContext;
@@ -88,17 +89,24 @@ public final class JspRuntimeContext implements Runnable {
             initSecurity();
         }
 
-        // 如果这个Web应用程序上下文从目录中运行, 启动后台编译线程
+        // 开发模式下每隔modificationTestInterval秒检查文件的修改, 页面在下一个请求时重新编译.
+        // 否则, 如果这个Web应用程序上下文从目录中运行, 每隔checkInterval秒检查, 在后台重新编译.
         String appBase = context.getRealPath("/");         
-        if (!options.getDevelopment()
-                && appBase != null
-                && options.getCheckInterval() > 0) {
-            if (appBase.endsWith(File.separator) ) {
-                appBase = appBase.substring(0,appBase.length()-1);
+        if (options.getDevelopment()) {
+            checkInterval = options.getModificationTestInterval();
+        } else if (appBase != null) {
+            checkInterval = options.getCheckInterval();
+        }
+        if (checkInterval > 0) {
+            tracker = new JspChangeTracker(context);
+            if (appBase != null) {
+                if (appBase.endsWith(File.separator) ) {
+                    appBase = appBase.substring(0,appBase.length()-1);
+                }
+                String directory =
+                    appBase.substring(appBase.lastIndexOf(File.separator));
+                threadName = threadName + "[" + directory + "]";
             }
-            String directory =
-                appBase.substring(appBase.lastIndexOf(File.separator));
-            threadName = threadName + "[" + directory + "]";
             threadStart();
         }                                            
     }
@@ -121,6 +129,18 @@ public final class JspRuntimeContext implements Runnable {
     private Map jsps = Collections.synchronizedMap( new HashMap());
  
 
+    /**
+     * 跟踪页面依赖的文件的修改, 或者<code>null</code>如果不检查修改.
+     */
+    private JspChangeTracker tracker = null;
+
+
+    /**
+     * 检查文件修改的间隔, 秒.
+     */
+    private int checkInterval = 0;
+
+
     /**
      * 后台线程.
      */
@@ -147,7 +167,10 @@ public final class JspRuntimeContext implements Runnable {
      * @param jsw Servlet wrapper for JSP
      */
     public void addWrapper(String jspUri, JspServletWrapper jsw) {
-        jsps.remove(jspUri);
+        Object previous = jsps.remove(jspUri);
+        if ((previous != null) && (tracker != null)) {
+            tracker.untrack((JspServletWrapper) previous);
+        }
         jsps.put(jspUri,jsw);
     }
 
@@ -167,7 +190,37 @@ public final class JspRuntimeContext implements Runnable {
      * @param jspUri JSP URI of JspServletWrapper to remove
      */
     public void removeWrapper(String jspUri) {
-        jsps.remove(jspUri);
+        Object previous = jsps.remove(jspUri);
+        if ((previous != null) && (tracker != null)) {
+            tracker.untrack((JspServletWrapper) previous);
+        }
+    }
+
+    /**
+     * 是否在后台跟踪文件的修改. 如果是, 请求线程不需要检查页面是否过期.
+     */
+    public boolean isTracking() {
+        return (tracker != null);
+    }
+
+    /**
+     * 登记页面的依赖项, 它们被修改时页面被标记为过期.
+     *
+     * @param jsw 页面的包装
+     * @param jspUri 页面
+     * @param dependants 页面依赖的文件
+     */
+    public void track(JspServletWrapper jsw, String jspUri, List dependants) {
+        if (tracker != null) {
+            tracker.track(jsw, jspUri, dependants);
+        }
+    }
+
+    /**
+     * 返回跟踪的文件数量.
+     */
+    public int getTrackedFileCount() {
+        return (tracker == null) ? 0 : tracker.getFileCount();
     }
 
     /**
@@ -212,6 +265,12 @@ public final class JspRuntimeContext implements Runnable {
         while (servlets.hasNext()) {
             ((JspServletWrapper) servlets.next()).destroy();
         }
+
+        try {
+            Jsr199JavaCompiler.release(this);
+        } catch (Throwable t) {
+            // 没有javax.tools的JVM
+        }
     }
 
     /**
@@ -242,22 +301,24 @@ public final class JspRuntimeContext implements Runnable {
 
     /**
      * 后台线程使用该方法检查检查此类注册的JSP依赖项.
+     * 开发模式下过期的页面在下一个请求时编译, 否则在这里编译.
      */
     private void checkCompile() {
-        Object [] wrappers = jsps.values().toArray();
-        for (int i = 0; i < wrappers.length; i++ ) {
-            JspServletWrapper jsw = (JspServletWrapper)wrappers[i];
+        List wrappers = tracker.scan();
+        if (options.getDevelopment()) {
+            return;
+        }
+        for (int i = 0; i < wrappers.size(); i++ ) {
+            JspServletWrapper jsw = (JspServletWrapper) wrappers.get(i);
             JspCompilationContext ctxt = jsw.getJspEngineContext();
-            // JspServletWrapper 也同步, 当它检测到它必须重新加载
-            synchronized(jsw) {
-                try {
-                    ctxt.compile();
-                } catch (FileNotFoundException ex) {
-                    ctxt.incrementRemoved();
-                } catch (Throwable t) {
-                    jsw.getServletContext().log("Background compile failed",
-						t);
-                }
+            try {
+                // JspServletWrapper 也同步, 当它检测到它必须重新加载
+                jsw.compile();
+            } catch (FileNotFoundException ex) {
+                ctxt.incrementRemoved();
+            } catch (Throwable t) {
+                jsw.getServletContext().log("Background compile failed",
+                                            t);
             }
         }
     }
@@ -432,7 +493,7 @@ public final class JspRuntimeContext implements Runnable {
      */ 
     protected void threadSleep() {
         try {
-            Thread.sleep(options.getCheckInterval() * 1000L);
+            Thread.sleep(checkInterval * 1000L);
         } catch (InterruptedException e) {
             ;
         }
@@ -0,0 +1,525 @@
+package org.apache.jasper.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import org.apache.jasper.JasperException;
+import org.apache.jasper.servlet.JasperLoader;
+
+/**
+ * 使用JSR 199 (<code>javax.tools</code>) 在进程内编译生成的servlet.
+ * <p>
+ * 同一个web应用中同时等待编译的页面被合并为一次编译器调用: 第一个到达的线程编译队列中所有的源文件,
+ * 其它线程等待结果. 编译器和文件管理器在所有调用之间共享, 所以类路径中的JAR只打开和扫描一次.
+ * 类文件在内存中生成, 直接交给页面的<code>JasperLoader</code>, 加载时不需要再读取磁盘.
+ * 类文件仍然写入工作目录, 用于过期检查和重新启动.
+ * <p>
+ * 如果JVM没有提供系统Java编译器 (例如只有JRE), 构造方法抛出异常, 使用其它的编译器.
+ * 如果javac不接受编译选项 (例如不支持的<code>-source</code>), 使用JDT编译器, 没有JDT时使用Ant.
+ */
+public class Jsr199JavaCompiler extends Compiler {
+
+    /**
+     * JspRuntimeContext -> Batch.
+     */
+    private static Map batches = new WeakHashMap();
+
+
+    public Jsr199JavaCompiler() {
+        if (ToolProvider.getSystemJavaCompiler() == null) {
+            throw new IllegalStateException("No system Java compiler");
+        }
+    }
+
+
+    /**
+     * 释放web应用的批量编译器持有的资源.
+     */
+    public static void release(JspRuntimeContext rctxt) {
+        Batch batch;
+        synchronized (batches) {
+            batch = (Batch) batches.remove(rctxt);
+        }
+        if (batch != null) {
+            batch.close();
+        }
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * 编译 servlet从.java 文件到 .class文件
+     */
+    protected void generateClass(String[] smap)
+        throws FileNotFoundException, JasperException, Exception {
+
+        long t1 = 0;
+        if (log.isDebugEnabled()) {
+            t1 = System.currentTimeMillis();
+        }
+
+        String javaFileName = ctxt.getServletJavaFileName();
+        Batch batch = getBatch();
+        if (batch.rejected) {
+            generateClassWithFallback(smap);
+            return;
+        }
+        Unit unit = new Unit(new File(javaFileName));
+        batch.compile(unit);
+        if (unit.exception instanceof IllegalArgumentException) {
+            log.warn("Invalid javac options, using another compiler",
+                     unit.exception);
+            generateClassWithFallback(smap);
+            return;
+        }
+
+        if (!ctxt.keepGenerated()) {
+            File javaFile = new File(javaFileName);
+            javaFile.delete();
+        }
+
+        if (unit.exception != null) {
+            log.error("Error compiling file: " + javaFileName, unit.exception);
+            errDispatcher.javacError(unit.exception.toString(),
+                                     unit.exception);
+        }
+        if (!unit.errors.isEmpty()) {
+            JavacErrorDetail[] details =
+                new JavacErrorDetail[unit.errors.size()];
+            for (int i = 0; i < details.length; i++) {
+                Diagnostic diagnostic = (Diagnostic) unit.errors.get(i);
+                StringBuffer message = new StringBuffer(
+                        diagnostic.getMessage(null));
+                if ((diagnostic.getSource() == null)
+                        || (diagnostic.getLineNumber() == Diagnostic.NOPOS)) {
+                    // 不属于源文件中某一行的错误, 例如类路径或编译选项的错误
+                    details[i] = new JavacErrorDetail(javaFileName, -1,
+                                                      message);
+                } else {
+                    details[i] = ErrorDispatcher.createJavacError(javaFileName,
+                            pageNodes, message,
+                            (int) diagnostic.getLineNumber());
+                }
+            }
+            errDispatcher.javacError(details);
+        }
+        if (unit.classes.isEmpty()) {
+            throw new JasperException(
+                    Localizer.getMessage("jsp.error.unable.compile"));
+        }
+
+        if (log.isDebugEnabled()) {
+            long t2 = System.currentTimeMillis();
+            log.debug("Compiled " + javaFileName + " " + (t2-t1) + "ms");
+        }
+
+        // JSR45 Support
+        if (!ctxt.isPrototypeMode() && !options.isSmapSuppressed()
+                && (smap != null)) {
+            for (int i = 0; i < smap.length; i += 2) {
+                String name = new File(smap[i]).getName();
+                name = name.substring(0, name.length() - ".class".length());
+                Iterator entries = unit.classes.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry entry = (Map.Entry) entries.next();
+                    String className = (String) entry.getKey();
+                    if (className.endsWith("." + name)) {
+                        entry.setValue(SmapUtil.installSmap(
+                                (byte[]) entry.getValue(), smap[i+1]));
+                    }
+                }
+            }
+        }
+
+        // 写入工作目录, 并交给类加载器
+        JasperLoader loader = (JasperLoader) ctxt.getJspLoader();
+        Iterator entries = unit.classes.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            String className = (String) entry.getKey();
+            byte[] bytes = (byte[]) entry.getValue();
+            File classFile = new File(options.getScratchDir(),
+                    className.replace('.', File.separatorChar) + ".class");
+            OutputStream os = new FileOutputStream(classFile);
+            try {
+                os.write(bytes);
+            } finally {
+                os.close();
+            }
+            loader.addClass(className, bytes);
+        }
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * javac不接受编译选项时, 使用JDT编译器编译, 没有JDT时使用Ant.
+     */
+    protected void generateClassWithFallback(String[] smap)
+        throws FileNotFoundException, JasperException, Exception {
+        Compiler compiler;
+        try {
+            compiler = (Compiler) Class.forName(
+                    "org.apache.jasper.compiler.JDTCompiler").newInstance();
+        } catch (Throwable t) {
+            compiler = new AntCompiler();
+        }
+        compiler.init(ctxt, jsw);
+        compiler.errDispatcher = errDispatcher;
+        compiler.pageNodes = pageNodes;
+        compiler.generateClass(smap);
+    }
+
+
+    /**
+     * 返回当前web应用的批量编译器.
+     */
+    protected Batch getBatch() {
+        JspRuntimeContext rctxt = ctxt.getRuntimeContext();
+        synchronized (batches) {
+            Batch batch = (Batch) batches.get(rctxt);
+            if (batch == null) {
+                List args = new ArrayList();
+                args.add("-classpath");
+                args.add(System.getProperty("java.class.path")
+                        + File.pathSeparator + ctxt.getClassPath());
+                args.add("-sourcepath");
+                args.add("");
+                args.add("-implicit:none");
+                args.add("-proc:none");
+                args.add("-encoding");
+                args.add(options.getJavaEncoding());
+                args.add(options.getClassDebugInfo() ? "-g" : "-g:none");
+                if (options.getCompilerSourceVM() != null) {
+                    args.add("-source");
+                    args.add(options.getCompilerSourceVM());
+                }
+                if (options.getCompilerTargetVM() != null) {
+                    args.add("-target");
+                    args.add(options.getCompilerTargetVM());
+                }
+                batch = new Batch(args);
+                batches.put(rctxt, batch);
+            }
+            return batch;
+        }
+    }
+
+
+    // ----------------------------------------------------------- Inner Classes
+
+    /**
+     * 一个等待编译的源文件和它的编译结果.
+     */
+    protected static class Unit {
+
+        protected JavaFileObject source;
+
+        /**
+         * 错误诊断.
+         */
+        protected List errors = new ArrayList();
+
+        /**
+         * 类名 -> 类文件.
+         */
+        protected Map classes = new HashMap();
+
+        protected Exception exception;
+
+        protected boolean done = false;
+
+        protected File file;
+
+        protected Unit(File file) {
+            this.file = file;
+        }
+
+    }
+
+
+    /**
+     * 一个web应用的批量编译器. 同时只有一个线程在编译, 在它编译期间到达的源文件在下一次调用中一起编译.
+     */
+    protected static class Batch {
+
+        protected JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+        protected MemoryFileManager fileManager =
+            new MemoryFileManager(compiler.getStandardFileManager(null, null, null));
+
+        /**
+         * 编译器的命令行参数.
+         */
+        protected List arguments;
+
+        protected List pending = new ArrayList();
+
+        protected boolean compiling = false;
+
+        /**
+         * javac不接受编译器的命令行参数.
+         */
+        protected volatile boolean rejected = false;
+
+        protected Batch(List arguments) {
+            this.arguments = arguments;
+        }
+
+
+        /**
+         * 编译源文件, 等待结果.
+         */
+        protected void compile(Unit unit) throws InterruptedException {
+            List units;
+            synchronized (this) {
+                pending.add(unit);
+                while (compiling && !unit.done) {
+                    wait();
+                }
+                if (unit.done) {
+                    return;
+                }
+                compiling = true;
+                units = pending;
+                pending = new ArrayList();
+            }
+            try {
+                compileAll(units);
+            } finally {
+                synchronized (this) {
+                    for (int i = 0; i < units.size(); i++) {
+                        ((Unit) units.get(i)).done = true;
+                    }
+                    compiling = false;
+                    notifyAll();
+                }
+            }
+        }
+
+
+        /**
+         * 一次编译多个源文件. 如果有错误, javac可能不会为没有错误的源文件生成类文件, 再单独编译它们一次.
+         */
+        protected void compileAll(List units) {
+            try {
+                List retry = compileOnce(units);
+                if (!retry.isEmpty() && (retry.size() < units.size())) {
+                    compileOnce(retry);
+                }
+            } catch (Exception e) {
+                if (e instanceof IllegalArgumentException) {
+                    rejected = true;
+                }
+                for (int i = 0; i < units.size(); i++) {
+                    ((Unit) units.get(i)).exception = e;
+                }
+            }
+        }
+
+
+        /**
+         * @return 没有错误也没有生成类文件的源文件
+         */
+        protected List compileOnce(List units) throws IOException {
+            Map byUri = new HashMap();
+            File[] files = new File[units.size()];
+            for (int i = 0; i < units.size(); i++) {
+                files[i] = ((Unit) units.get(i)).file;
+            }
+            Iterator sources = fileManager.getJavaFileObjects(files).iterator();
+            for (int i = 0; sources.hasNext(); i++) {
+                Unit unit = (Unit) units.get(i);
+                unit.source = (JavaFileObject) sources.next();
+                unit.errors.clear();
+                unit.classes.clear();
+                byUri.put(unit.source.toUri(), unit);
+            }
+
+            DiagnosticCollector diagnostics = new DiagnosticCollector();
+            fileManager.outputs.clear();
+            JavaCompiler.CompilationTask task = compiler.getTask(null,
+                    fileManager, diagnostics, arguments, null,
+                    fileManagerSources(units));
+            task.call();
+
+            Iterator iter = diagnostics.getDiagnostics().iterator();
+            while (iter.hasNext()) {
+                Diagnostic diagnostic = (Diagnostic) iter.next();
+                if (diagnostic.getKind() != Diagnostic.Kind.ERROR) {
+                    continue;
+                }
+                if (!(diagnostic.getSource() instanceof JavaFileObject)) {
+                    // 不属于某个源文件的错误, 每个源文件都没有编译
+                    for (int i = 0; i < units.size(); i++) {
+                        ((Unit) units.get(i)).errors.add(diagnostic);
+                    }
+                    continue;
+                }
+                Unit unit = (Unit) byUri.get(
+                        ((JavaFileObject) diagnostic.getSource()).toUri());
+                if (unit != null) {
+                    unit.errors.add(diagnostic);
+                }
+            }
+
+            iter = fileManager.outputs.iterator();
+            while (iter.hasNext()) {
+                ClassOutput output = (ClassOutput) iter.next();
+                if (output.sibling == null) {
+                    continue;
+                }
+                Unit unit = (Unit) byUri.get(output.sibling.toUri());
+                if (unit != null) {
+                    unit.classes.put(output.className, output.getBytes());
+                }
+            }
+            fileManager.outputs.clear();
+
+            List retry = new ArrayList();
+            for (int i = 0; i < units.size(); i++) {
+                Unit unit = (Unit) units.get(i);
+                if (unit.errors.isEmpty() && unit.classes.isEmpty()) {
+                    retry.add(unit);
+                }
+            }
+            return retry;
+        }
+
+
+        private static List fileManagerSources(List units) {
+            List sources = new ArrayList(units.size());
+            for (int i = 0; i < units.size(); i++) {
+                sources.add(((Unit) units.get(i)).source);
+            }
+            return sources;
+        }
+
+
+        protected void close() {
+            try {
+                fileManager.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+
+    }
+
+
+    /**
+     * 文件管理器, 缓存类路径中的包列表, 在内存中生成类文件.
+     * 生成的JSP类所在的包不缓存, 因为工作目录中的类文件会改变.
+     */
+    protected static class MemoryFileManager extends ForwardingJavaFileManager {
+
+        /**
+         * 最近一次编译生成的类文件. 只被编译的线程访问.
+         */
+        protected List outputs = new ArrayList();
+
+        /**
+         * 包列表的缓存.
+         */
+        protected Map listCache = new ConcurrentHashMap();
+
+        protected MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        protected Iterable getJavaFileObjects(File[] files) {
+            return ((StandardJavaFileManager) fileManager).getJavaFileObjects(files);
+        }
+
+        public Iterable list(Location location, String packageName,
+                             Set kinds, boolean recurse) throws IOException {
+            if (packageName.startsWith(org.apache.jasper.Constants.JSP_PACKAGE_NAME)
+                    || ((location != StandardLocation.CLASS_PATH)
+                        && (location != StandardLocation.PLATFORM_CLASS_PATH))) {
+                return super.list(location, packageName, kinds, recurse);
+            }
+            String key = location.getName() + ':' + packageName + ':'
+                + kinds + ':' + recurse;
+            List result = (List) listCache.get(key);
+            if (result == null) {
+                result = new ArrayList();
+                Iterator iter = super.list(location, packageName, kinds,
+                                           recurse).iterator();
+                while (iter.hasNext()) {
+                    result.add(iter.next());
+                }
+                listCache.put(key, result);
+            }
+            return result;
+        }
+
+        public JavaFileObject getJavaFileForOutput(Location location,
+                String className, JavaFileObject.Kind kind, FileObject sibling)
+            throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind,
+                                                  sibling);
+            }
+            ClassOutput output = new ClassOutput(className, sibling);
+            outputs.add(output);
+            return output;
+        }
+
+    }
+
+
+    /**
+     * 在内存中生成的类文件.
+     */
+    protected static class ClassOutput extends SimpleJavaFileObject {
+
+        protected String className;
+
+        protected FileObject sibling;
+
+        protected ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        protected ClassOutput(String className, FileObject sibling) {
+            super(URI.create("mem:///" + className.replace('.', '/')
+                    + Kind.CLASS.extension), Kind.CLASS);
+            this.className = className;
+            this.sibling = sibling;
+        }
+
+        public OutputStream openOutputStream() {
+            return bytes;
+        }
+
+        protected byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+
+    }
+
+}
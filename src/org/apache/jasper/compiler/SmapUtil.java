@@ -138,6 +138,18 @@ public class SmapUtil {
         }
     }
 
+    /**
+     * 在内存中的类文件中安装SMAP.
+     *
+     * @param classBytes 类文件
+     * @param smap SMAP
+     * @return 新的类文件
+     */
+    public static byte[] installSmap(byte[] classBytes, String smap)
+        throws IOException {
+        return SDEInstaller.install(classBytes, smap.getBytes());
+    }
+
     //*********************************************************************
     // Private utilities
 
@@ -218,6 +230,21 @@ public class SmapUtil {
             }
         }
 
+        static byte[] install(byte[] classBytes, byte[] smap)
+            throws IOException {
+            SDEInstaller installer = new SDEInstaller(classBytes, smap);
+            byte[] result = new byte[installer.genPos];
+            System.arraycopy(installer.gen, 0, result, 0, installer.genPos);
+            return result;
+        }
+
+        SDEInstaller(byte[] orig, byte[] sdeAttr) throws IOException {
+            this.orig = orig;
+            this.sdeAttr = sdeAttr;
+            gen = new byte[orig.length + sdeAttr.length + 100];
+            addSDE();
+        }
+
         SDEInstaller(File inClassFile, byte[] sdeAttr, File outClassFile)
             throws IOException {
             if (!inClassFile.exists()) {
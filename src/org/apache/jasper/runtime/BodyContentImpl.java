@@ -4,6 +4,7 @@ import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.jsp.JspWriter;
 import javax.servlet.jsp.tagext.BodyContent;
@@ -14,11 +15,37 @@ import org.apache.jasper.Constants;
  * 将文本写入字符输出流, 缓冲字符，以便有效地写入单个字符, 数组, 字符串. 
  *
  * 为已缓冲的输出提供丢弃的支持. 
+ *
+ * 缓冲区超过初始大小时, 从一个有界的共享池中借用更大的缓冲区, 在页面结束时({@link #recycle()})归还,
+ * 所以大的标签体不会使每个页面上下文永久占用一个大缓冲区.
  */
 public class BodyContentImpl extends BodyContent {
     
     private static final String LINE_SEPARATOR = System.getProperty("line.separator");
     
+    /**
+     * 池中最小的缓冲区, 以2为底的对数.
+     */
+    private static final int MIN_POOLED_BITS = 10;
+    
+    /**
+     * 池中最大的缓冲区, 以2为底的对数. 更大的缓冲区不放入池中.
+     */
+    private static final int MAX_POOLED_BITS = 16;
+    
+    /**
+     * 每个大小在池中保存的缓冲区的最大数量.
+     */
+    private static final int POOL_SLOTS = 8;
+    
+    private static final AtomicReferenceArray pool = new AtomicReferenceArray(
+            (MAX_POOLED_BITS - MIN_POOLED_BITS + 1) * POOL_SLOTS);
+    
+    /**
+     * 初始的缓冲区, 不放入池中.
+     */
+    private char[] initialBuffer;
+    
     private char[] cb;
     private int nextChar;
     private boolean closed;
@@ -32,6 +59,7 @@ public class BodyContentImpl extends BodyContent {
         super(enclosingWriter);
         bufferSize = Constants.DEFAULT_TAG_BUFFER_SIZE;
         cb = new char[bufferSize];
+        initialBuffer = cb;
         nextChar = 0;
         closed = false;
     }
@@ -479,6 +507,21 @@ public class BodyContentImpl extends BodyContent {
         }
     }
     
+    /**
+     * 归还借用的缓冲区, 恢复初始状态. 在页面结束时调用, 之后不能再使用<code>getReader()</code>返回的Reader.
+     */
+    void recycle() {
+        if (cb != initialBuffer) {
+            releaseBuffer(cb);
+            cb = initialBuffer;
+        }
+        writer = null;
+        bufferSize = cb.length;
+        bufferSizeSave = 0;
+        nextChar = 0;
+        closed = false;
+    }
+    
     private void ensureOpen() throws IOException {
         if (closed) throw new IOException("Stream closed");
     }
@@ -497,11 +540,56 @@ public class BodyContentImpl extends BodyContent {
             len = cb.length;
         }
         
-        bufferSize = cb.length + len;
-        char[] tmp = new char[bufferSize];
+        char[] tmp = borrowBuffer(cb.length + len);
+        bufferSize = tmp.length;
         
-        System.arraycopy(cb, 0, tmp, 0, cb.length);
+        System.arraycopy(cb, 0, tmp, 0, nextChar);
+        if (cb != initialBuffer) {
+            releaseBuffer(cb);
+        }
         cb = tmp;
         tmp = null;
     }
+    
+    /**
+     * 从池中借用至少<code>size</code>个字符的缓冲区. 池中的大小是2的幂.
+     */
+    private static char[] borrowBuffer(int size) {
+        int bits = sizeBits(size);
+        if (bits > MAX_POOLED_BITS) {
+            return new char[size];
+        }
+        int base = (bits - MIN_POOLED_BITS) * POOL_SLOTS;
+        for (int i = 0; i < POOL_SLOTS; i++) {
+            char[] buffer = (char[]) pool.getAndSet(base + i, null);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new char[1 << bits];
+    }
+    
+    /**
+     * 将缓冲区放回池中. 池已满或大小不合适时丢弃它.
+     */
+    private static void releaseBuffer(char[] buffer) {
+        int bits = sizeBits(buffer.length);
+        if ((bits > MAX_POOLED_BITS) || ((1 << bits) != buffer.length)) {
+            return;
+        }
+        int base = (bits - MIN_POOLED_BITS) * POOL_SLOTS;
+        for (int i = 0; i < POOL_SLOTS; i++) {
+            if (pool.compareAndSet(base + i, null, buffer)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * 返回不小于<code>size</code>的2的幂的指数, 最小是<code>MIN_POOLED_BITS</code>.
+     */
+    private static int sizeBits(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (bits < MIN_POOLED_BITS) ? MIN_POOLED_BITS : bits;
+    }
 }
@@ -0,0 +1,79 @@
+package org.apache.jasper.runtime;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.servlet.jsp.JspWriter;
+
+/**
+ * 按页面的字符编码预先编码的模板文本.
+ * <p>
+ * 生成的servlet为每个模板文本创建一个静态实例, 所以编码只在类加载时进行一次.
+ * 写入<code>JspWriterImpl</code>时, 如果响应使用相同的字符编码, 字节直接写入响应的输出缓冲区, 不需要再经过转换器;
+ * 否则 (标签体, 包含的页面, 响应的字符编码不同) 写入文本.
+ */
+public final class EncodedText {
+
+    private final String text;
+    private final String charset;
+    private final byte[] bytes;
+
+
+    /**
+     * @param text 模板文本
+     * @param charset 页面的字符编码
+     */
+    public EncodedText(String text, String charset) {
+        this.text = text;
+        this.charset = charset;
+        byte[] bytes = null;
+        try {
+            bytes = text.getBytes(charset);
+        } catch (UnsupportedEncodingException e) {
+            // 只写入文本
+        }
+        this.bytes = bytes;
+    }
+
+
+    /**
+     * 写入这个文本.
+     *
+     * @param out 页面的当前输出
+     */
+    public void write(JspWriter out) throws IOException {
+        if (out instanceof JspWriterImpl) {
+            ((JspWriterImpl) out).write(this);
+        } else {
+            out.write(text);
+        }
+    }
+
+
+    public String getText() {
+        return text;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * 返回编码后的字节, 不支持字符编码时返回<code>null</code>.
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * 返回文本的字符数.
+     */
+    int length() {
+        return text.length();
+    }
+
+    public String toString() {
+        return text;
+    }
+
+}
@@ -2,6 +2,8 @@ package org.apache.jasper.runtime;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 
@@ -18,6 +20,9 @@ import org.apache.jasper.security.SecurityUtil;
  * 为已缓冲的输出提供丢弃的支持. 
  * 
  * 当JSP规范中的缓冲问题被修复时，这需要重新考虑 -akv 
+ *
+ * 预先编码的模板文本({@link EncodedText})不复制到缓冲区, 只记录它的位置, 并像字符一样占用缓冲区的空间.
+ * 刷新时, 如果底层流是<code>WritableByteChannel</code>并且使用相同的字符编码, 它的字节被直接写入.
  */
 public class JspWriterImpl extends JspWriter {
     
@@ -28,6 +33,23 @@ public class JspWriterImpl extends JspWriter {
     private boolean flushed = false;
     private boolean closed = false;
     
+    /**
+     * 缓冲区中的预先编码的文本, 和它们在缓冲区中的位置.
+     */
+    private EncodedText[] segments;
+    private int[] segmentStarts;
+    private int segmentCount;
+    
+    /**
+     * 底层流, 如果它接受字节.
+     */
+    private WritableByteChannel channel;
+    
+    /**
+     * 底层流的字符编码.
+     */
+    private String channelCharset;
+    
     public JspWriterImpl() {
         super( Constants.DEFAULT_BUFFER_SIZE, true );
     }
@@ -73,6 +95,9 @@ public class JspWriterImpl extends JspWriter {
         closed = false;
         out = null;
         nextChar = 0;
+        clearSegments();
+        channel = null;
+        channelCharset = null;
         response = null;
     }
     
@@ -87,16 +112,52 @@ public class JspWriterImpl extends JspWriter {
         if (nextChar == 0)
             return;
         initOut();
-        out.write(cb, 0, nextChar);
+        int pos = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            EncodedText text = segments[i];
+            int start = segmentStarts[i];
+            if (start > pos)
+                out.write(cb, pos, start - pos);
+            writeSegment(text);
+            pos = start + text.length();
+            segments[i] = null;
+        }
+        segmentCount = 0;
+        if (nextChar > pos)
+            out.write(cb, pos, nextChar - pos);
         nextChar = 0;
     }
     
     private void initOut() throws IOException {
         if (out == null) {
             out = response.getWriter();
+            if (out instanceof WritableByteChannel) {
+                channel = (WritableByteChannel) out;
+                channelCharset = response.getCharacterEncoding();
+            }
         }
     }
     
+    /**
+     * 将预先编码的文本写入底层流. 字符编码相同时写入字节, 否则写入文本.
+     */
+    private void writeSegment(EncodedText text) throws IOException {
+        byte[] bytes = text.getBytes();
+        if ((channel != null) && (bytes != null)
+                && text.getCharset().equalsIgnoreCase(channelCharset)) {
+            channel.write(ByteBuffer.wrap(bytes));
+        } else {
+            out.write(text.getText());
+        }
+    }
+    
+    private void clearSegments() {
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = null;
+        }
+        segmentCount = 0;
+    }
+    
     private String getLocalizeMessage(final String message){
         if (SecurityUtil.isPackageProtectionEnabled()){
             return (String)AccessController.doPrivileged(new PrivilegedAction(){
@@ -122,6 +183,7 @@ public class JspWriterImpl extends JspWriter {
                     getLocalizeMessage("jsp.error.attempt_to_clear_flushed_buffer"));
         ensureOpen();
         nextChar = 0;
+        clearSegments();
     }
     
     public void clearBuffer() throws IOException {
@@ -130,6 +192,7 @@ public class JspWriterImpl extends JspWriter {
                     getLocalizeMessage("jsp.error.ise_on_clear"));
         ensureOpen();
         nextChar = 0;
+        clearSegments();
     }
     
     private final void bufferOverflow() throws IOException {
@@ -301,6 +364,58 @@ public class JspWriterImpl extends JspWriter {
     }
     
     
+    /**
+     * 写入预先编码的模板文本. 文本只在缓冲区中占用空间, 刷新时写入.
+     *
+     * @param text 要写入的文本
+     */
+    void write(EncodedText text) throws IOException {
+        ensureOpen();
+        int len = text.length();
+        if (bufferSize == 0) {
+            initOut();
+            writeSegment(text);
+            return;
+        }
+        if (len == 0) {
+            return;
+        }
+        
+        if (len > bufferSize - nextChar) {
+            if (autoFlush)
+                flushBuffer();
+            else
+                bufferOverflow();
+        }
+        if (len >= bufferSize) {
+            initOut();
+            writeSegment(text);
+            return;
+        }
+        
+        if (segments == null) {
+            segments = new EncodedText[16];
+            segmentStarts = new int[16];
+        } else if (segmentCount == segments.length) {
+            EncodedText[] newSegments = new EncodedText[segmentCount * 2];
+            int[] newStarts = new int[segmentCount * 2];
+            System.arraycopy(segments, 0, newSegments, 0, segmentCount);
+            System.arraycopy(segmentStarts, 0, newStarts, 0, segmentCount);
+            segments = newSegments;
+            segmentStarts = newStarts;
+        }
+        segments[segmentCount] = text;
+        segmentStarts[segmentCount] = nextChar;
+        segmentCount++;
+        nextChar += len;
+        if (nextChar >= bufferSize)
+            if (autoFlush)
+                flushBuffer();
+            else
+                bufferOverflow();
+    }
+    
+    
     static String lineSeparator = System.getProperty("line.separator");
     
     /**
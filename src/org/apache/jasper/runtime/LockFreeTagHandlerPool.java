@@ -0,0 +1,326 @@
+package org.apache.jasper.runtime;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.jsp.JspException;
+import javax.servlet.jsp.tagext.Tag;
+
+import org.apache.jasper.Constants;
+
+/**
+ * 不使用锁的标签处理程序池.
+ * <p>
+ * 空闲的处理程序保存在一个无锁栈中, <code>get()</code>和<code>reuse()</code>只需要CAS操作.
+ * 池的容量是自适应的: 每借出<code>WINDOW</code>次, 在这期间一直空闲的处理程序被释放, 容量减小;
+ * 池为空的次数使容量增大, 最大为<code>tagpoolMaxSize</code>.
+ * <p>
+ * 每个标签处理程序类的借出, 未命中和释放次数保存在web应用的<code>ServletContext</code>属性中,
+ * 同一个类的所有池共享一个计数器.
+ * <p>
+ * 使用<code>tagpoolClassName</code>初始化参数选择这个实现.
+ */
+public class LockFreeTagHandlerPool extends TagHandlerPool {
+
+    /**
+     * 保存统计信息的<code>ServletContext</code>属性. 类名 -> Statistics.
+     */
+    public static final String STATISTICS_ATTR =
+        "org.apache.jasper.runtime.LockFreeTagHandlerPool.STATISTICS";
+
+    /**
+     * 调整容量的间隔, 借出次数.
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * 栈顶.
+     */
+    private AtomicReference top = new AtomicReference();
+
+    /**
+     * 空闲的处理程序数量.
+     */
+    private AtomicInteger size = new AtomicInteger();
+
+    /**
+     * 借出的次数, 用于划分窗口.
+     */
+    private AtomicInteger borrows = new AtomicInteger();
+
+    /**
+     * 当前窗口中的未命中次数.
+     */
+    private AtomicInteger windowMisses = new AtomicInteger();
+
+    /**
+     * 当前窗口中空闲处理程序的最小数量.
+     */
+    private AtomicInteger windowMinIdle = new AtomicInteger(Integer.MAX_VALUE);
+
+    private volatile int capacity;
+
+    private int maxSize;
+
+    private Map statisticsMap;
+
+    private volatile Statistics statistics;
+
+
+    private static class Node {
+        Tag handler;
+        Node next;
+    }
+
+
+    public LockFreeTagHandlerPool() {
+        super();
+    }
+
+    protected void init(ServletConfig config) {
+        maxSize = Constants.MAX_POOL_SIZE;
+        String maxSizeS = getOption(config, OPTION_MAXSIZE, null);
+        if (maxSizeS != null) {
+            try {
+                maxSize = Integer.parseInt(maxSizeS);
+            } catch (NumberFormatException e) {
+                maxSize = -1;
+            }
+            if (maxSize < 0) {
+                maxSize = Constants.MAX_POOL_SIZE;
+            }
+        }
+        capacity = maxSize;
+        statisticsMap = getStatisticsMap(
+                (config == null) ? null : config.getServletContext());
+    }
+
+    /**
+     * 从这个标签处理程序池中获取下一个可用的标签处理程序, 实例化一个如果这个标签处理池是空的.
+     *
+     * @param handlerClass 标签处理程序类
+     *
+     * @return 重用或新实例化的标记处理程序
+     *
+     * @throws JspException 如果无法实例化标签处理程序
+     */
+    public Tag get(Class handlerClass) throws JspException {
+        Statistics stats = getStatistics(handlerClass);
+        stats.borrowCount.incrementAndGet();
+
+        Tag handler = pop();
+        if (handler == null) {
+            stats.missCount.incrementAndGet();
+            windowMisses.incrementAndGet();
+        }
+        int idle = size.get();
+        int min = windowMinIdle.get();
+        while ((idle < min) && !windowMinIdle.compareAndSet(min, idle)) {
+            min = windowMinIdle.get();
+        }
+        if ((borrows.incrementAndGet() % WINDOW) == 0) {
+            adjust(stats);
+        }
+
+        if (handler != null) {
+            return handler;
+        }
+        try {
+            return (Tag) handlerClass.newInstance();
+        } catch (Exception e) {
+            throw new JspException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 将给定的标签处理程序添加到这个标签处理程序池中, 除非这个标签处理程序池已经达到它的容量, 这种情况下标签处理程序的release()方法会被调用.
+     *
+     * @param handler 添加到这个标签处理程序池的标签处理程序
+     */
+    public void reuse(Tag handler) {
+        if (size.get() >= capacity) {
+            Statistics stats = statistics;
+            if (stats != null) {
+                stats.evictCount.incrementAndGet();
+            }
+            handler.release();
+            return;
+        }
+        Node node = new Node();
+        node.handler = handler;
+        size.incrementAndGet();
+        while (true) {
+            Node current = (Node) top.get();
+            node.next = current;
+            if (top.compareAndSet(current, node)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 调用标签处理程序池中的所有标签处理程序的release()方法.
+     */
+    public void release() {
+        Tag handler;
+        while ((handler = pop()) != null) {
+            handler.release();
+        }
+    }
+
+    /**
+     * 返回当前容量.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    // ------------------------------------------------------------- Statistics
+
+    /**
+     * 一个标签处理程序类的统计信息.
+     */
+    public static class Statistics {
+
+        protected AtomicLong borrowCount = new AtomicLong();
+        protected AtomicLong missCount = new AtomicLong();
+        protected AtomicLong evictCount = new AtomicLong();
+
+        /**
+         * 从池中获取处理程序的次数.
+         */
+        public long getBorrowCount() {
+            return borrowCount.get();
+        }
+
+        /**
+         * 池为空, 创建新的处理程序的次数.
+         */
+        public long getMissCount() {
+            return missCount.get();
+        }
+
+        /**
+         * 池已满或容量减小时释放处理程序的次数.
+         */
+        public long getEvictCount() {
+            return evictCount.get();
+        }
+
+        public String toString() {
+            return "borrows=" + borrowCount.get() + ", misses="
+                + missCount.get() + ", evictions=" + evictCount.get();
+        }
+
+    }
+
+
+    /**
+     * 返回web应用中每个标签处理程序类的统计信息, 按类名排序.
+     *
+     * @param context web应用
+     */
+    public static String[] getStatistics(ServletContext context) {
+        Map map = (Map) context.getAttribute(STATISTICS_ATTR);
+        if (map == null) {
+            return new String[0];
+        }
+        List result = new ArrayList();
+        Iterator entries = map.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry entry = (Map.Entry) entries.next();
+            result.add(entry.getKey() + ": " + entry.getValue());
+        }
+        Collections.sort(result);
+        return (String[]) result.toArray(new String[result.size()]);
+    }
+
+
+    // -------------------------------------------------------- Private Methods
+
+    private Tag pop() {
+        while (true) {
+            Node current = (Node) top.get();
+            if (current == null) {
+                return null;
+            }
+            if (top.compareAndSet(current, current.next)) {
+                size.decrementAndGet();
+                return current.handler;
+            }
+        }
+    }
+
+
+    /**
+     * 在窗口结束时调整容量, 释放一直空闲的处理程序.
+     */
+    private void adjust(Statistics stats) {
+        int minIdle = windowMinIdle.getAndSet(Integer.MAX_VALUE);
+        int misses = windowMisses.getAndSet(0);
+        if (minIdle == Integer.MAX_VALUE) {
+            minIdle = 0;
+        }
+        int newCapacity = capacity - minIdle + misses;
+        if (newCapacity < 1) {
+            newCapacity = 1;
+        }
+        if (newCapacity > maxSize) {
+            newCapacity = maxSize;
+        }
+        capacity = newCapacity;
+        while (size.get() > newCapacity) {
+            Tag handler = pop();
+            if (handler == null) {
+                break;
+            }
+            stats.evictCount.incrementAndGet();
+            handler.release();
+        }
+    }
+
+
+    private Statistics getStatistics(Class handlerClass) {
+        Statistics stats = statistics;
+        if (stats == null) {
+            String name = handlerClass.getName();
+            stats = (Statistics) statisticsMap.get(name);
+            if (stats == null) {
+                Statistics created = new Statistics();
+                stats = (Statistics) ((ConcurrentHashMap) statisticsMap)
+                    .putIfAbsent(name, created);
+                if (stats == null) {
+                    stats = created;
+                }
+            }
+            statistics = stats;
+        }
+        return stats;
+    }
+
+
+    private static Map getStatisticsMap(ServletContext context) {
+        if (context == null) {
+            return new ConcurrentHashMap();
+        }
+        synchronized (context) {
+            Map map = (Map) context.getAttribute(STATISTICS_ATTR);
+            if (map == null) {
+                map = new ConcurrentHashMap();
+                context.setAttribute(STATISTICS_ATTR, map);
+            }
+            return map;
+        }
+    }
+
+}
@@ -172,6 +172,10 @@ public class PageContextImpl extends PageContext implements VariableResolver {
 		response = null;
 	        depth = -1;
 		baseOut.recycle();
+		// 归还标签体借用的缓冲区
+		for (int i = 0; i < outs.length; i++) {
+		    outs[i].recycle();
+		}
 		session = null;
 	
 		attributes.clear();
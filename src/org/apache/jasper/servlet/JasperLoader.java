@@ -6,6 +6,8 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.security.CodeSource;
 import java.security.PermissionCollection;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.jasper.Constants;
 
@@ -20,6 +22,11 @@ public class JasperLoader extends URLClassLoader {
     private ClassLoader parent;
     private SecurityManager securityManager;
 
+    /**
+     * 编译器直接交给加载器的类文件. 类名 -> byte[]. 类定义之后删除.
+     */
+    private Map classBytes = new HashMap();
+
     public JasperLoader(URL[] urls, ClassLoader parent,
 			PermissionCollection permissionCollection,
 			CodeSource codeSource) {
@@ -99,6 +106,34 @@ public class JasperLoader extends URLClassLoader {
     }
 
     
+    /**
+     * 添加一个在内存中编译的类, 加载时不需要读取类文件.
+     *
+     * @param name 类名
+     * @param bytes 类文件
+     */
+    public synchronized void addClass(String name, byte[] bytes) {
+        classBytes.put(name, bytes);
+    }
+
+
+    /**
+     * 先查找在内存中编译的类, 然后查找类文件.
+     */
+    protected synchronized Class findClass(String name)
+        throws ClassNotFoundException {
+        Class clazz = findLoadedClass(name);
+        if (clazz != null) {
+            return clazz;
+        }
+        byte[] bytes = (byte[]) classBytes.remove(name);
+        if (bytes != null) {
+            return defineClass(name, bytes, 0, bytes.length, codeSource);
+        }
+        return super.findClass(name);
+    }
+
+
     /**
      * 委托给父级
      */
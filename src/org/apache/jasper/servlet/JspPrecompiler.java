@@ -0,0 +1,403 @@
+package org.apache.jasper.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import javax.servlet.ServletContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.jasper.JspCompilationContext;
+import org.apache.jasper.Options;
+import org.apache.jasper.compiler.Localizer;
+
+/**
+ * 启动时并行预编译web应用中的所有JSP页面.
+ * <p>
+ * 页面由一个固定大小的线程池编译, 每个页面只在自己的包装上同步, 所以同时到达的请求只等待它们访问的页面.
+ * 每个编译成功的页面的依赖项和它们的修改时间的指纹保存在工作目录中, 下次启动时指纹没有变化并且类文件存在的页面被跳过.
+ * <p>
+ * 标签文件不单独编译, 它们在使用它们的页面编译时被编译.
+ */
+public class JspPrecompiler implements Runnable {
+
+    private Log log = LogFactory.getLog(JspPrecompiler.class);
+
+    /**
+     * 保存指纹的文件, 在工作目录中.
+     */
+    private static final String FINGERPRINT_FILE = "precompile.properties";
+
+    private JspServlet servlet;
+    private ServletContext context;
+    private Options options;
+
+    /**
+     * 编译线程使用的类加载器.
+     */
+    private ClassLoader loader;
+
+    /**
+     * 编译线程的数量.
+     */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * JSP URI -> 指纹. 格式是<code>crc|依赖项|依赖项...</code>.
+     */
+    private Properties fingerprints = new Properties();
+
+    /**
+     * JSP URI -> 编译时间 (Long, 毫秒).
+     */
+    private Map compileTimes = new ConcurrentHashMap();
+
+    private volatile ExecutorService executor;
+    private volatile boolean running = false;
+    private volatile long elapsed = 0L;
+
+    private AtomicInteger total = new AtomicInteger();
+    private AtomicInteger compiled = new AtomicInteger();
+    private AtomicInteger unchanged = new AtomicInteger();
+    private AtomicInteger failed = new AtomicInteger();
+
+
+    JspPrecompiler(JspServlet servlet, ServletContext context,
+                   Options options) {
+        this.servlet = servlet;
+        this.context = context;
+        this.options = options;
+        this.loader = Thread.currentThread().getContextClassLoader();
+    }
+
+
+    // ------------------------------------------------------------- Properties
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = (threads < 1) ? 1 : threads;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 返回最近一次预编译发现的页面数量.
+     */
+    public int getTotal() {
+        return total.get();
+    }
+
+    public int getCompiled() {
+        return compiled.get();
+    }
+
+    public int getUnchanged() {
+        return unchanged.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * 返回最近一次预编译花费的时间, 毫秒. 正在运行时是到现在为止的时间.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * 返回每个页面的编译时间, 最慢的在前面.
+     */
+    public String[] getCompileTimes() {
+        Map.Entry[] entries = (Map.Entry[])
+            compileTimes.entrySet().toArray(new Map.Entry[0]);
+        Arrays.sort(entries, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long t1 = ((Long) ((Map.Entry) o1).getValue()).longValue();
+                long t2 = ((Long) ((Map.Entry) o2).getValue()).longValue();
+                return (t1 > t2) ? -1 : ((t1 == t2) ? 0 : 1);
+            }
+        });
+        String[] result = new String[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            result[i] = entries[i].getKey() + "=" + entries[i].getValue() + "ms";
+        }
+        return result;
+    }
+
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * 在后台线程中预编译. 已经在运行时什么也不做.
+     */
+    public void start() {
+        Thread thread = new Thread(this, "JspPrecompiler[" + context.getServletContextName() + "]");
+        thread.setContextClassLoader(loader);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止预编译, 正在编译的页面会完成.
+     */
+    public void stop() {
+        ExecutorService executor = this.executor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 预编译所有页面, 等待完成.
+     */
+    public void run() {
+        synchronized (this) {
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            List uris = new ArrayList();
+            findPages("/", uris);
+            total.set(uris.size());
+            compiled.set(0);
+            unchanged.set(0);
+            failed.set(0);
+            compileTimes.clear();
+            loadFingerprints();
+
+            if (log.isDebugEnabled()) {
+                log.debug(Localizer.getMessage("jsp.message.precompile.start",
+                        String.valueOf(uris.size()), String.valueOf(threads)));
+            }
+
+            executor = new ThreadPoolExecutor(threads, threads, 0L,
+                    TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+                    new ThreadFactory() {
+                        private int count = 0;
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "JspPrecompiler-" + (++count));
+                            thread.setContextClassLoader(loader);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            Iterator iter = uris.iterator();
+            while (iter.hasNext()) {
+                final String jspUri = (String) iter.next();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        precompile(jspUri);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                elapsed = System.currentTimeMillis() - start;
+            }
+
+            // 删除的页面不再保留指纹
+            fingerprints.keySet().retainAll(new HashSet(uris));
+            saveFingerprints();
+        } catch (InterruptedException e) {
+            // 停止
+        } finally {
+            executor = null;
+            elapsed = System.currentTimeMillis() - start;
+            running = false;
+        }
+
+        log.info(Localizer.getMessage("jsp.message.precompile.done",
+                new Object[] { new Integer(total.get()), new Long(elapsed),
+                               new Integer(compiled.get()),
+                               new Integer(unchanged.get()),
+                               new Integer(failed.get()) }));
+    }
+
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * 递归查找JSP页面.
+     */
+    protected void findPages(String path, List uris) {
+        Set paths = context.getResourcePaths(path);
+        if (paths == null) {
+            return;
+        }
+        Iterator iter = paths.iterator();
+        while (iter.hasNext()) {
+            String child = (String) iter.next();
+            if (child.endsWith("/")) {
+                if (!child.equals("/WEB-INF/classes/")
+                        && !child.equals("/WEB-INF/lib/")
+                        && !child.equals("/META-INF/")) {
+                    findPages(child, uris);
+                }
+            } else if (child.endsWith(".jsp") || child.endsWith(".jspx")) {
+                uris.add(child);
+            }
+        }
+    }
+
+
+    /**
+     * 编译一个页面, 如果指纹没有变化, 跳过它.
+     */
+    protected void precompile(String jspUri) {
+        try {
+            JspServletWrapper wrapper = servlet.getWrapper(jspUri, false);
+            if (wrapper == null) {
+                return;
+            }
+            JspCompilationContext ctxt = wrapper.getJspEngineContext();
+            String stored = fingerprints.getProperty(jspUri);
+            if ((stored != null)
+                    && new File(ctxt.getClassFileName()).exists()) {
+                List dependants = new ArrayList();
+                String[] parts = stored.split("\\|");
+                for (int i = 1; i < parts.length; i++) {
+                    dependants.add(parts[i]);
+                }
+                if (parts[0].equals(fingerprint(ctxt, jspUri, dependants))) {
+                    unchanged.incrementAndGet();
+                    return;
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            List dependants = wrapper.precompile();
+            if (dependants == null) {
+                // 请求已经编译了页面
+                unchanged.incrementAndGet();
+                return;
+            }
+            compileTimes.put(jspUri,
+                    new Long(System.currentTimeMillis() - start));
+            StringBuffer value =
+                new StringBuffer(fingerprint(ctxt, jspUri, dependants));
+            for (int i = 0; i < dependants.size(); i++) {
+                value.append('|').append(dependants.get(i));
+            }
+            fingerprints.setProperty(jspUri, value.toString());
+            compiled.incrementAndGet();
+        } catch (Throwable t) {
+            fingerprints.remove(jspUri);
+            failed.incrementAndGet();
+            log.warn(Localizer.getMessage("jsp.warning.precompile.failed",
+                    jspUri), t);
+        }
+    }
+
+
+    /**
+     * 返回页面和它的依赖项的修改时间的指纹.
+     */
+    protected String fingerprint(JspCompilationContext ctxt, String jspUri,
+                                 List dependants) {
+        CRC32 crc = new CRC32();
+        update(crc, ctxt, jspUri);
+        for (int i = 0; i < dependants.size(); i++) {
+            update(crc, ctxt, (String) dependants.get(i));
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+
+    private void update(CRC32 crc, JspCompilationContext ctxt, String path) {
+        long lastModified = -1;
+        try {
+            URL url = ctxt.getResource(path);
+            if (url != null) {
+                URLConnection uc = url.openConnection();
+                lastModified = uc.getLastModified();
+                uc.getInputStream().close();
+            }
+        } catch (Exception e) {
+            // 找不到的依赖项使用-1
+        }
+        String token = path + "@" + lastModified + ";";
+        for (int i = 0; i < token.length(); i++) {
+            crc.update(token.charAt(i));
+        }
+    }
+
+
+    private void loadFingerprints() {
+        fingerprints.clear();
+        File file = new File(options.getScratchDir(), FINGERPRINT_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            fingerprints.load(is);
+        } catch (IOException e) {
+            fingerprints.clear();
+            log.warn(Localizer.getMessage("jsp.warning.precompile.fingerprints",
+                    file.getAbsolutePath()), e);
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+
+    private void saveFingerprints() {
+        File file = new File(options.getScratchDir(), FINGERPRINT_FILE);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            fingerprints.store(os, null);
+        } catch (IOException e) {
+            log.warn(Localizer.getMessage("jsp.warning.precompile.fingerprints",
+                    file.getAbsolutePath()), e);
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+}
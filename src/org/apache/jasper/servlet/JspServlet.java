@@ -19,6 +19,7 @@ import org.apache.jasper.EmbeddedServletOptions;
 import org.apache.jasper.Options;
 import org.apache.jasper.compiler.JspRuntimeContext;
 import org.apache.jasper.compiler.Localizer;
+import org.apache.jasper.runtime.LockFreeTagHandlerPool;
 
 /**
  * JSP 引擎(a.k.a Jasper).
@@ -35,6 +36,7 @@ public class JspServlet extends HttpServlet {
     private ServletConfig config;
     private Options options;
     private JspRuntimeContext rctxt;
+    private JspPrecompiler precompiler;
 
 
     /*
@@ -70,7 +72,27 @@ public class JspServlet extends HttpServlet {
             options = new EmbeddedServletOptions(config, context);
         }
         rctxt = new JspRuntimeContext(context, options);
-        
+
+        // 启动时预编译所有页面
+        precompiler = new JspPrecompiler(this, context, options);
+        String threads = config.getInitParameter("precompileThreads");
+        if (threads != null) {
+            try {
+                precompiler.setThreads(Integer.parseInt(threads));
+            } catch (NumberFormatException e) {
+                log.warn(Localizer.getMessage("jsp.warning.precompileThreads",
+                        String.valueOf(precompiler.getThreads())));
+            }
+        }
+        if ("true".equalsIgnoreCase(config.getInitParameter("precompile"))) {
+            if ("true".equalsIgnoreCase(
+                    config.getInitParameter("precompileWait"))) {
+                precompiler.run();
+            } else {
+                precompiler.start();
+            }
+        }
+
         if (log.isDebugEnabled()) {
             log.debug(Localizer.getMessage("jsp.message.scratch.dir.is",
                     options.getScratchDir().toString()));
@@ -113,6 +135,78 @@ public class JspServlet extends HttpServlet {
     }
 
 
+    /**
+     * 在后台预编译web应用中的所有JSP页面.
+     */
+    public void precompile() {
+        precompiler.start();
+    }
+
+
+    /**
+     * 返回预编译是否正在运行.
+     */
+    public boolean isPrecompileRunning() {
+        return precompiler.isRunning();
+    }
+
+
+    /**
+     * 返回最近一次预编译发现的页面数量.
+     */
+    public int getPrecompileTotal() {
+        return precompiler.getTotal();
+    }
+
+
+    /**
+     * 返回最近一次预编译编译的页面数量.
+     */
+    public int getPrecompileCompiled() {
+        return precompiler.getCompiled();
+    }
+
+
+    /**
+     * 返回最近一次预编译因为没有变化而跳过的页面数量.
+     */
+    public int getPrecompileUnchanged() {
+        return precompiler.getUnchanged();
+    }
+
+
+    /**
+     * 返回最近一次预编译失败的页面数量.
+     */
+    public int getPrecompileFailed() {
+        return precompiler.getFailed();
+    }
+
+
+    /**
+     * 返回最近一次预编译花费的时间, 毫秒.
+     */
+    public long getPrecompileTime() {
+        return precompiler.getElapsed();
+    }
+
+
+    /**
+     * 返回最近一次预编译中每个页面的编译时间, 最慢的在前面.
+     */
+    public String[] getPrecompileTimes() {
+        return precompiler.getCompileTimes();
+    }
+
+
+    /**
+     * 返回每个标签处理程序类的池统计信息, 使用<code>LockFreeTagHandlerPool</code>时才有.
+     */
+    public String[] getTagPoolStatistics() {
+        return LockFreeTagHandlerPool.getStatistics(context);
+    }
+
+
     /**
      * <p>找一个在JSP 1.2规范的Section 8.4.2描述的<em>precompilation request</em>.
      * <strong>WARNING</strong> - 不能使用<code>request.getParameter()</code>, 因为这将触发解析所有请求参数,
@@ -233,6 +327,7 @@ public class JspServlet extends HttpServlet {
         if (log.isDebugEnabled()) {
             log.debug("JspServlet.destroy()");
         }
+        precompiler.stop();
         rctxt.destroy();
     }
 
@@ -244,6 +339,24 @@ public class JspServlet extends HttpServlet {
                                 Throwable exception, boolean precompile)
         throws ServletException, IOException {
 
+        JspServletWrapper wrapper = getWrapper(jspUri, exception != null);
+        if (wrapper == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, jspUri);
+            return;
+        }
+        wrapper.service(request, response, precompile);
+    }
+
+
+    /**
+     * 返回JSP页面的包装, 需要时创建.
+     * 只有创建包装时在servlet上同步, 编译在包装上同步.
+     *
+     * @return 包装, 或者<code>null</code>如果页面不存在
+     */
+    JspServletWrapper getWrapper(String jspUri, boolean isErrorPage)
+        throws ServletException, IOException {
+
         JspServletWrapper wrapper = (JspServletWrapper) rctxt.getWrapper(jspUri);
         if (wrapper == null) {
             synchronized(this) {
@@ -251,16 +364,14 @@ public class JspServlet extends HttpServlet {
                 if (wrapper == null) {
                     // 检查请求的JSP 页面是否存在, 避免创建不必要的目录和文件.
                     if (null == context.getResource(jspUri)) {
-                        response.sendError(HttpServletResponse.SC_NOT_FOUND, jspUri);
-                        return;
+                        return null;
                     }
-                    boolean isErrorPage = exception != null;
                     wrapper = new JspServletWrapper(config, options, jspUri,
                                                     isErrorPage, rctxt);
                     rctxt.addWrapper(jspUri,wrapper);
                 }
             }
         }
-        wrapper.service(request, response, precompile);
+        return wrapper;
     }
 }
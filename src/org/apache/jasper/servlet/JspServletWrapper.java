@@ -3,6 +3,8 @@ package org.apache.jasper.servlet;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collections;
+import java.util.List;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletConfig;
@@ -51,6 +53,11 @@ public class JspServletWrapper {
     private long servletClassLastModifiedTime;
     private long lastModificationTest = 0L;
 
+    /**
+     * 页面依赖的文件被修改了, 下次请求时重新编译.
+     */
+    private volatile boolean stale = false;
+
     /*
      * 用于JSP 页面.
      */
@@ -203,7 +210,7 @@ public class JspServletWrapper {
     /**
      * 获取当前页面具有源依赖项的文件列表.
      */
-    public java.util.List getDependants() {
+    public List getDependants() {
 		try {
 		    Object target;
 		    if (isTagFile) {
@@ -215,7 +222,7 @@ public class JspServletWrapper {
 		    	target = getServlet();
 		    }
 		    if (target != null && target instanceof JspSourceDependent) {
-	            return ((java.util.List) ((JspSourceDependent) target).getDependants());
+	            return ((List) ((JspSourceDependent) target).getDependants());
 		    }
 		} catch (Throwable ex) {
 		}
@@ -252,15 +259,12 @@ public class JspServletWrapper {
             }
 
             /*
-             * (1) 编译
+             * (1) 编译. 如果文件修改在后台跟踪, 只有第一次和页面过期时编译.
              */
-            if (options.getDevelopment() || firstTime ) {
-                synchronized (this) {
-                    firstTime = false;
-
-                    // 以下设置重新加载为 true
-                    ctxt.compile();
-                }
+            if (firstTime || stale || (options.getDevelopment()
+                    && !ctxt.getRuntimeContext().isTracking())) {
+                // 以下设置重新加载为 true
+                compile();
             } else {
                 if (compileException != null) {
                     // 抛出缓存编译异常
@@ -341,6 +345,67 @@ public class JspServletWrapper {
         }
     }
 
+    /**
+     * 标记页面过期, 它依赖的文件被修改了.
+     */
+    public void setStale() {
+        stale = true;
+    }
+
+    /**
+     * 编译页面. 页面过期时不检查时间戳直接编译.
+     * 如果文件修改在后台跟踪, 重新登记页面的依赖项.
+     * 编译失败时也登记页面, 这样页面修改后会被标记为过期并重新编译, 而不是一直抛出缓存的编译异常.
+     */
+    public void compile() throws JasperException, FileNotFoundException {
+        synchronized (this) {
+            firstTime = false;
+            boolean compiled = false;
+            try {
+                if (stale) {
+                    stale = false;
+                    ctxt.compile(true);
+                } else {
+                    ctxt.compile();
+                }
+                compiled = true;
+            } finally {
+                JspRuntimeContext rctxt = ctxt.getRuntimeContext();
+                if (rctxt.isTracking()) {
+                    // 编译器保留了最近一次编译的依赖项, 没有编译过时从servlet中获取
+                    List dependants = null;
+                    if (ctxt.getCompiler() != null) {
+                        dependants = ctxt.getCompiler().getDependants();
+                    }
+                    if ((dependants == null) && compiled) {
+                        dependants = getDependants();
+                    }
+                    rctxt.track(this, jspUri, dependants);
+                }
+            }
+        }
+    }
+
+    /**
+     * 启动时预编译页面, 不加载servlet.
+     * 在包装上同步, 与请求触发的编译互斥, 不同的页面可以同时编译.
+     *
+     * @return 页面的源依赖项, 或者<code>null</code>如果页面已经被请求编译过
+     */
+    public List precompile()
+        throws JasperException, FileNotFoundException {
+        synchronized (this) {
+            if (!firstTime) {
+                return null;
+            }
+            ctxt.compile(true);
+            // 刚刚编译过, 第一个请求不需要再检查时间戳
+            lastModificationTest = System.currentTimeMillis();
+            List dependants = ctxt.getCompiler().getDependants();
+            return (dependants == null) ? Collections.EMPTY_LIST : dependants;
+        }
+    }
+
     public long getLastModificationTest() {
         return lastModificationTest;
     }
@@ -93,6 +93,27 @@ public abstract class BaseDirContext implements DirContext {
     protected int cacheMaxSize = 10240; // 10 MB
 
 
+    /**
+     * 缓存资源内容的存储方式: <code>heap</code>或<code>direct</code>.
+     */
+    protected String cacheStorage = CACHE_STORAGE_HEAP;
+
+
+    // -------------------------------------------------------------- Constants
+
+
+    /**
+     * 内容保存在堆内的字节数组中.
+     */
+    public static final String CACHE_STORAGE_HEAP = "heap";
+
+
+    /**
+     * 内容保存在直接缓冲区中.
+     */
+    public static final String CACHE_STORAGE_DIRECT = "direct";
+
+
     // ------------------------------------------------------------- Properties
 
 
@@ -171,6 +192,22 @@ public abstract class BaseDirContext implements DirContext {
     }
 
 
+    /**
+     * 返回缓存资源内容的存储方式.
+     */
+    public String getCacheStorage() {
+        return cacheStorage;
+    }
+
+
+    /**
+     * 设置缓存资源内容的存储方式.
+     */
+    public void setCacheStorage(String cacheStorage) {
+        this.cacheStorage = cacheStorage;
+    }
+
+
     // --------------------------------------------------------- Public Methods
 
 
@@ -787,7 +787,7 @@ public class FileDirContext extends BaseDirContext {
          */
         public InputStream streamContent()
             throws IOException {
-            if (binaryContent == null) {
+            if ((binaryContent == null) && (bufferContent == null)) {
                 inputStream = new FileInputStream(file);
             }
             return super.streamContent();
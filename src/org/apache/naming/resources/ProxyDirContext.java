@@ -3,6 +3,7 @@ package org.apache.naming.resources;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 
 import javax.naming.Context;
@@ -58,6 +59,8 @@ public class ProxyDirContext implements DirContext {
                 cache.setCacheMaxSize(baseDirContext.getCacheMaxSize());
                 cacheTTL = baseDirContext.getCacheTTL();
                 cacheObjectMaxSize = baseDirContext.getCacheMaxSize() / 20;
+                if (baseDirContext.getCacheStorage() != null)
+                    cacheStorage = baseDirContext.getCacheStorage();
             }
         }
         hostName = (String) env.get(HOST);
@@ -150,6 +153,12 @@ public class ProxyDirContext implements DirContext {
     protected int cacheObjectMaxSize = 512; // 512 KB
 
 
+    /**
+     * 缓存资源内容的存储方式.
+     */
+    protected String cacheStorage = BaseDirContext.CACHE_STORAGE_HEAP;
+
+
     /**
      * 不变的名称未发现异常
      */
@@ -1251,7 +1260,7 @@ public class ProxyDirContext implements DirContext {
         if (((!entry.exists)
              || (entry.context != null)
              || ((entry.resource != null) 
-                 && (entry.resource.getContent() != null)))
+                 && (entry.resource.isContentLoaded())))
             && (System.currentTimeMillis() < entry.timestamp)) {
             return true;
         }
@@ -1336,7 +1345,7 @@ public class ProxyDirContext implements DirContext {
 
         // Load object content
         if ((exists) && (entry.resource != null) 
-            && (entry.resource.getContent() == null) 
+            && (!entry.resource.isContentLoaded()) 
             && (entry.attributes.getContentLength() >= 0)
             && (entry.attributes.getContentLength() < 
                 (cacheObjectMaxSize * 1024))) {
@@ -1344,26 +1353,30 @@ public class ProxyDirContext implements DirContext {
             // The entry size is 1 + the resource size in KB, if it will be 
             // cached
             entry.size += (entry.attributes.getContentLength() / 1024);
-            InputStream is = null;
-            try {
-                is = entry.resource.streamContent();
-                int pos = 0;
-                byte[] b = new byte[length];
-                while (pos < length) {
-                    int n = is.read(b, pos, length - pos);
-                    if (n < 0)
-                        break;
-                    pos = pos + n;
-                }
-                entry.resource.setContent(b);
-            } catch (IOException e) {
-                ; // Ignore
-            } finally {
+            if (!loadBufferContent(entry, length)) {
+                InputStream is = null;
                 try {
-                    if (is != null)
-                        is.close();
+                    is = entry.resource.streamContent();
+                    int pos = 0;
+                    byte[] b = new byte[length];
+                    while (pos < length) {
+                        int n = is.read(b, pos, length - pos);
+                        if (n < 0)
+                            break;
+                        pos = pos + n;
+                    }
+                    // 内容比预期短时不缓存, 之后从资源中读取
+                    if (pos == length)
+                        entry.resource.setContent(b);
                 } catch (IOException e) {
                     ; // Ignore
+                } finally {
+                    try {
+                        if (is != null)
+                            is.close();
+                    } catch (IOException e) {
+                        ; // Ignore
+                    }
                 }
             }
         }
@@ -1374,14 +1387,53 @@ public class ProxyDirContext implements DirContext {
         // Set timestamp
         entry.timestamp = System.currentTimeMillis() + cacheTTL;
 
-        // 添加新条目到缓存
-        synchronized (cache) {
-            // Check cache size, and remove elements if too big
-            if ((cache.lookup(name) == null) && cache.allocate(entry.size)) {
-                cache.load(entry);
+        // 添加新条目到缓存, 空间不足时由缓存自己淘汰
+        cache.load(entry);
+
+    }
+
+
+    /**
+     * 如果<code>cacheStorage</code>是<code>direct</code>, 把资源内容复制到直接缓冲区.
+     * 直接内存不足时使用堆内数组.
+     *
+     * @return <code>true</code>如果内容已经完整加载; <code>false</code>表示应该使用堆内数组
+     *  (包括读取失败或者内容比预期短时)
+     */
+    protected boolean loadBufferContent(CacheEntry entry, int length) {
+        if (!BaseDirContext.CACHE_STORAGE_DIRECT.equals(cacheStorage))
+            return false;
+        InputStream is = null;
+        try {
+            is = entry.resource.streamContent();
+            ByteBuffer buffer;
+            try {
+                buffer = ByteBuffer.allocateDirect(length);
+            } catch (OutOfMemoryError e) {
+                return false;
+            }
+            byte[] b = new byte[Math.min(length, 8192)];
+            while (buffer.hasRemaining()) {
+                int n = is.read(b, 0, Math.min(b.length, buffer.remaining()));
+                if (n < 0)
+                    break;
+                buffer.put(b, 0, n);
+            }
+            if (buffer.hasRemaining())
+                return false;
+            buffer.flip();
+            entry.resource.setContent(buffer);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            try {
+                if (is != null)
+                    is.close();
+            } catch (IOException e) {
+                ; // Ignore
             }
         }
-
     }
 
 
@@ -1391,9 +1443,7 @@ public class ProxyDirContext implements DirContext {
     protected boolean cacheUnload(String name) {
         if (cache == null)
             return false;
-        synchronized (cache) {
-            return cache.unload(name);
-        }
+        return cache.unload(name);
     }
 }
 
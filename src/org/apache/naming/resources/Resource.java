@@ -3,6 +3,7 @@ package org.apache.naming.resources;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Encapsultes 资源的内容
@@ -25,6 +26,11 @@ public class Resource {
     }
     
     
+    public Resource(ByteBuffer bufferContent) {
+        setContent(bufferContent);
+    }
+    
+    
     // ----------------------------------------------------- Instance Variables
     
     
@@ -34,6 +40,12 @@ public class Resource {
     protected byte[] binaryContent = null;
     
     
+    /**
+     * 堆外的内容 (直接缓冲区或内存映射文件), 只读.
+     */
+    protected ByteBuffer bufferContent = null;
+    
+    
     /**
      * Input stream.
      */
@@ -48,6 +60,9 @@ public class Resource {
         if (binaryContent != null) {
             return new ByteArrayInputStream(binaryContent);
         }
+        if (bufferContent != null) {
+            return new ByteBufferInputStream(bufferContent.duplicate());
+        }
         return inputStream;
     }
     
@@ -57,6 +72,25 @@ public class Resource {
     }
     
     
+    /**
+     * 返回堆外内容的一个独立视图, 调用者可以自由修改它的位置.
+     * 如果内容不在堆外, 返回<code>null</code>.
+     */
+    public ByteBuffer getBufferContent() {
+        if (bufferContent == null)
+            return null;
+        return bufferContent.duplicate();
+    }
+    
+    
+    /**
+     * 内容是否已经加载到内存中 (堆内或堆外).
+     */
+    public boolean isContentLoaded() {
+        return (binaryContent != null) || (bufferContent != null);
+    }
+    
+    
     public void setContent(InputStream inputStream) {
         this.inputStream = inputStream;
     }
@@ -65,4 +99,55 @@ public class Resource {
     public void setContent(byte[] binaryContent) {
         this.binaryContent = binaryContent;
     }
+    
+    
+    public void setContent(ByteBuffer bufferContent) {
+        if (bufferContent != null)
+            bufferContent = bufferContent.asReadOnlyBuffer();
+        this.bufferContent = bufferContent;
+    }
+    
+    
+    // ------------------------------------------ ByteBufferInputStream Class
+    
+    
+    /**
+     * 从<code>ByteBuffer</code>读取的输入流.
+     */
+    protected static class ByteBufferInputStream extends InputStream {
+        
+        protected ByteBuffer buffer;
+        
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        
+        public int read() {
+            if (!buffer.hasRemaining())
+                return -1;
+            return buffer.get() & 0xff;
+        }
+        
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+        
+        public long skip(long n) {
+            if (n <= 0)
+                return 0;
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
@@ -1,60 +1,85 @@
 package org.apache.naming.resources;
 
-import java.util.HashMap;
-import java.util.Random;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 实现了特殊的缓存.
+ * <p>
+ * 缓存被划分为多个段, 每个段有自己的锁和容量 (<code>cacheMaxSize / segmentCount</code>).
+ * 查找只访问一个<code>ConcurrentHashMap</code>, 不需要加锁; 访问顺序的更新使用<code>tryLock()</code>,
+ * 段被占用时跳过, 所以查找永远不会阻塞.
+ * <p>
+ * 每个段使用分段LRU (SLRU) 淘汰策略: 新条目进入试用区, 再次命中后晋升到保护区.
+ * 保护区最多占段容量的<code>protectedRatio</code>%, 超出时最久未访问的条目降回试用区.
+ * 空间不足时先从试用区的尾部淘汰, 所以只被访问一次的资源不会挤掉常用资源.
  */
 public class ResourceCache {
-    
-    
+
+
     // ----------------------------------------------------------- Constructors
-    
-    
+
+
     public ResourceCache() {
+        this(DEFAULT_SEGMENT_COUNT);
     }
-    
-    
-    // ----------------------------------------------------- Instance Variables
+
+
+    public ResourceCache(int segmentCount) {
+        if (segmentCount < 1)
+            segmentCount = 1;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+
+    // -------------------------------------------------------------- Constants
 
 
     /**
-     * 用于确定树的元素的随机生成器.
+     * 默认的段数量.
      */
-    protected Random random = new Random();
+    protected static final int DEFAULT_SEGMENT_COUNT = 16;
+
+
+    // ----------------------------------------------------- Instance Variables
 
 
     /**
      * Cache.
-     * Path -> Cache entry.
+     * Path -> Cache entry. 包含所有段中存在的条目.
      */
-    protected CacheEntry[] cache = new CacheEntry[0];
+    protected ConcurrentHashMap cache = new ConcurrentHashMap();
 
 
     /**
      * 未找到的缓存.
+     * Path -> Cache entry.
      */
-    protected HashMap notFoundCache = new HashMap();
+    protected ConcurrentHashMap notFoundCache = new ConcurrentHashMap();
 
 
     /**
-     * 缓存的资源内容最大大小.
+     * 段.
      */
-    protected int cacheMaxSize = 10240; // 10 MB
+    protected Segment[] segments;
 
 
     /**
-     * 清除的最大大小.
+     * 缓存的资源内容最大大小.
      */
-    protected int maxAllocateIterations = 20;
+    protected int cacheMaxSize = 10240; // 10 MB
 
 
     /**
-     * 从缓存中永远不会删除条目的条目命中率.
-     * 比较entry.access / hitsCount
+     * 每个段中保护区所占的最大百分比.
      */
-    protected long desiredEntryAccessRatio = 3;
+    protected int protectedRatio = 80;
 
 
     /**
@@ -64,21 +89,27 @@ public class ResourceCache {
 
 
     /**
-     * 当前缓存大小, KB.
+     * 访问缓存的数量.
      */
-    protected int cacheSize = 0;
+    protected AtomicLong accessCount = new AtomicLong();
 
 
     /**
-     * 访问缓存的数量.
+     * 缓存命中次数.
      */
-    protected long accessCount = 0;
+    protected AtomicLong hitsCount = new AtomicLong();
 
 
     /**
-     * 缓存命中次数.
+     * 被淘汰的条目数.
      */
-    protected long hitsCount = 0;
+    protected AtomicLong evictionCount = new AtomicLong();
+
+
+    /**
+     * 因为大于段容量而没有被缓存的条目数.
+     */
+    protected AtomicLong rejectedCount = new AtomicLong();
 
 
     // ------------------------------------------------------------- Properties
@@ -86,10 +117,9 @@ public class ResourceCache {
 
     /**
      * 返回访问计数.
-     * Note: 更新不同步, 所以这个数字可能不是完全准确的.
      */
     public long getAccessCount() {
-        return accessCount;
+        return accessCount.get();
     }
 
 
@@ -113,48 +143,87 @@ public class ResourceCache {
      * 返回当前缓存大小, KB.
      */
     public int getCacheSize() {
-        return cacheSize;
+        int size = notFoundCache.size();
+        for (int i = 0; i < segments.length; i++) {
+            size += segments[i].size;
+        }
+        return size;
+    }
+
+
+    /**
+     * 返回缓存中的条目数量, 不包括未找到的条目.
+     */
+    public int getEntryCount() {
+        return cache.size();
     }
 
 
     /**
-     * 返回所需的入口访问率.
+     * 返回缓存中未找到的条目数量.
      */
-    public long getDesiredEntryAccessRatio() {
-        return desiredEntryAccessRatio;
+    public int getNotFoundCount() {
+        return notFoundCache.size();
     }
 
 
     /**
-     * 设置所需的入口访问率.
+     * 返回被淘汰的条目数.
      */
-    public void setDesiredEntryAccessRatio(long desiredEntryAccessRatio) {
-        this.desiredEntryAccessRatio = desiredEntryAccessRatio;
+    public long getEvictionCount() {
+        return evictionCount.get();
     }
 
 
     /**
      * 返回缓存命中次数.
-     * Note: 更新不同步, 所以这个数字可能不是完全准确的.
      */
     public long getHitsCount() {
-        return hitsCount;
+        return hitsCount.get();
+    }
+
+
+    /**
+     * 返回缓存未命中次数.
+     */
+    public long getMissCount() {
+        return accessCount.get() - hitsCount.get();
+    }
+
+
+    /**
+     * 返回因为太大而没有被缓存的条目数.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
     }
 
 
     /**
-     * 在空间分配期间返回最大迭代次数.
+     * 返回保护区所占的最大百分比.
      */
-    public int getMaxAllocateIterations() {
-        return maxAllocateIterations;
+    public int getProtectedRatio() {
+        return protectedRatio;
     }
 
 
     /**
-     * 设置在空间分配期间最大迭代次数.
+     * 设置保护区所占的最大百分比.
      */
-    public void setMaxAllocateIterations(int maxAllocateIterations) {
-        this.maxAllocateIterations = maxAllocateIterations;
+    public void setProtectedRatio(int protectedRatio) {
+        if (protectedRatio < 0)
+            protectedRatio = 0;
+        if (protectedRatio > 100)
+            protectedRatio = 100;
+        this.protectedRatio = protectedRatio;
+    }
+
+
+    /**
+     * 返回段的数量.
+     */
+    public int getSegmentCount() {
+        return segments.length;
     }
 
 
@@ -177,107 +246,31 @@ public class ResourceCache {
     // --------------------------------------------------------- Public Methods
 
 
+    /**
+     * 检查指定大小的条目能否被缓存. 实际的空间在<code>load()</code>中, 从条目所在的段中淘汰.
+     *
+     * @param space 条目大小, KB
+     */
     public boolean allocate(int space) {
-
-        int toFree = space - (cacheMaxSize - cacheSize);
-
-        if (toFree <= 0) {
-            return true;
-        }
-
-        // 增加自由量，这样分配就不必再运行了
-        toFree += (cacheMaxSize / 20);
-
-        int size = notFoundCache.size();
-        if (size > spareNotFoundEntries) {
-            notFoundCache.clear();
-            cacheSize -= size;
-            toFree -= size;
-        }
-
-        if (toFree <= 0) {
-            return true;
-        }
-
-        int attempts = 0;
-        int entriesFound = 0;
-        long totalSpace = 0;
-        int[] toRemove = new int[maxAllocateIterations];
-        while (toFree > 0) {
-            if (attempts == maxAllocateIterations) {
-                // 放弃，对当前缓存不作任何更改
-                return false;
-            }
-            if (toFree > 0) {
-                // 随机选择数组中的条目
-                int entryPos = -1;
-                boolean unique = false;
-                while (!unique) {
-                    unique = true;
-                    entryPos = random.nextInt(cache.length) ;
-                    // Guarantee uniqueness
-                    for (int i = 0; i < entriesFound; i++) {
-                        if (toRemove[i] == entryPos) {
-                            unique = false;
-                        }
-                    }
-                }
-                long entryAccessRatio = 
-                    ((cache[entryPos].accessCount * 100) / accessCount);
-                if (entryAccessRatio < desiredEntryAccessRatio) {
-                    toRemove[entriesFound] = entryPos;
-                    totalSpace += cache[entryPos].size;
-                    toFree -= cache[entryPos].size;
-                    entriesFound++;
-                }
-            }
-            attempts++;
-        }
-
-        // 现在删除指定的条目
-        java.util.Arrays.sort(toRemove, 0, entriesFound);
-        CacheEntry[] newCache = new CacheEntry[cache.length - entriesFound];
-        int pos = 0;
-        int n = -1;
-        if (entriesFound > 0) {
-            n = toRemove[0];
-            for (int i = 0; i < cache.length; i++) {
-                if (i == n) {
-                    if ((pos + 1) < entriesFound) {
-                        n = toRemove[pos + 1];
-                        pos++;
-                    } else {
-                        pos++;
-                        n = -1;
-                    }
-                } else {
-                    newCache[i - pos] = cache[i];
-                }
-            }
+        if (space > segmentMaxSize()) {
+            rejectedCount.incrementAndGet();
+            return false;
         }
-        cache = newCache;
-        cacheSize -= totalSpace;
         return true;
     }
 
 
     public CacheEntry lookup(String name) {
 
-        CacheEntry cacheEntry = null;
-        accessCount++;
-        int pos = find(cache, name);
-        if ((pos != -1) && (name.equals(cache[pos].name))) {
-            cacheEntry = cache[pos];
-        }
-        if (cacheEntry == null) {
-            try {
-                cacheEntry = (CacheEntry) notFoundCache.get(name);
-            } catch (Exception e) {
-                // Ignore: 这种查找的可靠性并不重要
-            }
+        accessCount.incrementAndGet();
+        CacheEntry cacheEntry = (CacheEntry) cache.get(name);
+        if (cacheEntry != null) {
+            segmentFor(name).touch(name);
+        } else {
+            cacheEntry = (CacheEntry) notFoundCache.get(name);
         }
         if (cacheEntry != null) {
-            hitsCount++;
+            hitsCount.incrementAndGet();
         }
         return cacheEntry;
 
@@ -286,107 +279,207 @@ public class ResourceCache {
 
     public void load(CacheEntry entry) {
         if (entry.exists) {
-            if (insertCache(entry)) {
-                cacheSize += entry.size;
-            }
+            if (!allocate(entry.size))
+                return;
+            segmentFor(entry.name).load(entry);
         } else {
-            int sizeIncrement = (notFoundCache.get(entry.name) == null) ? 1 : 0;
-            notFoundCache.put(entry.name, entry);
-            cacheSize += sizeIncrement;
+            if (notFoundCache.size() >= spareNotFoundEntries) {
+                // 未找到的条目很便宜, 整体清除即可
+                int size = notFoundCache.size();
+                notFoundCache.clear();
+                evictionCount.addAndGet(size);
+            }
+            notFoundCache.putIfAbsent(entry.name, entry);
         }
     }
 
 
+    /**
+     * 改变已缓存条目的大小, 例如在条目上附加了压缩的变体之后.
+     * 如果段的空间不足, 淘汰段中的其他条目. 条目不在缓存中时只更新它的大小.
+     *
+     * @param entry 缓存条目
+     * @param size 新的大小, KB
+     */
+    public void resize(CacheEntry entry, int size) {
+        segmentFor(entry.name).resize(entry, size);
+    }
+
+
     public boolean unload(String name) {
-        CacheEntry removedEntry = removeCache(name);
-        if (removedEntry != null) {
-            cacheSize -= removedEntry.size;
-            return true;
-        } else if (notFoundCache.remove(name) != null) {
-            cacheSize--;
+        if (segmentFor(name).unload(name)) {
             return true;
         }
-        return false;
+        return (notFoundCache.remove(name) != null);
     }
 
 
+    // ------------------------------------------------------ Protected Methods
+
+
     /**
-     * 在一个map元素排序数组中查找指定名称的 map元素.
-     * 这将返回给定数组中最接近的或相等项的索引.
+     * 返回指定名称所在的段.
      */
-    private static final int find(CacheEntry[] map, String name) {
+    protected Segment segmentFor(String name) {
+        int h = name.hashCode();
+        // 打散低位, 与HashMap相同
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
 
-        int a = 0;
-        int b = map.length - 1;
 
-        // Special cases: -1 and 0
-        if (b == -1) {
-            return -1;
-        }
-        if (name.compareTo(map[0].name) < 0) {
-            return -1;
-        }
-        if (b == 0) {
-            return 0;
+    /**
+     * 返回每个段的容量, KB.
+     */
+    protected int segmentMaxSize() {
+        return Math.max(1, cacheMaxSize / segments.length);
+    }
+
+
+    // --------------------------------------------------------- Segment Class
+
+
+    /**
+     * 缓存的一个段. 所有修改在段锁内进行.
+     */
+    protected class Segment {
+
+        /**
+         * 段锁.
+         */
+        protected ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * 试用区, 按访问顺序排序, 第一个元素最久未访问.
+         */
+        protected LinkedHashMap probation = new LinkedHashMap(16, 0.75f, true);
+
+        /**
+         * 保护区, 按访问顺序排序, 第一个元素最久未访问.
+         */
+        protected LinkedHashMap protect = new LinkedHashMap(16, 0.75f, true);
+
+        /**
+         * 段中所有条目的大小, KB.
+         */
+        protected volatile int size = 0;
+
+        /**
+         * 保护区中条目的大小, KB.
+         */
+        protected int protectedSize = 0;
+
+
+        /**
+         * 记录一次访问. 段被占用时放弃, 访问顺序只是近似的.
+         */
+        protected void touch(String name) {
+            if (!lock.tryLock())
+                return;
+            try {
+                if (protect.get(name) != null)
+                    return;
+                CacheEntry entry = (CacheEntry) probation.remove(name);
+                if (entry == null)
+                    return;
+                // 第二次访问, 晋升到保护区
+                protect.put(name, entry);
+                protectedSize += entry.size;
+                int maxProtected = segmentMaxSize() * protectedRatio / 100;
+                Iterator it = protect.values().iterator();
+                while ((protectedSize > maxProtected) && it.hasNext()) {
+                    CacheEntry demoted = (CacheEntry) it.next();
+                    if (demoted == entry)
+                        break;
+                    it.remove();
+                    protectedSize -= demoted.size;
+                    probation.put(demoted.name, demoted);
+                }
+            } finally {
+                lock.unlock();
+            }
         }
 
-        int i = 0;
-        while (true) {
-            i = (b + a) / 2;
-            int result = name.compareTo(map[i].name);
-            if (result > 0) {
-                a = i;
-            } else if (result == 0) {
-                return i;
-            } else {
-                b = i;
+
+        protected void load(CacheEntry entry) {
+            lock.lock();
+            try {
+                if (cache.containsKey(entry.name))
+                    return;
+                int maxSize = segmentMaxSize();
+                evict(maxSize - entry.size);
+                probation.put(entry.name, entry);
+                cache.put(entry.name, entry);
+                size += entry.size;
+            } finally {
+                lock.unlock();
             }
-            if ((b - a) == 1) {
-                int result2 = name.compareTo(map[b].name);
-                if (result2 < 0) {
-                    return a;
-                } else {
-                    return b;
+        }
+
+
+        protected void resize(CacheEntry entry, int newSize) {
+            lock.lock();
+            try {
+                if (cache.get(entry.name) != entry) {
+                    entry.size = newSize;
+                    return;
                 }
+                int delta = newSize - entry.size;
+                if (protect.containsKey(entry.name))
+                    protectedSize += delta;
+                entry.size = newSize;
+                size += delta;
+                evict(segmentMaxSize());
+            } finally {
+                lock.unlock();
             }
         }
-    }
 
 
-    /**
-     * 插入到已经排序的MapElement 数组的正确的地方, 防止重复.
-     */
-    private final boolean insertCache(CacheEntry newElement) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, newElement.name);
-        if ((pos != -1) && (newElement.name.equals(oldCache[pos].name))) {
-            return false;
+        protected boolean unload(String name) {
+            lock.lock();
+            try {
+                CacheEntry entry = (CacheEntry) probation.remove(name);
+                if (entry == null) {
+                    entry = (CacheEntry) protect.remove(name);
+                    if (entry == null)
+                        return false;
+                    protectedSize -= entry.size;
+                }
+                cache.remove(name);
+                size -= entry.size;
+                return true;
+            } finally {
+                lock.unlock();
+            }
         }
-        CacheEntry[] newCache = new CacheEntry[cache.length + 1];
-        System.arraycopy(oldCache, 0, newCache, 0, pos + 1);
-        newCache[pos + 1] = newElement;
-        System.arraycopy
-            (oldCache, pos + 1, newCache, pos + 2, oldCache.length - pos - 1);
-        cache = newCache;
-        return true;
-    }
 
 
-    /**
-     * 插入到已经排序的MapElement 数组的正确的地方.
-     */
-    private final CacheEntry removeCache(String name) {
-        CacheEntry[] oldCache = cache;
-        int pos = find(oldCache, name);
-        if ((pos != -1) && (name.equals(oldCache[pos].name))) {
-            CacheEntry[] newCache = new CacheEntry[cache.length - 1];
-            System.arraycopy(oldCache, 0, newCache, 0, pos);
-            System.arraycopy(oldCache, pos + 1, newCache, pos, 
-                             oldCache.length - pos - 1);
-            cache = newCache;
-            return oldCache[pos];
+        /**
+         * 淘汰条目, 直到段的大小不超过指定值. 先淘汰试用区, 再淘汰保护区.
+         * 必须在段锁内调用.
+         */
+        protected void evict(int target) {
+            Iterator it = probation.values().iterator();
+            while ((size > target) && it.hasNext()) {
+                CacheEntry entry = (CacheEntry) it.next();
+                it.remove();
+                cache.remove(entry.name);
+                size -= entry.size;
+                evictionCount.incrementAndGet();
+            }
+            it = protect.values().iterator();
+            while ((size > target) && it.hasNext()) {
+                CacheEntry entry = (CacheEntry) it.next();
+                it.remove();
+                cache.remove(entry.name);
+                size -= entry.size;
+                protectedSize -= entry.size;
+                evictionCount.incrementAndGet();
+            }
         }
-        return null;
+
     }
 
 }
@@ -761,7 +761,7 @@ public class WARDirContext extends BaseDirContext {
         public InputStream streamContent()
             throws IOException {
             try {
-                if (binaryContent == null) {
+                if ((binaryContent == null) && (bufferContent == null)) {
                     inputStream = base.getInputStream(entry);
                 }
             } catch (ZipException e) {